@@ -0,0 +1,201 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Generates the documents used by the {@link RegressionSuite regression
+ * suite}. The documents are generated from fixed seeds, so that every
+ * run produces identical files. Run this class with a directory as the
+ * argument to generate the corpus for inspection.
+ */
+public class Corpus
+{
+ /**
+  * Names of the documents in the corpus:
+  * <dl>
+  * <dt>flat</dt><dd>long article with a single-level outline</dd>
+  * <dt>nested</dt><dd>outline six levels deep with headings in
+  * nested sections</dd>
+  * <dt>index</dt><dd>index with 100,000 headings and little text</dd>
+  * <dt>entities</dt><dd>text dense with entity and character
+  * references and non-ASCII characters</dd>
+  * </dl>
+  */
+ public static final String[] DOCUMENTS = { "flat", "nested", "index", "entities" };
+
+ /**
+  * Encoding of the generated documents.
+  */
+ public static final Charset ENCODING = Charset.forName("UTF-8");
+
+ public static void main(String[] args) throws IOException
+ {
+  if (0 == args.length)
+  {
+   System.err.println("Please enter the directory to generate the corpus in.");
+   System.exit(1);
+  }
+  File dir = new File(args[0]);
+  for (String name : DOCUMENTS)
+   System.out.println(generate(name, dir));
+ }
+
+ /**
+  * Writes a document of the corpus to a directory, unless the
+  * directory already contains a file of that name.
+  * @param name the {@link #DOCUMENTS name of the document}
+  * @param dir the directory to write to
+  * @return the document's file
+  */
+ public static File generate(String name, File dir) throws IOException
+ {
+  File file = new File(dir, name + ".html");
+  if (file.exists())
+   return file;
+  dir.mkdirs();
+  File temp = new File(dir, name + ".part");
+  Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), ENCODING));
+  try
+  {
+   Random random = new Random(name.hashCode());
+   if ("flat".equals(name))
+    flat(out, random);
+   else if ("nested".equals(name))
+    nested(out, random);
+   else if ("index".equals(name))
+    index(out, random);
+   else if ("entities".equals(name))
+    entities(out, random);
+   else
+    throw new IllegalArgumentException("Unknown document: " + name);
+  }
+  finally
+  {
+   out.close();
+  }
+  if (!temp.renameTo(file))
+   throw new IOException("Could not rename " + temp + " to " + file);
+  return file;
+ }
+
+ protected static void flat(Writer out, Random random) throws IOException
+ {
+  begin(out, "Flat", "outline=\"h2\" linetags=\"li\" blocktags=\"ul.toc\"");
+  for (int i = 1; 400 >= i; i++)
+  {
+   out.write("<h2>Topic " + i + "</h2>\n");
+   for (int j = random.nextInt(8) + 4; 0 < j; j--)
+    out.write("<p>" + filler(random, 2000) + "</p>\n");
+  }
+  end(out);
+ }
+
+ protected static void nested(Writer out, Random random) throws IOException
+ {
+  begin(out, "Nested", "outline=\"h1,h2,h3,h4,h5,h6\" linetags=\"li,li,li,li,li.deep,li.deep\""
+    + " blocktags=\"ol.toc,ol,ol,ol,ol,ol\"");
+  int level = 1;
+  for (int i = 1; 6000 >= i; i++)
+  {
+   level = Math.max(1, Math.min(6, level + random.nextInt(3) - 1));
+   for (int j = 1; level > j; j++)
+    out.write("<section>");
+   out.write("<h" + level + (0 == i % 3 ? " id=\"n" + i + '"' : "") + ">Part "
+     + i + " <em>of</em> level <code>" + level + "</code></h" + level + ">\n");
+   out.write("<p>" + filler(random, 400) + "</p>");
+   for (int j = 1; level > j; j++)
+    out.write("</section>");
+   out.write('\n');
+  }
+  end(out);
+ }
+
+ protected static void index(Writer out, Random random) throws IOException
+ {
+  begin(out, "Index", "outline=\"h2,h3\" linetags=\"li,li\" blocktags=\"ul.toc,ul\"");
+  for (int i = 0; 100000 > i; i++)
+  {
+   if (0 == i % 1000)
+    out.write("<h2>Group " + (i / 1000 + 1) + "</h2>\n");
+   if (0 == i % 2)
+    out.write("<h3 id=\"e" + i + "\">Entry " + i + "</h3>");
+   else
+    out.write("<h3>Entry " + i + "</h3>");
+   out.write("<p>see page " + random.nextInt(1000) + "</p>\n");
+  }
+  end(out);
+ }
+
+ protected static void entities(Writer out, Random random) throws IOException
+ {
+  begin(out, "Entities", "outline=\"h2,h3\" linetags=\"li,li\" blocktags=\"ul.toc,ul\"");
+  for (int i = 1; 3000 >= i; i++)
+  {
+   String text = REFERENCES[random.nextInt(REFERENCES.length)] + ' ' + i + ' '
+     + REFERENCES[random.nextInt(REFERENCES.length)];
+   if (0 == i % 4)
+    out.write("<h2>" + text + "</h2>\n");
+   else
+    out.write("<h3 title=\"&lt;" + i + "&gt; &amp; &#169;\">" + text + "</h3>\n");
+   out.write("<p title=\"&quot;" + i + "&quot;\">");
+   for (int j = random.nextInt(40) + 10; 0 < j; j--)
+    out.write(REFERENCES[random.nextInt(REFERENCES.length)] + ' ');
+   out.write("</p>\n");
+  }
+  end(out);
+ }
+
+ protected static void begin(Writer out, String title, String settings) throws IOException
+ {
+  out.write("<html><head><title>" + title + "</title></head><body>\n<?"
+    + TocPIParser.PI_TARGET + " version=\"1.0\" " + settings + " /?>\n");
+ }
+
+ protected static void end(Writer out) throws IOException
+ {
+  out.write("</body></html>\n");
+ }
+
+ protected static String filler(Random random, int maxLength)
+ {
+  StringBuilder text = new StringBuilder();
+  int length = random.nextInt(maxLength);
+  while (length > text.length())
+   text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+  return text.toString();
+ }
+
+ private static final String[] WORDS = {
+  "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit"
+ };
+
+ private static final String[] REFERENCES = {
+  "&amp;", "&lt;tag&gt;", "&quot;quoted&quot;", "&apos;", "&copy;", "&#169;", "&#x2014;",
+  "caf\u00e9", "\u00fcber", "\u6f22\u5b57", "\ud83d\ude00", "plain"
+ };
+}
@@ -0,0 +1,927 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Transforms the documents of the {@link Corpus corpus}, compares the
+ * results with golden digests, and checks throughput, peak heap usage
+ * and allocation per megabyte of input against stored budgets.
+ * Arguments:
+ * <ol>
+ * <li>directory that holds the corpus, which is generated there if
+ * missing</li>
+ * <li>properties file with golden digests and budgets</li>
+ * <li>(optional) the word <code>record</code> to replace the
+ * contents of the properties file with digests of current results and
+ * budgets derived from current measurements</li>
+ * </ol>
+ * Once the documents are measured, the suite transforms all of them
+ * {@link #REUSE_ROUNDS several times} in different orders with a single
+ * transformer and {@link #checkReuse(List) compares} each result with that
+ * of a new transformer, so that state left over from one document cannot
+ * affect the next. Finally, it {@link #checkSlugIds(File) checks} that
+ * ids derived from headings do not depend on whether the outline has
+ * been found in advance, and {@link #checkSpill(List, File) checks} that
+ * content spilled to a file is written out the same way as content held
+ * in memory, and {@link #checkErrors(File) checks} that invalid TOC markup
+ * is reported the same way whether the document is checked or transformed.
+ * It also {@link #checkFeed() checks} that documents fed to a transformer
+ * in portions are parsed the same way as documents read by the StAX parser.
+ * Exits with status 1 if any result differs from its golden digest or
+ * the result of a new transformer, or any measurement is over its budget. For each document <code>doc</code>,
+ * the properties file may contain:
+ * <dl>
+ * <dt><code>doc.digest</code></dt><dd>SHA-1 digest of the UTF-8
+ * encoded result</dd>
+ * <dt><code>doc.throughput.min</code></dt><dd>lowest acceptable
+ * throughput in MB of input per second</dd>
+ * <dt><code>doc.heap.max</code></dt><dd>highest acceptable peak heap
+ * usage in MB</dd>
+ * <dt><code>doc.alloc.max</code></dt><dd>highest acceptable number of bytes
+ * allocated per MB of input</dd>
+ * </dl>
+ * Missing properties are not checked. Throughput and heap usage depend on
+ * the machine and JVM settings, so the budgets should be recorded on
+ * the machine that runs the suite.
+ */
+public class RegressionSuite
+{
+ public static void main(String[] args) throws Exception
+ {
+  if (2 > args.length)
+  {
+   System.err.println("Please enter the corpus directory and the budget file.");
+   System.exit(2);
+  }
+  File dir = new File(args[0]);
+  File budgetFile = new File(args[1]);
+  boolean record = 2 < args.length && "record".equals(args[2]);
+  Properties budgets = new Properties();
+  if (budgetFile.exists())
+  {
+   InputStream in = new FileInputStream(budgetFile);
+   try
+   {
+    budgets.load(in);
+   }
+   finally
+   {
+    in.close();
+   }
+  }
+  RegressionSuite suite = new RegressionSuite();
+  Properties recorded = new Properties();
+  int failures = 0;
+  List<File> files = new ArrayList<File>();
+  for (String name : Corpus.DOCUMENTS)
+  {
+   File file = Corpus.generate(name, dir);
+   files.add(file);
+   Measurement result = suite.measure(file);
+   System.out.printf("%-10s %8.1f MB/s  peak heap %7.1f MB  %,14d bytes/MB  %s%n",
+     name, result.throughput, result.peakHeap, result.allocation, result.digest);
+   if (record)
+    result.record(name, recorded);
+   else
+    failures += result.check(name, budgets);
+  }
+  failures += suite.checkReuse(files);
+  failures += suite.checkSlugIds(dir);
+  failures += suite.checkSpill(files, dir);
+  failures += suite.checkErrors(dir);
+  failures += suite.checkFeed();
+  if (record && 0 == failures)
+  {
+   store(recorded, budgetFile);
+   System.out.println("Recorded budgets in " + budgetFile);
+  }
+  if (0 < failures)
+  {
+   System.err.println(failures + " regression(s) found");
+   System.exit(1);
+  }
+ }
+
+ /**
+  * Transforms a document several times and measures the best run.
+  */
+ public Measurement measure(File file) throws IOException, TransformerException
+ {
+  double megabytes = file.length() / (double)(1 << 20);
+  Measurement result = new Measurement();
+  for (int i = 0; WARMUP_RUNS > i; i++)
+   transform(transformer, file);
+  for (int i = 0; MEASURED_RUNS > i; i++)
+  {
+   System.gc();
+   resetPeakHeap();
+   long allocated = allocatedBytes();
+   long start = System.nanoTime();
+   String digest = transform(transformer, file);
+   long elapsed = System.nanoTime() - start;
+   if (0 <= allocated)
+    allocated = allocatedBytes() - allocated;
+   double throughput = megabytes / (elapsed / 1e9);
+   if (throughput > result.throughput)
+    result.throughput = throughput;
+   double peakHeap = peakHeap() / (double)(1 << 20);
+   if (0 == i || peakHeap < result.peakHeap)
+    result.peakHeap = peakHeap;
+   long allocation = 0 > allocated ? -1 : (long)(allocated / megabytes);
+   if (0 == i || allocation < result.allocation)
+    result.allocation = allocation;
+   if (null != result.digest && !result.digest.equals(digest))
+    throw new IllegalStateException("Results of " + file + " differ between runs");
+   result.digest = digest;
+  }
+  return result;
+ }
+
+ /**
+  * Transforms documents {@link #REUSE_ROUNDS several times} with a single
+  * transformer, in their original order, in reverse and then shuffled,
+  * and compares each result with the result of a new transformer.
+  * Then does the same with {@link #REUSE_DOCUMENTS} small generated
+  * documents with different TOC settings, some of which are invalid
+  * or exceed the {@link #REUSE_BUDGET memory budget}, comparing errors
+  * as well as results.
+  * @return the number of results that differ
+  */
+ public int checkReuse(List<File> files) throws IOException, TransformerException
+ {
+  Map<File, String> expected = new HashMap<File, String>();
+  for (File file : files)
+   expected.put(file, transform(new Transformer(), file));
+  Transformer reused = new Transformer();
+  List<File> order = new ArrayList<File>(files);
+  Random random = new Random(REUSE_SEED);
+  int failures = 0, count = 0;
+  for (int round = 0; REUSE_ROUNDS > round; round++)
+  {
+   if (1 == round)
+    Collections.reverse(order);
+   else if (1 < round)
+    Collections.shuffle(order, random);
+   for (File file : order)
+   {
+    count++;
+    if (!expected.get(file).equals(transform(reused, file)))
+    {
+     System.err.println(file.getName() + ": result of a reused transformer differs in round "
+       + (round + 1) + " from that of a new transformer");
+     failures++;
+    }
+   }
+  }
+  List<String> documents = new ArrayList<String>(REUSE_DOCUMENTS);
+  Map<String, String> outcomes = new HashMap<String, String>();
+  for (int i = 0; REUSE_DOCUMENTS > i; i++)
+  {
+   String document = generateDocument(random);
+   documents.add(document);
+   Transformer fresh = new Transformer();
+   fresh.setMemoryBudget(REUSE_BUDGET);
+   outcomes.put(document, outcome(fresh, document));
+  }
+  Collections.shuffle(documents, random);
+  reused.setMemoryBudget(REUSE_BUDGET);
+  for (String document : documents)
+  {
+   count++;
+   if (!outcomes.get(document).equals(outcome(reused, document)))
+   {
+    System.err.println("Outcome of a reused transformer differs from that of a new transformer for:\n"
+      + document);
+    failures++;
+   }
+  }
+  System.out.printf("reuse      %d documents transformed by one transformer, %d differ%n", count, failures);
+  return failures;
+ }
+
+ /**
+  * Transforms a document and returns the digest of the result or the
+  * message of the error that stopped the transformation.
+  */
+ protected String outcome(Transformer transformer, String document)
+ {
+  StringWriter out = new StringWriter();
+  try
+  {
+   transformer.transform(new StreamSource(new StringReader(document)), new StreamResult(out));
+  }
+  catch (TransformerException e)
+  {
+   return "failed: " + e.getMessageAndLocation();
+  }
+  return digest(out);
+ }
+
+ /**
+  * Feeds a document to a transformer in portions of the same size and
+  * returns the digest of the result or the message of the error that
+  * stopped the transformation, like {@link #outcome(Transformer, String)}.
+  */
+ protected String feedOutcome(Transformer transformer, String document, int portion)
+ {
+  StringWriter out = new StringWriter();
+  try
+  {
+   byte[] bytes = document.getBytes(Corpus.ENCODING.name());
+   Transformer.Feed feed = transformer.openFeed(new StreamResult(out));
+   for (int at = 0; bytes.length > at; at += portion)
+    feed.add(ByteBuffer.wrap(bytes, at, Math.min(portion, bytes.length - at)));
+   feed.finish();
+  }
+  catch (TransformerException e)
+  {
+   return "failed: " + e.getMessageAndLocation();
+  }
+  catch (UnsupportedEncodingException e)
+  {
+   throw new IllegalStateException(e);
+  }
+  return digest(out);
+ }
+
+ private static String digest(StringWriter out)
+ {
+  try
+  {
+   return hex(MessageDigest.getInstance("SHA-1").digest(out.toString().getBytes(Corpus.ENCODING.name())));
+  }
+  catch (NoSuchAlgorithmException e)
+  {
+   throw new IllegalStateException(e);
+  }
+  catch (UnsupportedEncodingException e)
+  {
+   throw new IllegalStateException(e);
+  }
+ }
+
+ /**
+  * Generates a small document with random TOC settings and outline
+  * elements, which are often given the same text or ids that collide
+  * with ids derived from their text. About one document in 25 is invalid.
+  */
+ protected static String generateDocument(Random random)
+ {
+  StringBuilder doc = new StringBuilder("<html><head><title>Reused</title></head><body>\n<?");
+  doc.append(TocPIParser.PI_TARGET)
+   .append(0 == random.nextInt(50) ? " version=\"2.0\"" : " version=\"1.0\"")
+   .append(" outline=\"").append(REUSE_OUTLINES[random.nextInt(REUSE_OUTLINES.length)])
+   .append("\" linetags=\"li\" blocktags=\"ul\"");
+  if (random.nextBoolean())
+   doc.append(" ids=\"slug\"");
+  if (0 == random.nextInt(4))
+   doc.append(" skip-empty=\"true\"");
+  if (0 == random.nextInt(4))
+   doc.append(" dedupe=\"true\"");
+  if (0 == random.nextInt(4))
+   doc.append(" maxlength=\"").append(4 + random.nextInt(8)).append('"');
+  if (0 == random.nextInt(4))
+   doc.append(" maxdepth=\"").append(1 + random.nextInt(2)).append('"');
+  doc.append(" /?>\n");
+  for (int i = random.nextInt(24); 0 < i; i--)
+  {
+   String text = REUSE_TEXTS[random.nextInt(REUSE_TEXTS.length)];
+   int kind = random.nextInt(4);
+   if (0 == kind)
+    doc.append("<p id=\"").append(IdSet.slug(text)).append(random.nextBoolean() ? "" : "-2")
+     .append("\">").append(text).append("</p>\n");
+   else if (1 == kind)
+    doc.append("<p>").append(text).append("</p>\n");
+   else
+   {
+    int level = 1 + random.nextInt(3);
+    doc.append("<h").append(level).append('>').append(text).append("</h").append(level).append(">\n");
+   }
+  }
+  if (0 == random.nextInt(50))
+   doc.append("<p>unclosed\n");
+  doc.append("</body></html>\n");
+  return doc.toString();
+ }
+
+ /**
+  * Transforms the {@link #SLUG_CLASH} document with and without an
+  * {@link OutlineScanner outline found in advance} and checks that
+  * both results give the outline elements the {@link #SLUG_CLASH_IDS
+  * expected ids} in document order. Also checks that the ids do not
+  * change when the content following the TOC is spilled to a file
+  * before the clashing id is found.
+  * @return the number of results that differ from the expectation
+  */
+ public int checkSlugIds(File dir) throws IOException, TransformerException
+ {
+  File file = save(dir, "slug-clash.html", SLUG_CLASH);
+  Transformer scanned = new Transformer();
+  OutlineScanner scanner = new OutlineScanner(file, Corpus.ENCODING);
+  scanned.setOutline(scanner.scan(2));
+  scanned.setReservedIds(scanner.getIds());
+  String[] results = { transcript(new Transformer(), file), transcript(scanned, file) };
+  String[] modes = { "indexing", "the scanner prepass" };
+  int failures = 0;
+  for (int i = 0; results.length > i; i++)
+  {
+   int at = 0;
+   for (String id : SLUG_CLASH_IDS)
+   {
+    at = results[i].indexOf("href=\"#" + id + '"', at);
+    if (0 > at)
+     break;
+   }
+   if (0 > at)
+   {
+    System.err.println(file.getName() + ": TOC ids assigned with " + modes[i]
+      + " are not " + Arrays.toString(SLUG_CLASH_IDS) + " in document order");
+    failures++;
+   }
+  }
+  if (!results[0].equals(results[1]))
+  {
+   System.err.println(file.getName() + ": results with and without the scanner prepass differ");
+   failures++;
+  }
+  if (!transform(new Transformer(), file).equals(spill(file, Corpus.ENCODING)))
+  {
+   System.err.println(file.getName() + ": result spilled to a file differs from the result in memory");
+   failures++;
+  }
+  System.out.printf("slug ids   %d result(s) with unexpected ids%n", failures);
+  return failures;
+ }
+
+ /**
+  * Transforms documents with a memory budget that makes the transformer
+  * spill the content following the TOC to a file, and compares each result
+  * with that of a transformation in memory. Besides the given documents,
+  * checks the {@link #SPILL_MARKUP} document. Each document is transformed
+  * into a UTF-8 and an ASCII stream, so that characters that the output
+  * cannot encode are escaped.
+  * @return the number of results that differ or could not be spilled
+  */
+ public int checkSpill(List<File> files, File dir) throws IOException, TransformerException
+ {
+  List<File> checked = new ArrayList<File>(files);
+  checked.add(save(dir, "spill-markup.html", SPILL_MARKUP));
+  int failures = 0, count = 0;
+  for (File file : checked)
+   for (Charset encoding : SPILL_ENCODINGS)
+   {
+    count++;
+    String expected = transform(new Transformer(), file, encoding);
+    String digest = spill(file, encoding);
+    if (null == digest)
+    {
+     System.err.println(file.getName() + ": no memory budget made the content spill");
+     failures++;
+    }
+    else if (!expected.equals(digest))
+    {
+     System.err.println(file.getName() + ": " + encoding
+       + " result spilled to a file differs from the result in memory");
+     failures++;
+    }
+   }
+  System.out.printf("spill      %d results spilled to a file, %d differ%n", count, failures);
+  return failures;
+ }
+
+ /**
+  * Transforms a document with the {@link #SPILL_BUDGET smallest memory budget}
+  * that the TOC fits in, so that the content following the TOC spills to
+  * a file as early as possible.
+  * @param encoding the encoding of the result
+  * @return the digest of the result or <code>null</code> if the content
+  * did not spill
+  */
+ protected String spill(File file, Charset encoding) throws IOException, TransformerException
+ {
+  SpillCounter spilling = new SpillCounter();
+  for (long budget = SPILL_BUDGET;; budget *= 4)
+  {
+   spilling.setMemoryBudget(budget);
+   spilling.spills = 0;
+   try
+   {
+    String digest = transform(spilling, file, encoding);
+    return 0 == spilling.spills ? null : digest;
+   }
+   catch (TransformerException e)
+   {
+    // the TOC alone takes more than the budget
+    if (!isOverBudget(e))
+     throw e;
+   }
+  }
+ }
+
+ /**
+  * Checks and transforms documents with {@link #INVALID_PIS invalid
+  * instructions} while collecting errors, and compares the diagnostics
+  * of the two, which should report the same errors at the same locations.
+  * @return the number of documents with different diagnostics
+  */
+ public int checkErrors(File dir) throws IOException
+ {
+  int failures = 0;
+  for (int i = 0; INVALID_PIS.length > i; i++)
+  {
+   File file = save(dir, "invalid-pi-" + i + ".html",
+     "<html><head><title>Invalid instruction</title></head><body>\n<?"
+     + TocPIParser.PI_TARGET + ' ' + INVALID_PIS[i] + " /?>\n<h2>Intro</h2>\n</body></html>\n");
+   String checked = diagnose(file, true);
+   String transformed = diagnose(file, false);
+   if (!checked.equals(transformed))
+   {
+    System.err.println(file.getName() + ": diagnostics of the check\n" + checked
+      + "differ from those of the transformation\n" + transformed);
+    failures++;
+   }
+  }
+  System.out.printf("errors     %d document(s) diagnosed differently%n", failures);
+  return failures;
+ }
+
+ /**
+  * Transforms documents with {@link #FEED_CONTENTS brackets in their text}
+  * by feeding them to a transformer in {@link #FEED_PORTIONS portions of
+  * different sizes}, and compares the outcomes with those of the StAX
+  * parser, which should accept the same documents and reject the others
+  * with the same errors at the same locations.
+  * @return the number of outcomes that differ
+  */
+ public int checkFeed()
+ {
+  int failures = 0;
+  for (String content : FEED_CONTENTS)
+  {
+   String document = "<html><head><title>Brackets</title></head><body>\n<?"
+     + TocPIParser.PI_TARGET + " version=\"1.0\" outline=\"h2\" linetags=\"li\" blocktags=\"ul\" /?>\n"
+     + "<h2>Intro</h2>\n<p>" + content + "</p>\n</body></html>\n";
+   String parsed = outcome(new Transformer(), document);
+   for (int portion : FEED_PORTIONS)
+   {
+    String fed = feedOutcome(new Transformer(), document, portion);
+    if (!parsed.equals(fed))
+    {
+     System.err.println("Document fed in portions of " + portion + " bytes has outcome\n" + fed
+       + "\ninstead of\n" + parsed + "\nfor text: " + content);
+     failures++;
+    }
+   }
+  }
+  System.out.printf("feed       %d outcome(s) of fed documents differ%n", failures);
+  return failures;
+ }
+
+ /**
+  * Checks or transforms a document while collecting errors.
+  * @return the diagnostics in the format written by {@link ProcessFile}
+  */
+ protected String diagnose(File file, boolean check) throws IOException
+ {
+  Transformer transformer = new Transformer();
+  ErrorHandler handler = new ErrorHandler().collect(true);
+  transformer.setErrorListener(handler);
+  InputStream in = new BufferedInputStream(new FileInputStream(file));
+  try
+  {
+   StreamSource source = new StreamSource(new InputStreamReader(in, Corpus.ENCODING));
+   if (check)
+    transformer.check(source);
+   else
+    transformer.transform(source, new StreamResult(new StringWriter()));
+  }
+  catch (TransformerException e)
+  {
+   handler.record(ErrorHandler.Severity.FATAL, e);
+  }
+  catch (RuntimeException e)
+  {
+   return "unexpected " + e + '\n';
+  }
+  finally
+  {
+   in.close();
+  }
+  StringBuilder out = new StringBuilder();
+  handler.writeDiagnostics(out, file.getName());
+  return out.toString();
+ }
+
+ /**
+  * Transforms a document and returns the digest of the UTF-8 encoded result.
+  */
+ protected String transform(Transformer transformer, File file) throws IOException, TransformerException
+ {
+  return transform(transformer, file, Corpus.ENCODING);
+ }
+
+ /**
+  * Transforms a document and returns the digest of the result.
+  * @param encoding the encoding of the result
+  */
+ protected String transform(Transformer transformer, File file, Charset encoding)
+  throws IOException, TransformerException
+ {
+  MessageDigest digest;
+  try
+  {
+   digest = MessageDigest.getInstance("SHA-1");
+  }
+  catch (NoSuchAlgorithmException e)
+  {
+   throw new IllegalStateException(e);
+  }
+  OutputStream sink = new OutputStream()
+  {
+   @Override
+   public void write(int b)
+   {
+   }
+
+   @Override
+   public void write(byte[] b, int off, int len)
+   {
+   }
+  };
+  Writer out = new OutputStreamWriter(new DigestOutputStream(sink, digest), encoding);
+  transform(transformer, file, out);
+  return hex(digest.digest());
+ }
+
+ protected static String hex(byte[] digest)
+ {
+  StringBuilder hex = new StringBuilder();
+  for (byte b : digest)
+   hex.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+  return hex.toString();
+ }
+
+ /**
+  * Writes a document to a file in the corpus directory.
+  */
+ protected File save(File dir, String name, String document) throws IOException
+ {
+  File file = new File(dir, name);
+  Writer out = new OutputStreamWriter(new FileOutputStream(file), Corpus.ENCODING);
+  try
+  {
+   out.write(document);
+  }
+  finally
+  {
+   out.close();
+  }
+  return file;
+ }
+
+ protected static boolean isOverBudget(Throwable error)
+ {
+  for (; null != error; error = error.getCause())
+   if (error instanceof MemoryBudgetException)
+    return true;
+  return false;
+ }
+
+ /**
+  * Transforms a document and returns the result.
+  */
+ protected String transcript(Transformer transformer, File file) throws IOException, TransformerException
+ {
+  StringWriter out = new StringWriter();
+  transform(transformer, file, out);
+  return out.toString();
+ }
+
+ protected void transform(Transformer transformer, File file, Writer out)
+  throws IOException, TransformerException
+ {
+  InputStream in = new BufferedInputStream(new FileInputStream(file));
+  try
+  {
+   transformer.transform(new StreamSource(new InputStreamReader(in, Corpus.ENCODING)),
+     new StreamResult(out));
+   out.flush();
+  }
+  finally
+  {
+   in.close();
+  }
+ }
+
+ protected static void resetPeakHeap()
+ {
+  for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+   if (MemoryType.HEAP == pool.getType())
+    pool.resetPeakUsage();
+ }
+
+ protected static long peakHeap()
+ {
+  long peak = 0;
+  for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+   if (MemoryType.HEAP == pool.getType())
+    peak += pool.getPeakUsage().getUsed();
+  return peak;
+ }
+
+ /**
+  * Returns the number of bytes allocated by the current thread,
+  * or <code>-1</code> if the JVM does not report it.
+  */
+ protected static long allocatedBytes()
+ {
+  if (null == allocatedBytesMethod)
+   return -1;
+  try
+  {
+   return (Long)allocatedBytesMethod.invoke(ManagementFactory.getThreadMXBean(),
+     Thread.currentThread().getId());
+  }
+  catch (Exception e)
+  {
+   return -1;
+  }
+ }
+
+ protected static void store(Properties properties, File file) throws IOException
+ {
+  PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "ISO-8859-1"));
+  try
+  {
+   out.println("# Golden digests and performance budgets of the regression suite.");
+   out.println("# Recorded with: ant -Dbench.record=true bench-regress");
+   for (String name : Corpus.DOCUMENTS)
+    for (String key : KEYS)
+    {
+     String value = properties.getProperty(name + key);
+     if (null != value)
+      out.println(name + key + '=' + value);
+    }
+  }
+  finally
+  {
+   out.close();
+  }
+ }
+
+ /**
+  * Ratio of recorded throughput budgets to measured throughput.
+  */
+ public static final double THROUGHPUT_MARGIN = 0.5;
+
+ /**
+  * Ratio of recorded memory budgets to measured memory usage.
+  */
+ public static final double MEMORY_MARGIN = 1.5;
+
+ /**
+  * Number of times the {@link #checkReuse(List) reuse check} transforms
+  * each document.
+  */
+ public static final int REUSE_ROUNDS = 5;
+
+ /**
+  * Number of generated documents transformed by a reused transformer.
+  */
+ public static final int REUSE_DOCUMENTS = 4000;
+
+ /**
+  * Memory budget of the transformers that transform generated documents,
+  * which makes the content of most of them spill to a file.
+  */
+ public static final long REUSE_BUDGET = 1 << 10;
+
+ /**
+  * Outlines of the generated documents.
+  */
+ public static final String[] REUSE_OUTLINES = { "h2", "h2 h3", "h1 h2 h3" };
+
+ /**
+  * Text of the elements in the generated documents.
+  */
+ public static final String[] REUSE_TEXTS = {
+  "Intro", "Intro", "Getting Started", "Caf\u00e9 &amp; Bar", "", " ",
+  "Notes on a heading that is much longer than the others"
+ };
+
+ protected static final long REUSE_SEED = 27L;
+
+ /**
+  * Document with an id before the TOC and an id after it that
+  * collide with ids derived from its headings.
+  */
+ public static final String SLUG_CLASH = "<html><head><title>Slug clash</title></head><body>\n"
+   + "<p id=\"intro\">first</p>\n"
+   + "<?" + TocPIParser.PI_TARGET + " version=\"1.0\" outline=\"h2\" linetags=\"li\""
+   + " blocktags=\"ul\" ids=\"slug\" /?>\n"
+   + "<h2>Intro</h2>\n<p>a</p>\n<h2>Intro</h2>\n"
+   + "<p>lorem ipsum dolor sit amet consectetur adipiscing elit</p>\n"
+   + "<p>lorem ipsum dolor sit amet consectetur adipiscing elit</p>\n"
+   + "<p>lorem ipsum dolor sit amet consectetur adipiscing elit</p>\n"
+   + "<p>lorem ipsum dolor sit amet consectetur adipiscing elit</p>\n"
+   + "<p id=\"intro-2\">later</p>\n"
+   + "</body></html>\n";
+
+ /**
+  * Ids the TOC of {@link #SLUG_CLASH} should link to, in order.
+  */
+ public static final String[] SLUG_CLASH_IDS = { "intro-3", "intro-4" };
+
+ /**
+  * Attributes of TOC instructions that are invalid in different ways.
+  */
+ public static final String[] INVALID_PIS = {
+  "version=\"2.0\" outline=\"h2\"",
+  "version=\"1.0\" outline=\"h2\" ids=\"bogus\"",
+  "version=\"1.0\" outline=\"h2\" title=\"&bogus;\"",
+  "version=\"1.0\" outline=\"\""
+ };
+
+ /**
+  * Texts with brackets, some of which end a CDATA section
+  * that has not been started.
+  */
+ public static final String[] FEED_CONTENTS = {
+  "]]&gt; ]] &gt; ]&gt;]] ]]]",
+  "a]]>b",
+  "\n ab]]>\n",
+  "&amp;]]>",
+  "]]]]>"
+ };
+
+ /**
+  * Sizes of the portions in which {@link #checkFeed()} feeds documents.
+  */
+ public static final int[] FEED_PORTIONS = { 1, 2, 3, 1 << 16 };
+
+ /**
+  * Document with comments, CDATA sections, processing instructions and
+  * attributes that hold characters some encodings cannot represent.
+  */
+ public static final String SPILL_MARKUP = "<html><head><title>Spilled markup</title></head><body>\n"
+   + "<?" + TocPIParser.PI_TARGET + " version=\"1.0\" outline=\"h2\" linetags=\"li\" blocktags=\"ul\" /?>\n"
+   + "<h2>Smile \ud83d\ude00 caf&#xe9; &#x2014;</h2>\n"
+   + "<!-- note \ud83d\ude00 caf\u00e9 \u2014 -->\n"
+   + "<p title=\"\ud83d\ude00 caf\u00e9 &quot;q&quot;\">text \ud83d\ude00 caf\u00e9 &amp; &lt; ]]&gt;</p>\n"
+   + "<![CDATA[cdata \ud83d\ude00 caf\u00e9 <raw>]]>\n"
+   + "<?app data \ud83d\ude00 caf\u00e9 ?>\n"
+   + "<p>lorem ipsum dolor sit amet consectetur adipiscing elit</p>\n"
+   + "<p>lorem ipsum dolor sit amet consectetur adipiscing elit</p>\n"
+   + "</body></html>\n";
+
+ /**
+  * Encodings of the results compared by {@link #checkSpill(List, File)}.
+  */
+ public static final Charset[] SPILL_ENCODINGS = { Corpus.ENCODING, Charset.forName("US-ASCII") };
+
+ /**
+  * The first memory budget tried by {@link #checkSpill(List, File)},
+  * which is raised until the TOC of a document fits.
+  */
+ public static final long SPILL_BUDGET = 1 << 9;
+ protected static final int WARMUP_RUNS = 3;
+ protected static final int MEASURED_RUNS = 5;
+ protected static final String[] KEYS = { ".digest", ".throughput.min", ".heap.max", ".alloc.max" };
+
+ /**
+  * Transformer that counts the files it spills to.
+  */
+ protected static class SpillCounter extends Transformer
+ {
+  @Override
+  protected Spill openSpill() throws IOException
+  {
+   spills++;
+   return super.openSpill();
+  }
+
+  protected int spills;
+ }
+
+ protected static class Measurement
+ {
+  public void record(String name, Properties budgets)
+  {
+   budgets.setProperty(name + ".digest", digest);
+   budgets.setProperty(name + ".throughput.min", String.format(Locale.ROOT, "%.1f", throughput * THROUGHPUT_MARGIN));
+   budgets.setProperty(name + ".heap.max", String.format(Locale.ROOT, "%.1f", peakHeap * MEMORY_MARGIN));
+   if (0 <= allocation)
+    budgets.setProperty(name + ".alloc.max", Long.toString((long)(allocation * MEMORY_MARGIN)));
+  }
+
+  /**
+   * @return the number of failed checks
+   */
+  public int check(String name, Properties budgets)
+  {
+   int failures = 0;
+   String value = budgets.getProperty(name + ".digest");
+   if (null != value && !value.equals(digest))
+   {
+    System.err.println(name + ": result differs from the golden digest " + value);
+    failures++;
+   }
+   value = budgets.getProperty(name + ".throughput.min");
+   if (null != value && Double.parseDouble(value) > throughput)
+   {
+    System.err.printf("%s: throughput %.1f MB/s is below the budget of %s MB/s%n", name, throughput, value);
+    failures++;
+   }
+   value = budgets.getProperty(name + ".heap.max");
+   if (null != value && Double.parseDouble(value) < peakHeap)
+   {
+    System.err.printf("%s: peak heap %.1f MB is over the budget of %s MB%n", name, peakHeap, value);
+    failures++;
+   }
+   value = budgets.getProperty(name + ".alloc.max");
+   if (null != value && 0 <= allocation && Long.parseLong(value) < allocation)
+   {
+    System.err.printf("%s: allocation of %d bytes/MB is over the budget of %s bytes/MB%n",
+      name, allocation, value);
+    failures++;
+   }
+   return failures;
+  }
+
+  private String digest;
+  private double throughput, peakHeap;
+  private long allocation;
+ }
+
+ private static final Method allocatedBytesMethod;
+
+ static
+ {
+  Method method;
+  try
+  {
+   method = Class.forName("com.sun.management.ThreadMXBean")
+     .getMethod("getThreadAllocatedBytes", long.class);
+  }
+  catch (Exception unsupported)
+  {
+   method = null;
+  }
+  allocatedBytesMethod = method;
+ }
+
+ private Transformer transformer = new Transformer();
+}
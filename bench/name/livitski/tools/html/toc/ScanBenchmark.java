@@ -0,0 +1,150 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how the {@link OutlineScanner outline scanner} scales
+ * with the number of threads. Arguments:
+ * <ol>
+ * <li>size of the generated document in megabytes, or the location
+ * of an existing UTF-8 document to scan</li>
+ * <li>(optional) the maximum number of threads, defaults to the number
+ * of available processors</li>
+ * </ol>
+ * The scan is timed for 1, 2, 4, ... threads up to the maximum,
+ * and the throughput and speedup of each run are printed on the
+ * standard output.
+ */
+public class ScanBenchmark
+{
+ public static void main(String[] args) throws IOException
+ {
+  if (0 == args.length)
+  {
+   System.err.println("Please enter the document size in MB or location of a document to scan.");
+   System.exit(1);
+  }
+  int maxThreads = 1 < args.length ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+  File file = new File(args[0]);
+  boolean generated = !file.exists();
+  if (generated)
+  {
+   file = File.createTempFile("htmltoc-bench", ".html");
+   generate(file, Long.parseLong(args[0]) << 20);
+  }
+  try
+  {
+   OutlineScanner scanner = new OutlineScanner(file, UTF8);
+   double megabytes = file.length() / (double)(1 << 20);
+   System.out.printf("Scanning %.1f MB in %s%n", megabytes, file);
+   for (int i = 0; WARMUP_RUNS > i; i++)
+    scanner.scan(maxThreads);
+   double base = 0;
+   for (int threads = 1;; threads = Math.min(threads * 2, maxThreads))
+   {
+    long best = Long.MAX_VALUE;
+    int entries = 0;
+    for (int i = 0; MEASURED_RUNS > i; i++)
+    {
+     long start = System.nanoTime();
+     List<OutlineEntry> outline = scanner.scan(threads);
+     best = Math.min(best, System.nanoTime() - start);
+     entries = null == outline ? 0 : outline.size();
+    }
+    double seconds = best / 1e9;
+    if (1 == threads)
+     base = seconds;
+    System.out.printf("%3d thread(s): %8.3f s %9.1f MB/s  speedup %5.2f  (%d entries)%n",
+      threads, seconds, megabytes / seconds, base / seconds, entries);
+    if (maxThreads == threads)
+     break;
+   }
+  }
+  finally
+  {
+   if (generated)
+    file.delete();
+  }
+ }
+
+ /**
+  * Writes a synthetic document with a two-level outline, comments
+  * and CDATA sections of a given approximate size.
+  */
+ protected static void generate(File file, long size) throws IOException
+ {
+  Random random = new Random(size);
+  Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+  try
+  {
+   out.write("<html><head><title>Benchmark</title></head><body>\n<?"
+     + TocPIParser.PI_TARGET
+     + " version=\"1.0\" outline=\"h2,h3\" linetags=\"li\" blocktags=\"ul.toc,ul\" /?>\n");
+   long written = 0;
+   for (int i = 0; size > written; i++)
+   {
+    StringBuilder chunk = new StringBuilder();
+    int kind = random.nextInt(20);
+    if (0 == kind)
+     chunk.append("<h2>Chapter ").append(i).append(" &amp; <em>more</em></h2>\n");
+    else if (3 > kind)
+     chunk.append("<h3 id=\"s").append(i).append("\">Section ").append(i).append("</h3>\n");
+    else if (4 > kind)
+     chunk.append("<!-- <h2>not a heading</h2> ").append(filler(random, 4000)).append(" -->\n");
+    else if (5 > kind)
+     chunk.append("<pre><![CDATA[ <h3>not a heading</h3> ").append(filler(random, 4000)).append(" ]]></pre>\n");
+    else
+     chunk.append("<p class=\"body\">").append(filler(random, 2000)).append("</p>\n");
+    out.write(chunk.toString());
+    written += chunk.length();
+   }
+   out.write("</body></html>\n");
+  }
+  finally
+  {
+   out.close();
+  }
+ }
+
+ protected static String filler(Random random, int maxLength)
+ {
+  StringBuilder text = new StringBuilder();
+  int length = random.nextInt(maxLength);
+  while (length > text.length())
+   text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+  return text.toString();
+ }
+
+ protected static final Charset UTF8 = Charset.forName("UTF-8");
+ protected static final int WARMUP_RUNS = 2;
+ protected static final int MEASURED_RUNS = 3;
+ private static final String[] WORDS = {
+  "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit"
+ };
+}
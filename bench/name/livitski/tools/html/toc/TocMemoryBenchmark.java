@@ -0,0 +1,145 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Measures the memory that a {@link TocFormatter formatter} holds for
+ * a TOC with many items, and the time it takes to render that TOC.
+ * The items are those of a data dictionary: a heading for each table
+ * and a subheading with an id for each column. Arguments:
+ * <ol>
+ * <li>(optional) the number of items, defaults to one million</li>
+ * <li>(optional) the word <code>offheap</code> to
+ * {@link TocFormatter#setOffHeap(boolean) store} the items
+ * outside of the Java heap</li>
+ * </ol>
+ * The benchmark prints the heap retained by the formatter once all items
+ * have been added, the footprint the store reports, and the size of
+ * the rendered markup, which is what the formatter would hold if it
+ * rendered the TOC as the items arrive.
+ */
+public class TocMemoryBenchmark
+{
+ public static void main(String[] args) throws XMLStreamException, IOException
+ {
+  int count = 0 < args.length ? Integer.parseInt(args[0]) : 1000000;
+  boolean offHeap = 1 < args.length && "offheap".equals(args[1]);
+  TocPIData settings = new TocPIData();
+  settings.setVersion("1.0");
+  settings.setOutline("h2,h3");
+  settings.setLinetags("li,li");
+  settings.setBlocktags("ul.toc,ul");
+  XMLEventFactory factory = XMLEventFactory.newFactory();
+  XMLEvent table = factory.createStartElement("", "", "h2");
+  XMLEvent tableEnd = factory.createEndElement("", "", "h2");
+  XMLEvent column = factory.createStartElement("", "", "h3");
+  XMLEvent columnEnd = factory.createEndElement("", "", "h3");
+
+  Runtime runtime = Runtime.getRuntime();
+  settle();
+  long before = runtime.totalMemory() - runtime.freeMemory();
+  TocFormatter formatter = TocFormatter.forPI(settings, null);
+  formatter.setOffHeap(offHeap);
+  long start = System.nanoTime();
+  for (int i = 0; count > i; i++)
+  {
+   boolean heading = 0 == i % COLUMNS_PER_TABLE;
+   formatter.openItem(heading ? table : column, heading ? "t" + i : "c" + i);
+   formatter.addContent(factory.createCharacters(heading
+     ? "Table customer_" + i / COLUMNS_PER_TABLE
+     : "Column customer_" + i / COLUMNS_PER_TABLE + ".attribute_" + i % COLUMNS_PER_TABLE + " & notes"));
+   formatter.closeItem(heading ? tableEnd : columnEnd);
+  }
+  formatter.end();
+  double indexing = (System.nanoTime() - start) / 1e9;
+  settle();
+  long retained = runtime.totalMemory() - runtime.freeMemory() - before;
+  long footprint = formatter.getEntries().getFootprint();
+
+  CountingWriter out = new CountingWriter();
+  start = System.nanoTime();
+  formatter.detach().writeTo(out, null);
+  double rendering = (System.nanoTime() - start) / 1e9;
+
+  final double MB = 1 << 20;
+  System.out.printf("%,d items stored %s%n", count, offHeap ? "off heap" : "on heap");
+  System.out.printf("heap retained    %8.1f MB  %6.1f bytes/item%n", retained / MB, retained / (double)count);
+  System.out.printf("store footprint  %8.1f MB  %6.1f bytes/item%n", footprint / MB, footprint / (double)count);
+  System.out.printf("rendered markup  %8.1f MB  %6.1f bytes/item as a char buffer%n",
+    2 * out.count / MB, 2 * out.count / (double)count);
+  System.out.printf("indexing %.3f s, rendering %.3f s%n", indexing, rendering);
+ }
+
+ protected static final int COLUMNS_PER_TABLE = 40;
+
+ protected static void settle()
+ {
+  for (int i = 0; 4 > i; i++)
+  {
+   System.gc();
+   try
+   {
+    Thread.sleep(50);
+   }
+   catch (InterruptedException e)
+   {
+    Thread.currentThread().interrupt();
+    return;
+   }
+  }
+ }
+
+ /**
+  * Counts the characters written, discarding them.
+  */
+ protected static class CountingWriter extends Writer
+ {
+  @Override
+  public void write(char[] cbuf, int off, int len)
+  {
+   count += len;
+  }
+
+  @Override
+  public Writer append(CharSequence csq, int start, int end)
+  {
+   count += end - start;
+   return this;
+  }
+
+  @Override
+  public void flush()
+  {
+  }
+
+  @Override
+  public void close()
+  {
+  }
+
+  protected long count;
+ }
+}
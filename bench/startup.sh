@@ -0,0 +1,63 @@
+#!/bin/sh
+#
+#  This file is part of HTMLtoc.
+#  Copyright © 2013 Konstantin Livitski
+#
+#  HTMLtoc is free software: you can redistribute it and/or modify
+#  it under the terms of the GNU Affero General Public License as published by
+#  the Free Software Foundation, either version 3 of the License, or
+#  (at your option) any later version.
+#
+#  This program is distributed in the hope that it will be useful,
+#  but WITHOUT ANY WARRANTY; without even the implied warranty of
+#  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+#  GNU Affero General Public License for more details.
+#
+#  You should have received a copy of the GNU Affero General Public License
+#  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+#
+# Measures the time it takes the command-line tool to process a small
+# document, with and without the startup options available.
+# Run `ant jar` first, and `ant cds-archive` to include the class data
+# sharing archive in the comparison. A native executable named `html-toc`
+# in the project's directory is measured as well.
+#
+# Usage: bench/startup.sh [number of runs]
+
+runs=${1:-20}
+cd "`dirname "$0"`/.." || exit 1
+if [ ! -f html-toc.jar ]; then
+ echo "html-toc.jar not found, please run \`ant jar\` first" >&2
+ exit 1
+fi
+classpath=html-toc.jar
+for jar in lib/*.jar; do
+ [ -f "$jar" ] && classpath="$classpath:$jar"
+done
+main=name.livitski.tools.html.toc.ProcessFile
+document=bench/startup.html
+
+measure()
+{
+ label=$1
+ shift
+ "$@" $document > /dev/null || exit 1
+ start=`date +%s%N`
+ i=0
+ while [ $i -lt $runs ]; do
+  "$@" $document > /dev/null || exit 1
+  i=`expr $i + 1`
+ done
+ end=`date +%s%N`
+ printf '%-28s %6d ms\n' "$label" `expr \( $end - $start \) / $runs / 1000000`
+}
+
+measure "default JVM" java -cp $classpath $main
+measure "C1 compiler only" java -XX:TieredStopAtLevel=1 -cp $classpath $main
+if [ -f html-toc.jsa ]; then
+ measure "AppCDS archive" java -XX:SharedArchiveFile=html-toc.jsa -cp $classpath $main
+ measure "AppCDS archive, C1 only" java -XX:SharedArchiveFile=html-toc.jsa -XX:TieredStopAtLevel=1 -cp $classpath $main
+fi
+if [ -x html-toc ]; then
+ measure "native executable" ./html-toc
+fi
@@ -0,0 +1,296 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Emits the phases of a {@link Transformer transformer's} work as
+ * JDK Flight Recorder events. The events belong to the
+ * {@link #CATEGORY} category and are named after the nested classes
+ * of this class with the {@link #EVENT_PREFIX} prefix, e.g.
+ * <code>name.livitski.tools.html.toc.Document</code>. They do not
+ * record stack traces. An event that is not enabled costs a check of
+ * a flag per phase; enabled events are committed when they last longer
+ * than their threshold. The project ships the <code>jfr/htmltoc.jfc</code>
+ * settings that enable these events along with the low overhead events
+ * of the runtime.
+ * This class requires Java 11 or newer.
+ */
+public class FlightRecorderProbe extends TransformerProbe
+{
+ public static final String CATEGORY = "HTMLtoc";
+ public static final String EVENT_PREFIX = "name.livitski.tools.html.toc.";
+
+ @Override
+ public void documentStarted(String systemId, boolean fed)
+ {
+  tocItems = 0;
+  deferredEvents = 0;
+  spilled = false;
+  DocumentEvent event = new DocumentEvent();
+  if (!event.isEnabled())
+   return;
+  event.begin();
+  event.systemId = systemId;
+  event.fed = fed;
+  document = event;
+ }
+
+ @Override
+ public void documentEnded(boolean complete)
+ {
+  DocumentEvent event = document;
+  if (null == event)
+   return;
+  document = null;
+  event.end();
+  if (!event.shouldCommit())
+   return;
+  event.complete = complete;
+  event.tocItems = tocItems;
+  event.deferredEvents = deferredEvents;
+  event.spilled = spilled;
+  event.commit();
+ }
+
+ @Override
+ public void piParseStarted()
+ {
+  PIParseEvent event = new PIParseEvent();
+  if (!event.isEnabled())
+   return;
+  event.begin();
+  piParse = event;
+ }
+
+ @Override
+ public void piParseEnded(int length, boolean opening, boolean closing)
+ {
+  PIParseEvent event = piParse;
+  if (null == event)
+   return;
+  piParse = null;
+  event.end();
+  if (!event.shouldCommit())
+   return;
+  event.length = length;
+  event.opening = opening;
+  event.closing = closing;
+  event.commit();
+ }
+
+ @Override
+ public void tocOpened()
+ {
+  tocItems = 0;
+  TocEvent event = new TocEvent();
+  if (!event.isEnabled())
+   return;
+  event.begin();
+  toc = event;
+ }
+
+ @Override
+ public void tocClosed(int items, long footprint, boolean offHeap, boolean streaming)
+ {
+  tocItems = items;
+  TocEvent event = toc;
+  if (null == event)
+   return;
+  toc = null;
+  event.end();
+  if (!event.shouldCommit())
+   return;
+  event.items = items;
+  event.footprint = footprint;
+  event.offHeap = offHeap;
+  event.streaming = streaming;
+  event.commit();
+ }
+
+ @Override
+ public void replayStarted()
+ {
+  ReplayEvent event = new ReplayEvent();
+  if (!event.isEnabled())
+   return;
+  event.begin();
+  replay = event;
+ }
+
+ @Override
+ public void replayEnded(int events, long cost, boolean spilled)
+ {
+  deferredEvents = events;
+  this.spilled = spilled;
+  ReplayEvent event = replay;
+  if (null == event)
+   return;
+  replay = null;
+  event.end();
+  if (!event.shouldCommit())
+   return;
+  event.events = events;
+  event.cost = cost;
+  event.spilled = spilled;
+  event.commit();
+ }
+
+ @Override
+ public void flushStarted()
+ {
+  FlushEvent event = new FlushEvent();
+  if (!event.isEnabled())
+   return;
+  event.begin();
+  flush = event;
+ }
+
+ @Override
+ public void flushEnded(boolean prefix)
+ {
+  FlushEvent event = flush;
+  if (null == event)
+   return;
+  flush = null;
+  event.end();
+  if (!event.shouldCommit())
+   return;
+  event.prefix = prefix;
+  event.commit();
+ }
+
+ @Name(EVENT_PREFIX + "Document")
+ @Label("Document Transformation")
+ @Description("Transformation of a document from its first event to the flush of its output")
+ @Category(CATEGORY)
+ @StackTrace(false)
+ static class DocumentEvent extends Event
+ {
+  @Label("System Id")
+  String systemId;
+
+  @Label("Fed")
+  @Description("Whether the document was supplied in portions")
+  boolean fed;
+
+  @Label("Complete")
+  @Description("Whether the transformation succeeded")
+  boolean complete;
+
+  @Label("TOC Items")
+  int tocItems;
+
+  @Label("Deferred Events")
+  @Description("Events that followed the TOC and were held in memory")
+  int deferredEvents;
+
+  @Label("Spilled")
+  @Description("Whether the content that followed the TOC was spilled to a file")
+  boolean spilled;
+ }
+
+ @Name(EVENT_PREFIX + "PIParse")
+ @Label("Processing Instruction Parse")
+ @Category(CATEGORY)
+ @StackTrace(false)
+ static class PIParseEvent extends Event
+ {
+  @Label("Data Length")
+  @Description("Characters of the instruction's data")
+  int length;
+
+  @Label("Opening")
+  boolean opening;
+
+  @Label("Closing")
+  boolean closing;
+ }
+
+ @Name(EVENT_PREFIX + "Toc")
+ @Label("TOC")
+ @Description("Indexing and formatting of a TOC, from its placeholder to the TOC markup in the output")
+ @Category(CATEGORY)
+ @StackTrace(false)
+ static class TocEvent extends Event
+ {
+  @Label("Items")
+  int items;
+
+  @Label("Footprint")
+  @Description("Memory held by the items")
+  @DataAmount(DataAmount.BYTES)
+  long footprint;
+
+  @Label("Off Heap")
+  boolean offHeap;
+
+  @Label("Streaming")
+  @Description("Whether the TOC was formatted from an outline found in advance")
+  boolean streaming;
+ }
+
+ @Name(EVENT_PREFIX + "Replay")
+ @Label("Deferred Replay")
+ @Description("Output of the content that followed the TOC and was held until the TOC was complete")
+ @Category(CATEGORY)
+ @StackTrace(false)
+ static class ReplayEvent extends Event
+ {
+  @Label("Events")
+  @Description("Events held in memory")
+  int events;
+
+  @Label("Cost")
+  @Description("Estimated memory held by the events")
+  @DataAmount(DataAmount.BYTES)
+  long cost;
+
+  @Label("Spilled")
+  @Description("Whether the content was read back from a spill file")
+  boolean spilled;
+ }
+
+ @Name(EVENT_PREFIX + "Flush")
+ @Label("Output Flush")
+ @Category(CATEGORY)
+ @StackTrace(false)
+ static class FlushEvent extends Event
+ {
+  @Label("Prefix")
+  @Description("Whether the output precedes the TOC placeholder rather than ends the document")
+  boolean prefix;
+ }
+
+ private DocumentEvent document;
+ private PIParseEvent piParse;
+ private TocEvent toc;
+ private ReplayEvent replay;
+ private FlushEvent flush;
+ private int tocItems;
+ private int deferredEvents;
+ private boolean spilled;
+}
@@ -0,0 +1,495 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Flow;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * Transforms a document that arrives as a {@link Flow.Publisher stream}
+ * of byte buffers and publishes the result as another stream of byte
+ * buffers. Each processor handles a single document: subscribe it to
+ * the publisher of the document's bytes, and subscribe the consumer of
+ * the result to the processor.
+ * <p>
+ * The processor {@link Transformer#openFeed(javax.xml.transform.Result) feeds}
+ * each buffer to the transformer on the thread that delivers it, so
+ * that no thread waits for the input. The output is queued in buffers of
+ * {@link #OUTPUT_CHUNK} bytes and published as the consumer requests them.
+ * The processor requests at most {@link #INPUT_WINDOW} buffers ahead,
+ * and requests more only when the queued output has been published.
+ * When {@link #OUTPUT_WINDOW} buffers of output are queued, the thread
+ * that delivers the input waits until the consumer requests them, so
+ * a consumer that falls behind stalls the input, including the content
+ * that the transformer writes out at once when the TOC is complete.
+ * Thus, the memory held per document is bounded by the queued output
+ * and by the content that the transformer holds while the TOC is being
+ * indexed, which is limited by its {@link Transformer#setMemoryBudget(long)
+ * memory budget}. A consumer that stops requesting the result without
+ * cancelling it blocks the publisher of the document.
+ * </p>
+ * <p>
+ * The encoding of the input is detected from the document. The result
+ * is encoded as set by the transformer's {@link OutputKeys#ENCODING}
+ * property, which is UTF-8 for a transformer created by this class.
+ * This class requires Java 9 or newer.
+ * </p>
+ */
+public class TocFlowProcessor implements Flow.Processor<ByteBuffer, ByteBuffer>
+{
+ /**
+  * Creates a processor that uses a new transformer.
+  */
+ public TocFlowProcessor()
+ {
+  this(newTransformer());
+ }
+
+ /**
+  * Creates a processor that uses a specific transformer.
+  * @param transformer the transformer to use, which must not be used
+  * elsewhere until the result is complete
+  */
+ public TocFlowProcessor(Transformer transformer)
+ {
+  this.transformer = transformer;
+ }
+
+ public void onSubscribe(Flow.Subscription subscription)
+ {
+  synchronized (lock)
+  {
+   if (null != upstream)
+   {
+    subscription.cancel();
+    return;
+   }
+   upstream = subscription;
+  }
+  synchronized (transformation)
+  {
+   try
+   {
+    feed = transformer.openFeed(new StreamResult(out));
+   }
+   catch (TransformerException e)
+   {
+    fail(e);
+   }
+  }
+  drain();
+ }
+
+ public void onNext(ByteBuffer item)
+ {
+  synchronized (lock)
+  {
+   outstanding--;
+  }
+  synchronized (transformation)
+  {
+   if (null != feed && feed.isOpen())
+    try
+    {
+     feed.add(item);
+    }
+    catch (TransformerException e)
+    {
+     fail(e);
+    }
+    catch (RuntimeException e)
+    {
+     fail(e);
+    }
+  }
+  drain();
+ }
+
+ public void onError(Throwable error)
+ {
+  synchronized (lock)
+  {
+   inputComplete = true;
+  }
+  abort();
+  fail(new IOException("Error receiving the document: " + error, error));
+  drain();
+ }
+
+ public void onComplete()
+ {
+  synchronized (lock)
+  {
+   inputComplete = true;
+  }
+  synchronized (transformation)
+  {
+   if (null != feed && feed.isOpen())
+    try
+    {
+     feed.finish();
+     out.flush();
+     synchronized (lock)
+     {
+      finished = true;
+     }
+    }
+    catch (TransformerException e)
+    {
+     fail(e);
+    }
+    catch (IOException e)
+    {
+     fail(e);
+    }
+    catch (RuntimeException e)
+    {
+     fail(e);
+    }
+  }
+  drain();
+ }
+
+ /**
+  * Subscribes the consumer of the result. A processor accepts only
+  * one subscriber.
+  */
+ public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber)
+ {
+  boolean accepted;
+  synchronized (lock)
+  {
+   accepted = !subscribed;
+   subscribed = true;
+  }
+  if (!accepted)
+  {
+   subscriber.onSubscribe(new Flow.Subscription()
+   {
+    public void request(long n)
+    {
+    }
+
+    public void cancel()
+    {
+    }
+   });
+   subscriber.onError(new IllegalStateException("The result of a document can only be consumed once"));
+   return;
+  }
+  subscriber.onSubscribe(new OutputSubscription());
+  // the output is published once the subscriber knows its subscription
+  synchronized (lock)
+  {
+   downstream = subscriber;
+  }
+  drain();
+ }
+
+ /**
+  * Number of input buffers requested ahead of the transformer.
+  */
+ public static final int INPUT_WINDOW = 4;
+
+ /**
+  * Size of the buffers published by the processor.
+  */
+ public static final int OUTPUT_CHUNK = 1 << 13;
+
+ /**
+  * Number of output buffers queued before the transformer waits for
+  * the subscriber to request them.
+  */
+ public static final int OUTPUT_WINDOW = 4;
+
+ protected static Transformer newTransformer()
+ {
+  Transformer transformer = new Transformer();
+  transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+  return transformer;
+ }
+
+ /**
+  * Records the first failure of the transformation, which is signalled
+  * to the subscriber in place of the remaining output.
+  */
+ protected void fail(Throwable error)
+ {
+  synchronized (lock)
+  {
+   if (null == failure)
+    failure = error;
+   lock.notifyAll();
+  }
+ }
+
+ /**
+  * Abandons the transformation, freeing the transformer for other documents.
+  */
+ protected void abort()
+ {
+  synchronized (transformation)
+  {
+   if (null != feed)
+    feed.abort();
+  }
+ }
+
+ /**
+  * Performs the signals that the state of the processor calls for:
+  * publishes the queued output as the subscriber requests it, ends the
+  * result, requests more input or cancels it. Only one thread at a time
+  * performs the signals, others leave them to that thread, so that the
+  * subscriber and the publisher receive them in sequence.
+  */
+ protected void drain()
+ {
+  synchronized (lock)
+  {
+   if (draining)
+   {
+    missed = true;
+    return;
+   }
+   draining = true;
+  }
+  for (;;)
+  {
+   Flow.Subscriber<? super ByteBuffer> subscriber = null;
+   ByteBuffer chunk = null;
+   Throwable error = null;
+   Flow.Subscription cancel = null, request = null;
+   long n = 0;
+   synchronized (lock)
+   {
+    boolean stopped = outputCancelled || null != failure;
+    if (stopped && null != upstream && !inputComplete && !inputCancelled)
+    {
+     inputCancelled = true;
+     cancel = upstream;
+    }
+    else if (null != downstream && !terminated
+      && (outputCancelled || null != failure || finished && pending.isEmpty()))
+    {
+     terminated = true;
+     pending.clear();
+     lock.notifyAll();
+     if (!outputCancelled)
+     {
+      subscriber = downstream;
+      error = failure;
+     }
+    }
+    else if (null != downstream && !terminated && 0 < demand && !pending.isEmpty())
+    {
+     subscriber = downstream;
+     chunk = pending.remove();
+     demand--;
+     lock.notifyAll();
+    }
+    else if (!stopped && null != upstream && !inputComplete
+      && pending.isEmpty() && INPUT_WINDOW > outstanding)
+    {
+     request = upstream;
+     n = INPUT_WINDOW - outstanding;
+     outstanding = INPUT_WINDOW;
+    }
+    else if (missed)
+    {
+     missed = false;
+     continue;
+    }
+    else
+    {
+     draining = false;
+     return;
+    }
+   }
+   if (null != cancel)
+   {
+    cancel.cancel();
+    abort();
+   }
+   else if (null != request)
+    request.request(n);
+   else if (null != chunk)
+    subscriber.onNext(chunk);
+   else if (null == subscriber)
+    abort();
+   else if (null == error)
+    subscriber.onComplete();
+   else
+    subscriber.onError(error);
+  }
+ }
+
+ /**
+  * Stream that queues the result in buffers of
+  * {@link TocFlowProcessor#OUTPUT_CHUNK} bytes to be published as the
+  * subscriber requests them.
+  */
+ protected class ResultOutputStream extends OutputStream
+ {
+  @Override
+  public void write(int b) throws IOException
+  {
+   if (buffer.length == count)
+    publish();
+   buffer[count++] = (byte)b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+   while (0 < len)
+   {
+    if (buffer.length == count)
+     publish();
+    int n = Math.min(len, buffer.length - count);
+    System.arraycopy(b, off, buffer, count, n);
+    count += n;
+    off += n;
+    len -= n;
+   }
+  }
+
+  /**
+   * Queues the buffered bytes, so that the content that precedes the
+   * TOC reaches the subscriber as soon as the transformer flushes it.
+   */
+  @Override
+  public void flush() throws IOException
+  {
+   if (0 < count)
+    publish();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+   flush();
+  }
+
+  /**
+   * Queues the buffered bytes and waits while
+   * {@link TocFlowProcessor#OUTPUT_WINDOW} buffers are queued.
+   */
+  protected void publish() throws IOException
+  {
+   ByteBuffer chunk = ByteBuffer.allocate(count);
+   chunk.put(buffer, 0, count).flip();
+   count = 0;
+   synchronized (lock)
+   {
+    checkOutput();
+    pending.add(chunk);
+   }
+   drain();
+   synchronized (lock)
+   {
+    while (OUTPUT_WINDOW <= pending.size())
+    {
+     checkOutput();
+     try
+     {
+      lock.wait();
+     }
+     catch (InterruptedException e)
+     {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the subscriber to request the result");
+     }
+    }
+    checkOutput();
+   }
+  }
+
+  /**
+   * Fails if the result will not be published.
+   */
+  protected void checkOutput() throws IOException
+  {
+   if (outputCancelled)
+    throw new IOException("The subscriber has cancelled the result");
+   if (null != failure)
+    throw new IOException("The transformation has failed: " + failure, failure);
+  }
+
+  private byte[] buffer = new byte[OUTPUT_CHUNK];
+  private int count;
+ }
+
+ /**
+  * Tracks the demand of the result's subscriber.
+  */
+ protected class OutputSubscription implements Flow.Subscription
+ {
+  public void request(long n)
+  {
+   synchronized (lock)
+   {
+    if (outputCancelled || terminated)
+     return;
+    if (0 >= n)
+    {
+     if (null == failure)
+      failure = new IllegalArgumentException("Non-positive number of buffers requested: " + n);
+     lock.notifyAll();
+    }
+    else
+     demand = Long.MAX_VALUE - demand > n ? demand + n : Long.MAX_VALUE;
+   }
+   drain();
+  }
+
+  public void cancel()
+  {
+   synchronized (lock)
+   {
+    outputCancelled = true;
+    lock.notifyAll();
+   }
+   drain();
+  }
+ }
+
+ private final Transformer transformer;
+ private final ResultOutputStream out = new ResultOutputStream();
+ private final Object transformation = new Object();
+ private Transformer.Feed feed;
+ private final Object lock = new Object();
+ private Flow.Subscription upstream;
+ private int outstanding;
+ private boolean inputComplete, inputCancelled, finished;
+ private Throwable failure;
+ private Flow.Subscriber<? super ByteBuffer> downstream;
+ private final Queue<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+ private long demand;
+ private boolean subscribed, outputCancelled, terminated;
+ private boolean draining, missed;
+}
@@ -0,0 +1,496 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Watches a tree of documents and regenerates their tables of contents
+ * in place as they change. The watcher collects the files that change
+ * until no changes arrive for a {@link #setDebounce(long) debounce}
+ * period, so that a burst of events from one save is handled once, then
+ * transforms those files on a pool of worker threads. The transformers
+ * the workers use are kept for later files. A file is rewritten only
+ * if its content changes, {@link ReplacementOutputStream as} in the
+ * {@link ProcessFile#IN_PLACE_PROPERTY in-place mode} of
+ * {@link ProcessFile}, thus the events caused by rewriting it end with
+ * a transformation that leaves it unchanged.
+ * <p>
+ * For each file it transforms, the watcher prints a line on the
+ * {@link System#out standard output stream} with tab-separated fields:
+ * the path of the file relative to the tree, the outcome
+ * (<code>updated</code>, <code>unchanged</code> or <code>failed</code>),
+ * the milliseconds elapsed since the first change to the file was
+ * noticed, and the milliseconds spent transforming it. Errors are
+ * printed on the {@link System#err standard error stream}.
+ * </p>
+ * <p>
+ * The watcher runs from the command line, either directly or through
+ * {@link ProcessFile} with the {@link ProcessFile#WATCH_PROPERTY}
+ * set, until the process is terminated. It is configured with system
+ * properties, and reads and writes files in the
+ * {@link Transformer#defaultEncoding() default encoding}.
+ * This class requires Java 9 or newer.
+ * </p>
+ */
+public class TreeWatcher
+{
+ /**
+  * Watches the directory pointed to by the only argument.
+  * Exits with a non-zero {@link ProcessFile.Status status} if the
+  * directory cannot be watched.
+  */
+ public static void main(String[] args)
+ {
+  if (0 == args.length)
+  {
+   System.err.println("Please enter location of a directory to watch as an argument.");
+   System.exit(ProcessFile.Status.NOARGS.getCode());
+  }
+  if (1 < args.length)
+  {
+   System.err.println("Cannot process extra argument \"" + args[1] + '"');
+   System.exit(ProcessFile.Status.EXTRAARGS.getCode());
+  }
+  Path root = Paths.get(args[0]);
+  if (!Files.isDirectory(root))
+  {
+   System.err.println("Directory \"" + root + "\" does not exist or is not a directory");
+   System.exit(ProcessFile.Status.NOFILE.getCode());
+  }
+  TreeWatcher watcher = new TreeWatcher(root);
+  watcher.setDebounce(Long.getLong(DEBOUNCE_PROPERTY, DEFAULT_DEBOUNCE));
+  watcher.setThreads(Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+  watcher.setPattern(System.getProperty(PATTERN_PROPERTY, DEFAULT_PATTERN));
+  watcher.errorHandler.debug(Boolean.getBoolean(ProcessFile.DEBUG_PROPERTY));
+  try
+  {
+   watcher.watch();
+  }
+  catch (IOException ex)
+  {
+   System.err.println("Input/output error while watching directory \"" + root + "\":");
+   if (watcher.errorHandler.isDebug())
+    ex.printStackTrace();
+   else
+    System.err.println(ex.getMessage());
+   System.exit(ProcessFile.Status.IOERR.getCode());
+  }
+  catch (InterruptedException stopped)
+  {
+  }
+ }
+
+ /**
+  * Creates a watcher for a tree of documents.
+  * @param root the directory at the root of the tree
+  */
+ public TreeWatcher(Path root)
+ {
+  this.root = root;
+  setPattern(DEFAULT_PATTERN);
+ }
+
+ public long getDebounce()
+ {
+  return debounce;
+ }
+
+ /**
+  * Sets the time without changes to a tree after which the changed
+  * files are transformed. Files that keep changing are transformed
+  * at least every {@link #MAX_DELAY_FACTOR} debounce periods.
+  * @param debounce the time in milliseconds
+  */
+ public void setDebounce(long debounce)
+ {
+  if (0 > debounce)
+   throw new IllegalArgumentException("Negative debounce period: " + debounce);
+  this.debounce = debounce;
+ }
+
+ public int getThreads()
+ {
+  return threads;
+ }
+
+ /**
+  * Sets the number of worker threads that transform the files.
+  * Takes effect when the watcher is started.
+  */
+ public void setThreads(int threads)
+ {
+  if (0 >= threads)
+   throw new IllegalArgumentException("Number of worker threads must be positive: " + threads);
+  this.threads = threads;
+ }
+
+ /**
+  * Selects the files to transform by a glob pattern that their
+  * names must match, such as {@link #DEFAULT_PATTERN}.
+  * @see java.nio.file.FileSystem#getPathMatcher(String)
+  */
+ public void setPattern(String pattern)
+ {
+  matcher = root.getFileSystem().getPathMatcher("glob:" + pattern);
+ }
+
+ /**
+  * Watches the tree until the current thread is interrupted.
+  * @throws IOException if the tree cannot be watched
+  * @throws InterruptedException when the thread is interrupted
+  */
+ public void watch() throws IOException, InterruptedException
+ {
+  WatchService service = root.getFileSystem().newWatchService();
+  workers = Executors.newFixedThreadPool(threads, new ThreadFactory()
+  {
+   public Thread newThread(Runnable task)
+   {
+    Thread thread = new Thread(task, "HTMLtoc worker");
+    thread.setDaemon(true);
+    return thread;
+   }
+  });
+  try
+  {
+   register(service, root, null, 0L);
+   Map<Path, Long> pending = new LinkedHashMap<Path, Long>();
+   long quiet = 0L, oldest = 0L;
+   long period = TimeUnit.MILLISECONDS.toNanos(debounce);
+   for (;;)
+   {
+    WatchKey key;
+    if (pending.isEmpty())
+     key = service.take();
+    else
+    {
+     long due = Math.min(quiet + period, oldest + MAX_DELAY_FACTOR * period);
+     key = service.poll(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+    long now = System.nanoTime();
+    if (null != key)
+    {
+     if (pending.isEmpty())
+      oldest = now;
+     quiet = now;
+     changed(service, key, pending, now);
+    }
+    if (!pending.isEmpty()
+      && (now - quiet >= period || now - oldest >= MAX_DELAY_FACTOR * period))
+    {
+     for (Map.Entry<Path, Long> entry : pending.entrySet())
+      dispatch(entry.getKey(), entry.getValue());
+     pending.clear();
+    }
+   }
+  }
+  finally
+  {
+   workers.shutdownNow();
+   service.close();
+  }
+ }
+
+ /**
+  * Name of the system property that sets the {@link #setDebounce(long)
+  * debounce period} of the command-line watcher in milliseconds.
+  */
+ public static final String DEBOUNCE_PROPERTY = "name.livitski.tools.html.toc.watch.debounce";
+
+ /**
+  * Name of the system property that sets the {@link #setThreads(int) number
+  * of worker threads} of the command-line watcher.
+  * Defaults to the number of available processors.
+  */
+ public static final String THREADS_PROPERTY = "name.livitski.tools.html.toc.watch.threads";
+
+ /**
+  * Name of the system property that sets the {@link #setPattern(String)
+  * pattern} of file names the command-line watcher transforms.
+  */
+ public static final String PATTERN_PROPERTY = "name.livitski.tools.html.toc.watch.pattern";
+
+ public static final long DEFAULT_DEBOUNCE = 250L;
+
+ public static final String DEFAULT_PATTERN = "*.{html,htm,xhtml}";
+
+ /**
+  * Maximum delay before transforming a file that keeps changing,
+  * in {@link #setDebounce(long) debounce} periods.
+  */
+ public static final int MAX_DELAY_FACTOR = 8;
+
+ /**
+  * Adds the files affected by the events of a watch key to the pending
+  * changes, registering the directories created in the tree.
+  */
+ protected void changed(WatchService service, WatchKey key, Map<Path, Long> pending, long now)
+   throws IOException
+ {
+  Path directory = (Path)key.watchable();
+  for (WatchEvent<?> event : key.pollEvents())
+  {
+   if (OVERFLOW == event.kind())
+   {
+    System.err.println("Some changes to \"" + root + "\" were lost, transforming all files");
+    register(service, root, pending, now);
+    continue;
+   }
+   Path path = directory.resolve((Path)event.context());
+   if (ENTRY_CREATE == event.kind() && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+    register(service, path, pending, now);
+   else if (matcher.matches(path.getFileName()) && !pending.containsKey(path))
+    pending.put(path, now);
+  }
+  key.reset();
+ }
+
+ /**
+  * Watches a directory and its subdirectories.
+  * @param pending if not <code>null</code>, receives the files in
+  * those directories that the watcher transforms
+  */
+ protected void register(final WatchService service, Path directory,
+   final Map<Path, Long> pending, final long now) throws IOException
+ {
+  Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+  {
+   @Override
+   public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+     throws IOException
+   {
+    dir.register(service, ENTRY_CREATE, ENTRY_MODIFY);
+    return FileVisitResult.CONTINUE;
+   }
+
+   @Override
+   public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+   {
+    if (null != pending && attrs.isRegularFile()
+      && matcher.matches(file.getFileName()) && !pending.containsKey(file))
+     pending.put(file, now);
+    return FileVisitResult.CONTINUE;
+   }
+  });
+ }
+
+ /**
+  * Submits a changed file to the workers. If the file is being
+  * transformed, it is transformed again once that is done.
+  * @param since the time of the first change in nanoseconds
+  */
+ protected void dispatch(Path file, long since)
+ {
+  synchronized (running)
+  {
+   if (running.containsKey(file))
+   {
+    if (null == running.get(file))
+     running.put(file, since);
+    return;
+   }
+   running.put(file, null);
+  }
+  workers.execute(new Update(file, since));
+ }
+
+ protected Transformer acquireTransformer()
+ {
+  Transformer transformer = transformers.poll();
+  if (null == transformer)
+  {
+   transformer = new Transformer();
+   transformer.setErrorListener(errorHandler);
+  }
+  return transformer;
+ }
+
+ protected void releaseTransformer(Transformer transformer)
+ {
+  transformers.offer(transformer);
+ }
+
+ protected void report(Path file, String message, Throwable error)
+ {
+  System.err.println("Error processing file \"" + file + "\": " + message);
+  if (errorHandler.isDebug())
+   error.printStackTrace();
+ }
+
+ /**
+  * Transforms a changed file in place and reports the outcome.
+  */
+ protected class Update implements Runnable
+ {
+  public Update(Path file, long since)
+  {
+   this.file = file;
+   this.since = since;
+  }
+
+  public void run()
+  {
+   try
+   {
+    if (Files.isRegularFile(file))
+     update();
+   }
+   finally
+   {
+    Long again;
+    synchronized (running)
+    {
+     again = running.remove(file);
+    }
+    if (null != again)
+     dispatch(file, again);
+   }
+  }
+
+  protected void update()
+  {
+   long started = System.nanoTime();
+   String outcome = "failed";
+   String encoding = Transformer.defaultEncoding();
+   File target = file.toFile();
+   InputStream in = null;
+   ReplacementOutputStream out = null;
+   Transformer transformer = acquireTransformer();
+   try
+   {
+    // the stream records the state of the file before it is read
+    out = new ReplacementOutputStream(target);
+    in = new FileInputStream(target);
+    Writer writer = new OutputStreamWriter(out, encoding);
+    transformer.transform(
+      new StreamSource(new InputStreamReader(new BufferedInputStream(in), encoding)),
+      new StreamResult(writer));
+    writer.close();
+    outcome = out.replace() ? "updated" : "unchanged";
+    releaseTransformer(transformer);
+   }
+   catch (TransformerException e)
+   {
+    if (outdated(e))
+     outcome = "changed";
+    else
+     report(file, e.getMessageAndLocation(), e);
+   }
+   catch (IOException e)
+   {
+    if (outdated(e))
+     outcome = "changed";
+    else
+     report(file, e.getMessage(), e);
+   }
+   catch (RuntimeException e)
+   {
+    if (outdated(e))
+     outcome = "changed";
+    else if (e.getCause() instanceof TransformerException)
+     // an error the transformer reported, but was not allowed to recover from
+     report(file, ((TransformerException)e.getCause()).getMessageAndLocation(), e);
+    else
+     report(file, "Internal error", e);
+   }
+   finally
+   {
+    if (null != out)
+     out.discard();
+    if (null != in)
+     try
+     {
+      in.close();
+     }
+     catch (IOException ignored)
+     {
+     }
+   }
+   long done = System.nanoTime();
+   System.out.println(root.relativize(file).toString() + '\t' + outcome
+     + '\t' + TimeUnit.NANOSECONDS.toMillis(done - since)
+     + '\t' + TimeUnit.NANOSECONDS.toMillis(done - started));
+  }
+
+  /**
+   * Tells whether an error is caused by another program changing the
+   * file during the update. The output is then outdated, so the file
+   * is left as it is and transformed again once this update is done.
+   */
+  protected boolean outdated(Throwable error)
+  {
+   if (null == FileChangedException.causeOf(error))
+    return false;
+   synchronized (running)
+   {
+    if (null == running.get(file))
+     running.put(file, since);
+   }
+   return true;
+  }
+
+  private final Path file;
+  private final long since;
+ }
+
+ private final Path root;
+ private long debounce = DEFAULT_DEBOUNCE;
+ private int threads = 1;
+ private PathMatcher matcher;
+ private ExecutorService workers;
+ private final Map<Path, Long> running = new HashMap<Path, Long>();
+ private final Queue<Transformer> transformers = new ConcurrentLinkedQueue<Transformer>();
+ private final ErrorHandler errorHandler = new ErrorHandler();
+}
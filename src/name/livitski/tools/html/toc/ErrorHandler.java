@@ -18,40 +18,237 @@
 
 package name.livitski.tools.html.toc;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.ErrorListener;
+import javax.xml.transform.SourceLocator;
 import javax.xml.transform.TransformerException;
 
 /**
  * Interrupts processing on errors, displays warnings
- * on {@link System#err}.
+ * on {@link System#err}. When {@link #collect(boolean) collecting},
+ * records errors that the transformer can recover from and lets it
+ * continue, interrupting processing only on fatal errors. The
+ * recorded {@link #getDiagnostics() diagnostics} can then be
+ * {@link #writeDiagnostics(Appendable, String) written} in a
+ * machine-readable form.
  */
 public class ErrorHandler implements ErrorListener
 {
  public void error(TransformerException exception) throws TransformerException
  {
-  throw exception;
+  if (!collecting)
+   throw exception;
+  record(Severity.ERROR, exception);
  }
 
  public void fatalError(TransformerException exception)
    throws TransformerException
  {
+  if (collecting)
+   record(Severity.FATAL, exception);
   throw exception;
  }
 
  public void warning(TransformerException ex)
    throws TransformerException
  {
-  if (debug)
+  if (collecting)
+   record(Severity.WARNING, ex);
+  else if (debug)
    ex.printStackTrace();
   else
    System.err.println(ex.getLocalizedMessage());
  }
 
+ public boolean isDebug()
+ {
+  return debug;
+ }
+
  public ErrorHandler debug(boolean flag)
  {
   debug = flag;
   return this;
  }
 
+ public boolean isCollecting()
+ {
+  return collecting;
+ }
+
+ /**
+  * Switches between stopping on the first error, which is the default,
+  * and collecting all errors that do not prevent further processing.
+  */
+ public ErrorHandler collect(boolean flag)
+ {
+  collecting = flag;
+  return this;
+ }
+
+ /**
+  * Adds a problem to the {@link #getDiagnostics() diagnostics}.
+  * Use this method to record fatal errors that the transformer
+  * reports by throwing exceptions.
+  */
+ public void record(Severity severity, Throwable problem)
+ {
+  diagnostics.add(new Diagnostic(severity, problem));
+ }
+
+ /**
+  * @return the problems recorded since this handler was created or
+  * {@link #clear() cleared}
+  */
+ public List<Diagnostic> getDiagnostics()
+ {
+  return Collections.unmodifiableList(diagnostics);
+ }
+
+ /**
+  * Tells whether any errors, including fatal errors, have been recorded.
+  */
+ public boolean hasErrors()
+ {
+  for (Diagnostic diagnostic : diagnostics)
+   if (Severity.WARNING != diagnostic.getSeverity())
+    return true;
+  return false;
+ }
+
+ public void clear()
+ {
+  diagnostics.clear();
+ }
+
+ /**
+  * Writes the recorded problems, one per line. Each line consists of
+  * tab-separated fields: the name of the document, the line, column
+  * and character offset of the problem, or <code>-1</code> if unknown,
+  * the severity in lower case, and the message with line breaks and
+  * tabs replaced by spaces.
+  * @param out the target of the diagnostics
+  * @param source the name of the document that has been processed
+  */
+ public void writeDiagnostics(Appendable out, String source) throws IOException
+ {
+  for (Diagnostic diagnostic : diagnostics)
+  {
+   out.append(source).append('\t')
+     .append(Integer.toString(diagnostic.getLine())).append('\t')
+     .append(Integer.toString(diagnostic.getColumn())).append('\t')
+     .append(Integer.toString(diagnostic.getOffset())).append('\t')
+     .append(diagnostic.getSeverity().name().toLowerCase()).append('\t');
+   String message = diagnostic.getMessage();
+   for (int i = 0; message.length() > i; i++)
+   {
+    char c = message.charAt(i);
+    out.append('\t' == c || '\n' == c || '\r' == c ? ' ' : c);
+   }
+   out.append(EOL);
+  }
+ }
+
+ /**
+  * Severity of a recorded problem.
+  */
+ public enum Severity
+ {
+  WARNING,
+  ERROR,
+  FATAL;
+ }
+
+ /**
+  * Problem recorded by a {@link ErrorHandler#collect(boolean) collecting}
+  * handler.
+  */
+ public static class Diagnostic
+ {
+  /**
+   * Describes a problem, taking its location from the first
+   * {@link XMLStreamException} in the chain of causes, or from the
+   * {@link SourceLocator locator} of a {@link TransformerException}.
+   */
+  public Diagnostic(Severity severity, Throwable problem)
+  {
+   this.severity = severity;
+   String message = problem.getMessage();
+   SourceLocator locator = problem instanceof TransformerException
+     ? ((TransformerException)problem).getLocator() : null;
+   if (null != locator)
+   {
+    line = locator.getLineNumber();
+    column = locator.getColumnNumber();
+   }
+   for (Throwable cause = problem; null != cause; cause = cause.getCause())
+    if (cause instanceof XMLStreamException)
+    {
+     message = cause.getMessage();
+     Location location = ((XMLStreamException)cause).getLocation();
+     if (null != location)
+     {
+      line = location.getLineNumber();
+      column = location.getColumnNumber();
+      offset = location.getCharacterOffset();
+      // drop the location that the exception prepends to its message
+      int at = null == message || !message.startsWith(PARSE_ERROR_PREFIX) ? -1 : message.indexOf(MESSAGE_PREFIX);
+      if (0 <= at)
+       message = message.substring(at + MESSAGE_PREFIX.length());
+     }
+     break;
+    }
+   this.message = null == message ? problem.toString() : message;
+  }
+
+  public Severity getSeverity()
+  {
+   return severity;
+  }
+
+  public String getMessage()
+  {
+   return message;
+  }
+
+  public int getLine()
+  {
+   return line;
+  }
+
+  public int getColumn()
+  {
+   return column;
+  }
+
+  public int getOffset()
+  {
+   return offset;
+  }
+
+  @Override
+  public String toString()
+  {
+   return severity + " at line " + line + ", column " + column + ": " + message;
+  }
+
+  private static final String PARSE_ERROR_PREFIX = "ParseError at ";
+  private static final String MESSAGE_PREFIX = "\nMessage: ";
+
+  private final Severity severity;
+  private final String message;
+  private int line = -1, column = -1, offset = -1;
+ }
+
+ private static final String EOL = System.getProperty("line.separator");
+
  private boolean debug;
+ private boolean collecting;
+ private final List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
 }
@@ -0,0 +1,251 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.Comment;
+import javax.xml.stream.events.DTD;
+import javax.xml.stream.events.EntityReference;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.ProcessingInstruction;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import static javax.xml.stream.XMLStreamConstants.*;
+
+/**
+ * Writes a stream of XML events in a compact binary form that
+ * a {@link RecordedEventReader} can replay without parsing the
+ * document again. A {@link Transformer#setRecorder(EventRecorder) transformer}
+ * records the events of a document after preprocessing them.
+ * <p>
+ * A recording starts with the {@link #MAGIC} bytes and the
+ * {@link #VERSION format version}, followed by events. Each event
+ * is a byte with its {@link javax.xml.stream.XMLStreamConstants type},
+ * the change in its location relative to the previous event, and the
+ * event's content. Numbers are stored as variable-length integers.
+ * Names, prefixes and namespace URIs are interned: the first occurrence
+ * of a name is stored in full and assigned an index in the name table,
+ * later occurrences refer to that index. Text is stored as
+ * length-prefixed UTF-8.
+ * </p>
+ */
+public class EventRecorder implements Flushable, Closeable
+{
+ /**
+  * Signature at the beginning of each recording.
+  */
+ public static final byte[] MAGIC = { 'H', 'T', 'O', 'C', 'E', 'V' };
+
+ /**
+  * Version of the recording format written by this class.
+  */
+ public static final int VERSION = 1;
+
+ public EventRecorder(OutputStream out) throws IOException
+ {
+  this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+  this.out.write(MAGIC);
+  this.out.writeByte(VERSION);
+ }
+
+ /**
+  * Adds an event to the recording.
+  * @param event the event to record
+  */
+ @SuppressWarnings("unchecked")
+ public void write(XMLEvent event) throws IOException
+ {
+  int type = event.getEventType();
+  if (CHARACTERS == type && ((Characters)event).isCData())
+   type = CDATA;
+  out.writeByte(type);
+  writeLocation(event.getLocation());
+  switch (type)
+  {
+  case START_ELEMENT:
+  {
+   StartElement element = (StartElement)event;
+   writeName(element.getName());
+   for (Iterator<Namespace> i = element.getNamespaces(); i.hasNext();)
+   {
+    Namespace namespace = i.next();
+    writeVarint(1);
+    writeName(namespace.getPrefix());
+    writeName(namespace.getNamespaceURI());
+   }
+   writeVarint(0);
+   for (Iterator<Attribute> i = element.getAttributes(); i.hasNext();)
+   {
+    Attribute attribute = i.next();
+    writeVarint(1);
+    writeName(attribute.getName());
+    writeText(attribute.getValue());
+   }
+   writeVarint(0);
+   break;
+  }
+  case END_ELEMENT:
+   writeName(event.asEndElement().getName());
+   break;
+  case CHARACTERS:
+  case CDATA:
+   writeText(((Characters)event).getData());
+   break;
+  case SPACE:
+   out.writeBoolean(((Characters)event).isIgnorableWhiteSpace());
+   writeText(((Characters)event).getData());
+   break;
+  case COMMENT:
+   writeText(((Comment)event).getText());
+   break;
+  case PROCESSING_INSTRUCTION:
+   writeName(((ProcessingInstruction)event).getTarget());
+   writeText(((ProcessingInstruction)event).getData());
+   break;
+  case ENTITY_REFERENCE:
+   writeName(((EntityReference)event).getName());
+   break;
+  case DTD:
+   writeText(((DTD)event).getDocumentTypeDeclaration());
+   break;
+  case START_DOCUMENT:
+  {
+   StartDocument start = (StartDocument)event;
+   writeText(start.encodingSet() ? start.getCharacterEncodingScheme() : null);
+   writeText(start.getVersion());
+   out.writeByte(start.standaloneSet() ? start.isStandalone() ? 2 : 1 : 0);
+   break;
+  }
+  case END_DOCUMENT:
+   break;
+  default:
+   throw new IllegalArgumentException("Cannot record " + event);
+  }
+ }
+
+ public void flush() throws IOException
+ {
+  out.flush();
+ }
+
+ public void close() throws IOException
+ {
+  out.close();
+ }
+
+ protected void writeLocation(Location location) throws IOException
+ {
+  int offset = -1, line = -1, column = -1;
+  if (null != location)
+  {
+   offset = location.getCharacterOffset();
+   line = location.getLineNumber();
+   column = location.getColumnNumber();
+  }
+  writeVarint(zigzag(offset - lastOffset));
+  writeVarint(zigzag(line - lastLine));
+  writeVarint(zigzag(column));
+  lastOffset = offset;
+  lastLine = line;
+ }
+
+ protected void writeName(QName name) throws IOException
+ {
+  writeName(name.getLocalPart());
+  writeName(name.getPrefix());
+  writeName(name.getNamespaceURI());
+ }
+
+ /**
+  * Writes a reference to an interned name: <code>0</code> for
+  * <code>null</code>, <code>1</code> followed by the text of a new name,
+  * or the index of a known name plus <code>2</code>.
+  */
+ protected void writeName(String name) throws IOException
+ {
+  if (null == name)
+  {
+   writeVarint(0);
+   return;
+  }
+  Integer index = names.get(name);
+  if (null != index)
+   writeVarint(index + 2);
+  else
+  {
+   names.put(name, names.size());
+   writeVarint(1);
+   writeText(name);
+  }
+ }
+
+ /**
+  * Writes text as its length in bytes plus one, or <code>0</code>
+  * for <code>null</code>, followed by UTF-8 bytes.
+  */
+ protected void writeText(String text) throws IOException
+ {
+  if (null == text)
+  {
+   writeVarint(0);
+   return;
+  }
+  byte[] bytes = text.getBytes(UTF8);
+  writeVarint(bytes.length + 1);
+  out.write(bytes);
+ }
+
+ protected void writeVarint(int value) throws IOException
+ {
+  while (0 != (value & ~0x7f))
+  {
+   out.writeByte(value & 0x7f | 0x80);
+   value >>>= 7;
+  }
+  out.writeByte(value);
+ }
+
+ protected static int zigzag(int value)
+ {
+  return value << 1 ^ value >> 31;
+ }
+
+ protected static final Charset UTF8 = Charset.forName("UTF-8");
+ protected static final int BUFFER_SIZE = 1 << 16;
+
+ private DataOutputStream out;
+ private Map<String, Integer> names = new HashMap<String, Integer>();
+ private int lastOffset, lastLine;
+}
@@ -0,0 +1,939 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Non-blocking XML parser that tokenizes the bytes of a document as
+ * they are {@link #feed(ByteBuffer) fed} to it. The tokenizer detects
+ * the encoding of a document from its byte order mark or XML declaration,
+ * defaulting to UTF-8, and keeps the decoded characters only until
+ * it has parsed the markup or text they belong to.
+ * <p>
+ * The tokenizer follows the conventions of the StAX parser of the Java
+ * runtime: whitespace outside the root element is not reported, CDATA
+ * sections are reported as characters, and references to entities other
+ * than the predefined ones are reported as
+ * {@link javax.xml.stream.events.EntityReference entity references}.
+ * It processes namespaces and checks that the elements of a document are
+ * properly nested, but does not read document type definitions nor
+ * validate documents. Like that parser's, the location of an event
+ * points past the markup or text it was parsed from.
+ * </p>
+ */
+public class FeedingTokenizer implements XMLEventFeeder
+{
+ public FeedingTokenizer()
+ {
+  this(XMLEventFactory.newFactory());
+ }
+
+ /**
+  * Creates a tokenizer that makes events with a specific factory.
+  * @param factory the factory that creates events, which must not be
+  * used by other threads while this tokenizer is parsing
+  */
+ public FeedingTokenizer(XMLEventFactory factory)
+ {
+  this.factory = factory;
+  reset();
+ }
+
+ public void feed(ByteBuffer input) throws XMLStreamException
+ {
+  if (inputEnded)
+   throw new IllegalStateException("The input of the document has already ended");
+  if (null != decoder)
+  {
+   decode(input, false);
+   return;
+  }
+  int length = input.remaining();
+  if (head.length - headLength < length)
+   head = Arrays.copyOf(head, Math.max(head.length * 2, headLength + length));
+  input.get(head, headLength, length);
+  headLength += length;
+  decodeHead(false);
+ }
+
+ public void endOfInput() throws XMLStreamException
+ {
+  if (inputEnded)
+   return;
+  inputEnded = true;
+  if (null == decoder)
+   decodeHead(true);
+  else
+  {
+   carry.flip();
+   decode(carry, true);
+   carry.clear();
+  }
+ }
+
+ public XMLEvent nextEvent() throws XMLStreamException
+ {
+  for (;;)
+  {
+   XMLEvent event = events.poll();
+   if (null != event || complete)
+    return event;
+   try
+   {
+    if (!tokenize())
+     return null;
+   }
+   finally
+   {
+    factory.setLocation(null);
+   }
+  }
+ }
+
+ public boolean isComplete()
+ {
+  return complete && events.isEmpty();
+ }
+
+ public void reset()
+ {
+  decoder = null;
+  if (RETAINED_CAPACITY < head.length)
+   head = new byte[DECLARATION_LIMIT];
+  headLength = 0;
+  carry.clear();
+  if (RETAINED_CAPACITY < text.capacity())
+   text = new StringBuilder(CHUNK_SIZE);
+  else
+   text.setLength(0);
+  pos = located = 0;
+  skipLF = inputEnded = complete = started = rootSeen = false;
+  offset = 0;
+  line = column = 1;
+  scanStart = -1;
+  elements.clear();
+  bindings.clear();
+  events.clear();
+ }
+
+ /**
+  * Maximum length of the XML declaration, in bytes, that the tokenizer
+  * reads to detect the encoding of a document.
+  */
+ public static final int DECLARATION_LIMIT = 1 << 10;
+
+ /**
+  * Decodes the initial bytes of the document once they are sufficient
+  * to detect its encoding.
+  */
+ protected void decodeHead(boolean last) throws XMLStreamException
+ {
+  Charset charset = detectEncoding(last);
+  if (null == charset)
+   return;
+  decoder = charset.newDecoder()
+    .onMalformedInput(CodingErrorAction.REPORT)
+    .onUnmappableCharacter(CodingErrorAction.REPORT);
+  decode(ByteBuffer.wrap(head, headStart, headLength - headStart), last);
+  headLength = 0;
+ }
+
+ /**
+  * Detects the encoding of the document from its initial bytes.
+  * @param last whether the document has no more bytes
+  * @return the encoding or <code>null</code> if more bytes are needed
+  */
+ protected Charset detectEncoding(boolean last) throws XMLStreamException
+ {
+  headStart = 0;
+  int match = matchHead(UTF8_BOM);
+  if (0 < match)
+  {
+   headStart = UTF8_BOM.length;
+   return Charset.forName("UTF-8");
+  }
+  boolean partial = 0 > match;
+  match = matchHead(UTF16BE_BOM);
+  if (0 < match)
+  {
+   headStart = UTF16BE_BOM.length;
+   return Charset.forName("UTF-16BE");
+  }
+  partial |= 0 > match;
+  match = matchHead(UTF16LE_BOM);
+  if (0 < match)
+  {
+   headStart = UTF16LE_BOM.length;
+   return Charset.forName("UTF-16LE");
+  }
+  partial |= 0 > match;
+  match = matchHead(UTF16BE_PROBE);
+  if (0 < match)
+   return Charset.forName("UTF-16BE");
+  partial |= 0 > match;
+  match = matchHead(UTF16LE_PROBE);
+  if (0 < match)
+   return Charset.forName("UTF-16LE");
+  partial |= 0 > match;
+  match = matchHead(DECLARATION_START);
+  if (0 < match)
+  {
+   int end = -1;
+   for (int i = DECLARATION_START.length; headLength - 1 > i; i++)
+    if ('?' == head[i] && '>' == head[i + 1])
+    {
+     end = i;
+     break;
+    }
+   if (0 > end)
+   {
+    if (!last && DECLARATION_LIMIT > headLength)
+     return null;
+   }
+   else
+   {
+    String encoding = pseudoAttribute(new String(head, 0, end, ASCII), "encoding");
+    if (null != encoding)
+     try
+     {
+      return Charset.forName(encoding);
+     }
+     catch (IllegalCharsetNameException e)
+     {
+      throw new XMLStreamException("Unsupported encoding \"" + encoding + "\" of the document", e);
+     }
+     catch (UnsupportedCharsetException e)
+     {
+      throw new XMLStreamException("Unsupported encoding \"" + encoding + "\" of the document", e);
+     }
+   }
+  }
+  else if (!last && (partial || 0 > match))
+   return null;
+  return Charset.forName("UTF-8");
+ }
+
+ /**
+  * Compares the initial bytes of the document with a pattern.
+  * @return a positive number if the bytes begin with the pattern,
+  * a negative number if they are a shorter prefix of it, or
+  * <code>0</code> if they do not match
+  */
+ protected int matchHead(byte[] pattern)
+ {
+  int length = Math.min(headLength, pattern.length);
+  for (int i = 0; length > i; i++)
+   if (pattern[i] != head[i])
+    return 0;
+  return pattern.length > length ? -1 : 1;
+ }
+
+ /**
+  * Decodes bytes and appends the characters to the text being parsed,
+  * normalizing line breaks. Bytes at the end of the input that do not
+  * form a complete character are kept until more bytes arrive.
+  */
+ protected void decode(ByteBuffer input, boolean last) throws XMLStreamException
+ {
+  while (0 < carry.position() && input.hasRemaining())
+  {
+   carry.put(input.get());
+   carry.flip();
+   decode(carry, chars, false);
+   carry.compact();
+  }
+  decode(input, chars, last);
+  if (last)
+  {
+   decoder.flush(chars);
+   append(chars);
+  }
+  else if (carry.remaining() < input.remaining())
+   throw new XMLStreamException("Malformed input in encoding " + decoder.charset());
+  else
+   carry.put(input);
+ }
+
+ protected void decode(ByteBuffer input, CharBuffer output, boolean last) throws XMLStreamException
+ {
+  for (;;)
+  {
+   CoderResult result = decoder.decode(input, output, last);
+   append(output);
+   if (result.isError())
+    throw new XMLStreamException("Malformed input in encoding " + decoder.charset(),
+      locate(text.length()));
+   if (!result.isOverflow())
+    break;
+  }
+ }
+
+ protected void append(CharBuffer output)
+ {
+  output.flip();
+  while (output.hasRemaining())
+  {
+   char c = output.get();
+   if (skipLF)
+   {
+    skipLF = false;
+    if ('\n' == c)
+     continue;
+   }
+   if ('\r' == c)
+   {
+    text.append('\n');
+    skipLF = true;
+   }
+   else
+    text.append(c);
+  }
+  output.clear();
+ }
+
+ /**
+  * Parses the next markup or run of text from the characters decoded so far.
+  * @return whether the tokenizer has made progress, <code>false</code>
+  * if it needs more input
+  */
+ protected boolean tokenize() throws XMLStreamException
+ {
+  int length = text.length();
+  if (!started)
+  {
+   if (DECLARATION_TEXT.length() + 1 > length && !inputEnded)
+    return false;
+   if (startsWith(DECLARATION_TEXT) && DECLARATION_TEXT.length() < length
+     && isSpace(text.charAt(DECLARATION_TEXT.length())))
+   {
+    if (!declaration())
+     return false;
+   }
+   else
+   {
+    factory.setLocation(locate(pos));
+    events.add(factory.createStartDocument());
+   }
+   started = true;
+   return true;
+  }
+  if (length == pos)
+  {
+   if (!inputEnded)
+    return false;
+   factory.setLocation(locate(pos));
+   if (!elements.isEmpty())
+    throw new XMLStreamException("Document ends before element <" + elements.get(elements.size() - 1)
+      + "> is closed", locate(pos));
+   else if (!rootSeen)
+    throw new XMLStreamException("Document has no root element", locate(pos));
+   events.add(factory.createEndDocument());
+   complete = true;
+   return true;
+  }
+  if ('<' == text.charAt(pos))
+   return markup();
+  else
+   return characters();
+ }
+
+ protected boolean declaration() throws XMLStreamException
+ {
+  int end = find("?>", pos + DECLARATION_TEXT.length());
+  if (0 > end)
+   return incomplete("XML declaration");
+  String declaration = text.substring(pos, end);
+  String version = pseudoAttribute(declaration, "version");
+  String encoding = pseudoAttribute(declaration, "encoding");
+  String standalone = pseudoAttribute(declaration, "standalone");
+  factory.setLocation(locate(end + 2));
+  if (null != standalone)
+   events.add(factory.createStartDocument(null == encoding ? decoder.charset().name() : encoding,
+     version, "yes".equals(standalone)));
+  else if (null != encoding)
+   events.add(factory.createStartDocument(encoding, version));
+  else
+   events.add(factory.createStartDocument());
+  consume(end + 2);
+  return true;
+ }
+
+ protected boolean characters() throws XMLStreamException
+ {
+  int end = text.indexOf("<", pos);
+  if (0 > end)
+  {
+   end = text.length();
+   if (!inputEnded)
+   {
+    int ref = text.lastIndexOf("&");
+    if (pos <= ref && 0 > text.indexOf(";", ref))
+     end = ref;
+    // the next input may complete a "]]>"
+    for (int i = 0; 2 > i && pos < end && ']' == text.charAt(end - 1); i++)
+     end--;
+    if (pos == end)
+     return false;
+   }
+  }
+  if (!elements.isEmpty())
+   for (int i = pos + 2; end > i; i++)
+    if ('>' == text.charAt(i) && ']' == text.charAt(i - 1) && ']' == text.charAt(i - 2))
+     throw new XMLStreamException("The character sequence \"]]>\" must not appear in content"
+       + " unless used to mark the end of a CDATA section.", locate(i + 1));
+  factory.setLocation(locate(end));
+  if (elements.isEmpty())
+  {
+   for (int i = pos; end > i; i++)
+    if (!isSpace(text.charAt(i)))
+     throw new XMLStreamException("Content is not allowed "
+       + (rootSeen ? "after the root element" : "before the root element"), locate(end));
+   consume(end);
+   return true;
+  }
+  StringBuilder data = buffer;
+  data.setLength(0);
+  for (int i = pos; end > i;)
+  {
+   char c = text.charAt(i);
+   if ('&' != c)
+   {
+    data.append(c);
+    i++;
+    continue;
+   }
+   int semicolon = text.indexOf(";", i);
+   if (0 > semicolon || end < semicolon)
+    throw new XMLStreamException("Entity reference is not terminated", locate(end));
+   String name = text.substring(i + 1, semicolon);
+   if (!appendReference(data, name))
+   {
+    if (0 < data.length())
+     events.add(factory.createCharacters(data.toString()));
+    data.setLength(0);
+    events.add(factory.createEntityReference(name, null));
+   }
+   i = semicolon + 1;
+  }
+  if (0 < data.length())
+   events.add(factory.createCharacters(data.toString()));
+  consume(end);
+  return true;
+ }
+
+ protected boolean markup() throws XMLStreamException
+ {
+  int length = text.length() - pos;
+  if (2 > length)
+   return incomplete("markup");
+  char c = text.charAt(pos + 1);
+  if ('?' == c)
+   return processingInstruction();
+  else if ('/' == c)
+   return endTag();
+  else if ('!' != c)
+   return startTag();
+  else if (startsWith(COMMENT_START))
+  {
+   int end = find("-->", pos + COMMENT_START.length());
+   if (0 > end)
+    return incomplete("comment");
+   factory.setLocation(locate(end + 3));
+   events.add(factory.createComment(text.substring(pos + COMMENT_START.length(), end)));
+   consume(end + 3);
+  }
+  else if (startsWith(CDATA_START))
+  {
+   int end = find("]]>", pos + CDATA_START.length());
+   if (0 > end)
+    return incomplete("CDATA section");
+   factory.setLocation(locate(end + 3));
+   if (elements.isEmpty())
+    throw new XMLStreamException("CDATA section outside the root element", locate(end + 3));
+   events.add(factory.createCharacters(text.substring(pos + CDATA_START.length(), end)));
+   consume(end + 3);
+  }
+  else if (startsWith(DOCTYPE_START))
+  {
+   int end = scanMarkup(pos + DOCTYPE_START.length(), true);
+   if (0 > end)
+    return incomplete("document type declaration");
+   factory.setLocation(locate(end + 1));
+   if (rootSeen || !elements.isEmpty())
+    throw new XMLStreamException("Document type declaration inside the document", locate(end + 1));
+   events.add(factory.createDTD(text.substring(pos, end + 1)));
+   consume(end + 1);
+  }
+  else if (!inputEnded && (isPrefix(COMMENT_START) || isPrefix(CDATA_START) || isPrefix(DOCTYPE_START)))
+   return false;
+  else
+   throw new XMLStreamException("Unrecognized markup", locate(pos));
+  return true;
+ }
+
+ protected boolean processingInstruction() throws XMLStreamException
+ {
+  int end = find("?>", pos + 2);
+  if (0 > end)
+   return incomplete("processing instruction");
+  factory.setLocation(locate(end + 2));
+  int i = pos + 2;
+  while (end > i && !isSpace(text.charAt(i)))
+   i++;
+  String target = text.substring(pos + 2, i);
+  if (0 == target.length())
+   throw new XMLStreamException("Processing instruction has no target", locate(end + 2));
+  if ("xml".equalsIgnoreCase(target))
+   throw new XMLStreamException("Processing instruction target \"" + target + "\" is reserved", locate(end + 2));
+  while (end > i && isSpace(text.charAt(i)))
+   i++;
+  events.add(factory.createProcessingInstruction(target, text.substring(i, end)));
+  consume(end + 2);
+  return true;
+ }
+
+ protected boolean startTag() throws XMLStreamException
+ {
+  int end = scanMarkup(pos + 1, false);
+  if (0 > end)
+   return incomplete("start tag");
+  Location location = locate(end + 1);
+  factory.setLocation(location);
+  if (elements.isEmpty() && rootSeen)
+   throw new XMLStreamException("Markup after the root element", location);
+  boolean empty = '/' == text.charAt(end - 1);
+  int limit = empty ? end - 1 : end;
+  int i = skipName(pos + 1, limit);
+  String qname = text.substring(pos + 1, i);
+  if (0 == qname.length())
+   throw new XMLStreamException("Start tag has no element name", location);
+  int mark = bindings.size();
+  List<String> attributes = new ArrayList<String>();
+  for (;;)
+  {
+   int from = i;
+   while (limit > i && isSpace(text.charAt(i)))
+    i++;
+   if (limit == i)
+    break;
+   if (from == i)
+    throw new XMLStreamException("Attributes of element <" + qname + "> must be separated by whitespace", location);
+   from = i;
+   while (limit > i && '=' != text.charAt(i) && !isSpace(text.charAt(i)))
+    i++;
+   String name = text.substring(from, i);
+   while (limit > i && isSpace(text.charAt(i)))
+    i++;
+   if (limit == i || '=' != text.charAt(i) || 0 == name.length())
+    throw new XMLStreamException("Attribute of element <" + qname + "> has no value", location);
+   i++;
+   while (limit > i && isSpace(text.charAt(i)))
+    i++;
+   char quote = limit > i ? text.charAt(i) : 0;
+   int close = '"' == quote || '\'' == quote ? text.indexOf(String.valueOf(quote), i + 1) : -1;
+   if (0 > close || limit <= close)
+    throw new XMLStreamException("Value of attribute \"" + name + "\" is not quoted", location);
+   String value = attributeValue(i + 1, close, location);
+   i = close + 1;
+   if ("xmlns".equals(name))
+   {
+    bindings.add("");
+    bindings.add(value);
+   }
+   else if (name.startsWith("xmlns:"))
+   {
+    bindings.add(name.substring(6));
+    bindings.add(value);
+   }
+   else
+   {
+    for (int j = 0; attributes.size() > j; j += 2)
+     if (name.equals(attributes.get(j)))
+      throw new XMLStreamException("Attribute \"" + name + "\" is repeated in element <" + qname + '>', location);
+    attributes.add(name);
+    attributes.add(value);
+   }
+  }
+  List<Namespace> namespaces = new ArrayList<Namespace>(bindings.size() - mark >> 1);
+  for (int j = mark; bindings.size() > j; j += 2)
+   namespaces.add(0 == bindings.get(j).length()
+     ? factory.createNamespace(bindings.get(j + 1))
+     : factory.createNamespace(bindings.get(j), bindings.get(j + 1)));
+  List<Attribute> attributeEvents = new ArrayList<Attribute>(attributes.size() >> 1);
+  for (int j = 0; attributes.size() > j; j += 2)
+  {
+   String name = attributes.get(j);
+   int colon = name.indexOf(':');
+   if (0 > colon)
+    attributeEvents.add(factory.createAttribute(name, attributes.get(j + 1)));
+   else
+   {
+    String prefix = name.substring(0, colon);
+    attributeEvents.add(factory.createAttribute(prefix, resolve(prefix, name, location),
+      name.substring(colon + 1), attributes.get(j + 1)));
+   }
+  }
+  int colon = qname.indexOf(':');
+  String prefix = 0 > colon ? "" : qname.substring(0, colon);
+  String uri = resolve(prefix, qname, location);
+  String localName = qname.substring(colon + 1);
+  events.add(factory.createStartElement(prefix, uri, localName,
+    attributeEvents.iterator(), namespaces.iterator()));
+  if (empty)
+  {
+   events.add(factory.createEndElement(prefix, uri, localName));
+   trimBindings(mark);
+  }
+  else
+  {
+   elements.add(qname);
+   marks = elements.size() > marks.length ? Arrays.copyOf(marks, marks.length * 2) : marks;
+   marks[elements.size() - 1] = mark;
+  }
+  rootSeen = true;
+  consume(end + 1);
+  return true;
+ }
+
+ protected boolean endTag() throws XMLStreamException
+ {
+  int end = find(">", pos + 2);
+  if (0 > end)
+   return incomplete("end tag");
+  Location location = locate(end + 1);
+  factory.setLocation(location);
+  int i = skipName(pos + 2, end);
+  String qname = text.substring(pos + 2, i);
+  while (end > i && isSpace(text.charAt(i)))
+   i++;
+  if (end > i)
+   throw new XMLStreamException("Unexpected content in end tag </" + qname + '>', location);
+  if (elements.isEmpty())
+   throw new XMLStreamException("End tag </" + qname + "> has no matching start tag", location);
+  int depth = elements.size() - 1;
+  String open = elements.get(depth);
+  if (!open.equals(qname))
+   throw new XMLStreamException("Element <" + open + "> must be terminated by the matching end tag, found </"
+     + qname + '>', location);
+  int colon = qname.indexOf(':');
+  String prefix = 0 > colon ? "" : qname.substring(0, colon);
+  events.add(factory.createEndElement(prefix, resolve(prefix, qname, location), qname.substring(colon + 1)));
+  elements.remove(depth);
+  trimBindings(marks[depth]);
+  consume(end + 1);
+  return true;
+ }
+
+ /**
+  * Expands the references in an attribute value and normalizes its whitespace.
+  */
+ protected String attributeValue(int from, int to, Location location) throws XMLStreamException
+ {
+  StringBuilder value = buffer;
+  value.setLength(0);
+  for (int i = from; to > i; i++)
+  {
+   char c = text.charAt(i);
+   if ('&' == c)
+   {
+    int semicolon = text.indexOf(";", i);
+    if (0 > semicolon || to < semicolon)
+     throw new XMLStreamException("Entity reference in an attribute value is not terminated", location);
+    String name = text.substring(i + 1, semicolon);
+    if (!appendReference(value, name))
+     throw new XMLStreamException("Entity \"" + name + "\" referenced in an attribute value is not declared", location);
+    i = semicolon;
+   }
+   else if ('<' == c)
+    throw new XMLStreamException("Attribute value contains '<'", location);
+   else
+    value.append(isSpace(c) ? ' ' : c);
+  }
+  return value.toString();
+ }
+
+ /**
+  * Appends the character denoted by a character reference or a reference
+  * to a predefined entity.
+  * @return whether the reference has been expanded, <code>false</code>
+  * if it refers to another entity
+  */
+ protected boolean appendReference(StringBuilder out, String name) throws XMLStreamException
+ {
+  if (name.startsWith("#"))
+  {
+   int code;
+   try
+   {
+    code = name.startsWith("#x")
+      ? Integer.parseInt(name.substring(2), 16)
+      : Integer.parseInt(name.substring(1));
+   }
+   catch (NumberFormatException e)
+   {
+    code = -1;
+   }
+   if (0 >= code || !Character.isValidCodePoint(code))
+    throw new XMLStreamException("Invalid character reference &" + name + ';', locate(pos));
+   out.appendCodePoint(code);
+  }
+  else if ("amp".equals(name))
+   out.append('&');
+  else if ("lt".equals(name))
+   out.append('<');
+  else if ("gt".equals(name))
+   out.append('>');
+  else if ("quot".equals(name))
+   out.append('"');
+  else if ("apos".equals(name))
+   out.append('\'');
+  else if (0 == name.length())
+   throw new XMLStreamException("Entity reference has no name", locate(pos));
+  else
+   return false;
+  return true;
+ }
+
+ protected String resolve(String prefix, String qname, Location location) throws XMLStreamException
+ {
+  for (int i = bindings.size() - 2; 0 <= i; i -= 2)
+   if (prefix.equals(bindings.get(i)))
+    return bindings.get(i + 1);
+  if (0 == prefix.length())
+   return XMLConstants.NULL_NS_URI;
+  else if (XMLConstants.XML_NS_PREFIX.equals(prefix))
+   return XMLConstants.XML_NS_URI;
+  throw new XMLStreamException("Prefix \"" + prefix + "\" of \"" + qname + "\" is not bound to a namespace", location);
+ }
+
+ protected void trimBindings(int mark)
+ {
+  for (int i = bindings.size(); mark < i;)
+   bindings.remove(--i);
+ }
+
+ /**
+  * Finds the end of a tag or document type declaration, skipping
+  * quoted strings and, in a declaration, the internal subset.
+  * A scan that reaches the end of the decoded text resumes where
+  * it stopped on the next call for the same markup.
+  * @return the position of the closing <code>&gt;</code> or
+  * <code>-1</code> if it has not been decoded yet
+  */
+ protected int scanMarkup(int from, boolean declaration) throws XMLStreamException
+ {
+  int i = from;
+  char quote = 0;
+  int depth = 0;
+  if (pos == scanStart)
+  {
+   i = scanPos;
+   quote = scanQuote;
+   depth = scanDepth;
+  }
+  for (int length = text.length(); length > i; i++)
+  {
+   char c = text.charAt(i);
+   if (0 != quote)
+   {
+    if (quote == c)
+     quote = 0;
+   }
+   else if ('"' == c || '\'' == c)
+    quote = c;
+   else if (declaration && '[' == c)
+    depth++;
+   else if (declaration && ']' == c)
+    depth--;
+   else if ('>' == c && 0 >= depth)
+    return i;
+   else if ('<' == c && !declaration)
+    throw new XMLStreamException("Tag is not terminated", locate(i));
+  }
+  scanStart = pos;
+  scanPos = i;
+  scanQuote = quote;
+  scanDepth = depth;
+  return -1;
+ }
+
+ /**
+  * Finds the terminator of the current markup, resuming a search
+  * that has reached the end of the decoded text on an earlier call.
+  */
+ protected int find(String terminator, int from)
+ {
+  if (pos == scanStart)
+   from = Math.max(from, scanPos - terminator.length() + 1);
+  int end = text.indexOf(terminator, from);
+  if (0 > end)
+  {
+   scanStart = pos;
+   scanPos = text.length();
+  }
+  return end;
+ }
+
+ protected boolean incomplete(String markup) throws XMLStreamException
+ {
+  if (inputEnded)
+   throw new XMLStreamException("Document ends inside a " + markup, locate(text.length()));
+  return false;
+ }
+
+ protected boolean startsWith(String markup)
+ {
+  return text.length() - pos >= markup.length() && matches(markup, markup.length());
+ }
+
+ protected boolean isPrefix(String markup)
+ {
+  int length = text.length() - pos;
+  return markup.length() > length && matches(markup, length);
+ }
+
+ protected boolean matches(String markup, int length)
+ {
+  for (int i = 0; length > i; i++)
+   if (markup.charAt(i) != text.charAt(pos + i))
+    return false;
+  return true;
+ }
+
+ protected int skipName(int from, int to)
+ {
+  while (to > from && !isSpace(text.charAt(from)))
+   from++;
+  return from;
+ }
+
+ /**
+  * Moves the parsing position past the text of the last token, discarding
+  * parsed characters when they take up most of the buffer.
+  */
+ protected void consume(int to)
+ {
+  locate(to);
+  pos = to;
+  scanStart = -1;
+  if (CHUNK_SIZE < pos && text.length() < pos << 1)
+  {
+   text.delete(0, pos);
+   located -= pos;
+   pos = 0;
+  }
+ }
+
+ /**
+  * Advances the location counters to a position in the text.
+  */
+ protected Location locate(int to)
+ {
+  for (; to > located; located++)
+  {
+   offset++;
+   if ('\n' == text.charAt(located))
+   {
+    line++;
+    column = 1;
+   }
+   else
+    column++;
+  }
+  return new RecordedEventReader.RecordedLocation(offset, line, column);
+ }
+
+ protected static String pseudoAttribute(String declaration, String name)
+ {
+  int at = declaration.indexOf(name);
+  if (0 > at)
+   return null;
+  int i = at + name.length();
+  while (declaration.length() > i && isSpace(declaration.charAt(i)))
+   i++;
+  if (declaration.length() <= i || '=' != declaration.charAt(i++))
+   return null;
+  while (declaration.length() > i && isSpace(declaration.charAt(i)))
+   i++;
+  if (declaration.length() <= i)
+   return null;
+  char quote = declaration.charAt(i);
+  int end = declaration.indexOf(quote, i + 1);
+  return ('"' == quote || '\'' == quote) && 0 < end ? declaration.substring(i + 1, end) : null;
+ }
+
+ protected static boolean isSpace(char c)
+ {
+  return ' ' == c || '\n' == c || '\t' == c || '\r' == c;
+ }
+
+ protected static final int CHUNK_SIZE = 1 << 13;
+ protected static final int RETAINED_CAPACITY = 1 << 16;
+ protected static final String COMMENT_START = "<!--";
+ protected static final String CDATA_START = "<![CDATA[";
+ protected static final String DOCTYPE_START = "<!DOCTYPE";
+ protected static final String DECLARATION_TEXT = "<?xml";
+
+ private static final Charset ASCII = Charset.forName("US-ASCII");
+ private static final byte[] UTF8_BOM = { (byte)0xef, (byte)0xbb, (byte)0xbf };
+ private static final byte[] UTF16BE_BOM = { (byte)0xfe, (byte)0xff };
+ private static final byte[] UTF16LE_BOM = { (byte)0xff, (byte)0xfe };
+ private static final byte[] UTF16BE_PROBE = { 0, '<', 0, '?' };
+ private static final byte[] UTF16LE_PROBE = { '<', 0, '?', 0 };
+ private static final byte[] DECLARATION_START = DECLARATION_TEXT.getBytes(ASCII);
+
+ private final XMLEventFactory factory;
+ private CharsetDecoder decoder;
+ private byte[] head = new byte[DECLARATION_LIMIT];
+ private int headLength, headStart;
+ private final ByteBuffer carry = ByteBuffer.allocate(16);
+ private final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+ private StringBuilder text = new StringBuilder(CHUNK_SIZE);
+ private final StringBuilder buffer = new StringBuilder();
+ private int pos, located;
+ private int offset, line, column;
+ private boolean skipLF, inputEnded, complete, started, rootSeen;
+ private int scanStart, scanPos, scanDepth;
+ private char scanQuote;
+ private final List<String> elements = new ArrayList<String>();
+ private int[] marks = new int[16];
+ private final List<String> bindings = new ArrayList<String>();
+ private final Queue<XMLEvent> events = new ArrayDeque<XMLEvent>();
+}
@@ -0,0 +1,58 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Signals that a file was changed by another program while a
+ * {@link ReplacementOutputStream} was replacing it, so that the
+ * new content would have been derived from an outdated version.
+ */
+public class FileChangedException extends IOException
+{
+ /**
+  * Finds a change of the file being replaced among the causes of an error.
+  * @param error the error to examine
+  * @return the change that caused the error, or <code>null</code>
+  * if the error is not caused by a change
+  */
+ public static FileChangedException causeOf(Throwable error)
+ {
+  for (Throwable cause = error; null != cause; cause = cause.getCause())
+   if (cause instanceof FileChangedException)
+    return (FileChangedException)cause;
+  return null;
+ }
+
+ public FileChangedException(File file)
+ {
+  super("File " + file + " has changed while it was being replaced");
+  this.file = file;
+ }
+
+ public File getFile()
+ {
+  return file;
+ }
+
+ private final File file;
+ private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,225 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Set of element ids used in a document. Ids are stored in an
+ * open-addressing table with linear probing, which holds no objects
+ * other than the ids themselves. The set also generates
+ * {@link #slug(CharSequence) ids from heading text} and
+ * {@link #addUnique(String) resolves collisions} between them.
+ */
+public class IdSet
+{
+ /**
+  * Converts text into an id. Letters are converted to lower case,
+  * letters and digits are kept, and each run of other characters is
+  * replaced with a hyphen. Ids that would not begin with a letter are
+  * prefixed with {@link #SLUG_PREFIX}. Text without letters or digits
+  * is converted into {@link #EMPTY_SLUG}.
+  * @param text the text to convert
+  * @return an id that contains only letters, digits and hyphens
+  */
+ public static String slug(CharSequence text)
+ {
+  StringBuilder slug = new StringBuilder(Math.min(text.length(), MAX_SLUG_LENGTH) + SLUG_PREFIX.length());
+  boolean hyphen = false;
+  for (int length = text.length(), i = 0; length > i && MAX_SLUG_LENGTH > slug.length();)
+  {
+   int c = Character.codePointAt(text, i);
+   i += Character.charCount(c);
+   if (Character.isLetterOrDigit(c))
+   {
+    if (hyphen && 0 < slug.length())
+     slug.append('-');
+    hyphen = false;
+    slug.appendCodePoint(c);
+   }
+   else
+    hyphen = true;
+  }
+  String id = slug.toString().toLowerCase(Locale.ROOT);
+  if (0 == id.length())
+   id = EMPTY_SLUG;
+  else if (!Character.isLetter(id.codePointAt(0)))
+   id = SLUG_PREFIX + id;
+  return id;
+ }
+
+ public IdSet()
+ {
+  table = new String[INITIAL_CAPACITY];
+ }
+
+ /**
+  * @return whether the set contains an id
+  */
+ public boolean contains(String id)
+ {
+  for (int i = indexOf(id);; i = i + 1 & table.length - 1)
+  {
+   String entry = table[i];
+   if (null == entry)
+    return false;
+   if (entry.equals(id))
+    return true;
+  }
+ }
+
+ /**
+  * Adds an id to the set.
+  * @return whether the id has been added, <code>false</code> if it
+  * was already in the set
+  */
+ public boolean add(String id)
+ {
+  int i = indexOf(id);
+  for (;; i = i + 1 & table.length - 1)
+  {
+   String entry = table[i];
+   if (null == entry)
+    break;
+   if (entry.equals(id))
+    return false;
+  }
+  table[i] = id;
+  if (++size > table.length >> 1)
+   grow();
+  return true;
+ }
+
+ /**
+  * Removes an id from the set. Entries that follow the id in its probe
+  * sequence are moved back, so that the table needs no markers of
+  * removed ids.
+  * @return whether the id has been removed, <code>false</code> if it
+  * was not in the set
+  */
+ public boolean remove(String id)
+ {
+  int i = indexOf(id);
+  for (;; i = i + 1 & table.length - 1)
+  {
+   String entry = table[i];
+   if (null == entry)
+    return false;
+   if (entry.equals(id))
+    break;
+  }
+  for (int j = i + 1 & table.length - 1;; j = j + 1 & table.length - 1)
+  {
+   String entry = table[j];
+   if (null == entry)
+    break;
+   int home = indexOf(entry);
+   // an entry stays if its home slot lies cyclically between the gap and itself
+   if (i < j ? i < home && home <= j : i < home || home <= j)
+    continue;
+   table[i] = entry;
+   i = j;
+  }
+  table[i] = null;
+  size--;
+  return true;
+ }
+
+ /**
+  * Adds a unique id derived from a base id. If the base is already in
+  * the set, a hyphen and the lowest number that makes the id unique,
+  * starting with <code>2</code>, are appended to it.
+  * @param base the preferred id
+  * @return the id added to the set
+  */
+ public String addUnique(String base)
+ {
+  if (add(base))
+   return base;
+  StringBuilder id = new StringBuilder(base.length() + 4).append(base).append('-');
+  for (int n = 2;; n++)
+  {
+   id.setLength(base.length() + 1);
+   String candidate = id.append(n).toString();
+   if (add(candidate))
+    return candidate;
+  }
+ }
+
+ public int size()
+ {
+  return size;
+ }
+
+ /**
+  * Removes all ids from the set. A table that has grown large is
+  * released, so that a reused set does not hold on to memory.
+  */
+ public void clear()
+ {
+  if (RETAINED_CAPACITY < table.length)
+   table = new String[INITIAL_CAPACITY];
+  else
+   Arrays.fill(table, null);
+  size = 0;
+ }
+
+ protected int indexOf(String id)
+ {
+  int hash = id.hashCode();
+  return (hash ^ hash >>> 16) & table.length - 1;
+ }
+
+ protected void grow()
+ {
+  String[] old = table;
+  table = new String[old.length << 1];
+  for (String entry : old)
+   if (null != entry)
+   {
+    int i = indexOf(entry);
+    while (null != table[i])
+     i = i + 1 & table.length - 1;
+    table[i] = entry;
+   }
+ }
+
+ /**
+  * Prefix of ids generated from text that does not begin with a letter.
+  */
+ public static final String SLUG_PREFIX = "toc-";
+
+ /**
+  * Id generated from text that has no letters or digits.
+  */
+ public static final String EMPTY_SLUG = "toc";
+
+ /**
+  * Maximum number of characters taken from the text when generating
+  * an id.
+  */
+ public static final int MAX_SLUG_LENGTH = 64;
+
+ protected static final int INITIAL_CAPACITY = 64;
+ protected static final int RETAINED_CAPACITY = 1 << 14;
+
+ private String[] table;
+ private int size;
+}
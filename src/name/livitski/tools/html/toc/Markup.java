@@ -0,0 +1,295 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.IOException;
+import java.nio.charset.CharsetEncoder;
+import java.util.Iterator;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.Comment;
+import javax.xml.stream.events.DTD;
+import javax.xml.stream.events.EntityReference;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.ProcessingInstruction;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import static javax.xml.stream.XMLStreamConstants.*;
+
+/**
+ * Helper methods that write serialized XML markup the same way
+ * as the event writers of the Java runtime do.
+ */
+public class Markup
+{
+ /**
+  * Appends escaped text content to serialized markup.
+  * @param out the markup to append to
+  * @param text the text to escape
+  */
+ public static void appendText(StringBuilder out, CharSequence text)
+ {
+  appendText(out, text, null);
+ }
+
+ /**
+  * Appends escaped text content to serialized markup, replacing
+  * the characters that a stream cannot encode with character references.
+  * @param out the markup to append to
+  * @param text the text to escape
+  * @param encoder the encoder of the stream or <code>null</code>
+  * if all characters can be written as they are
+  */
+ public static void appendText(StringBuilder out, CharSequence text, CharsetEncoder encoder)
+ {
+  for (int length = text.length(), i = 0; length > i; i++)
+  {
+   char c = text.charAt(i);
+   switch (c)
+   {
+   case '&':
+    out.append("&amp;");
+    break;
+   case '<':
+    out.append("&lt;");
+    break;
+   case '>':
+    out.append("&gt;");
+    break;
+   default:
+    if (0x80 > c || null == encoder || encoder.canEncode(c))
+     out.append(c);
+    else
+     i = appendReference(out, text, i);
+   }
+  }
+ }
+
+ /**
+  * Appends an escaped attribute value to serialized markup.
+  * The value is not enclosed in quotes.
+  * @param out the markup to append to
+  * @param value the value to escape
+  */
+ public static void appendAttributeValue(StringBuilder out, CharSequence value)
+ {
+  appendAttributeValue(out, value, null);
+ }
+
+ /**
+  * Appends an escaped attribute value to serialized markup, replacing
+  * the characters that a stream cannot encode with character references.
+  * The value is not enclosed in quotes.
+  * @param out the markup to append to
+  * @param value the value to escape
+  * @param encoder the encoder of the stream or <code>null</code>
+  * if all characters can be written as they are
+  */
+ public static void appendAttributeValue(StringBuilder out, CharSequence value, CharsetEncoder encoder)
+ {
+  for (int length = value.length(), i = 0; length > i; i++)
+  {
+   char c = value.charAt(i);
+   switch (c)
+   {
+   case '&':
+    out.append("&amp;");
+    break;
+   case '<':
+    out.append("&lt;");
+    break;
+   case '>':
+    out.append("&gt;");
+    break;
+   case '"':
+    out.append("&quot;");
+    break;
+   default:
+    if (0x80 > c || null == encoder || encoder.canEncode(c))
+     out.append(c);
+    else
+     i = appendReference(out, value, i);
+   }
+  }
+ }
+
+ /**
+  * Appends a serialized event to markup. Start tags are always
+  * completed, thus an empty element is written as a pair of tags.
+  * Document boundary events produce no markup.
+  * @param out the markup to append to
+  * @param event the event to serialize
+  */
+ public static void appendEvent(StringBuilder out, XMLEvent event)
+ {
+  appendEvent(out, event, null);
+ }
+
+ /**
+  * Appends a serialized event to markup that will be written to a stream
+  * as is. Like the event writers of the Java runtime, this method
+  * replaces the characters of text and attribute values that the
+  * stream cannot encode with character references, and leaves
+  * comments, CDATA sections and processing instructions intact.
+  * @param out the markup to append to
+  * @param event the event to serialize
+  * @param encoder the encoder of the stream or <code>null</code>
+  * if all characters can be written as they are
+  * @see #appendEvent(StringBuilder, XMLEvent)
+  */
+ @SuppressWarnings("unchecked")
+ public static void appendEvent(StringBuilder out, XMLEvent event, CharsetEncoder encoder)
+ {
+  switch (event.getEventType())
+  {
+  case START_ELEMENT:
+  {
+   StartElement element = (StartElement)event;
+   out.append('<');
+   appendName(out, element.getName());
+   for (Iterator<Namespace> i = element.getNamespaces(); i.hasNext();)
+   {
+    Namespace namespace = i.next();
+    out.append(" xmlns");
+    if (!namespace.isDefaultNamespaceDeclaration())
+     out.append(':').append(namespace.getPrefix());
+    out.append("=\"");
+    appendAttributeValue(out, namespace.getNamespaceURI(), encoder);
+    out.append('"');
+   }
+   for (Iterator<Attribute> i = element.getAttributes(); i.hasNext();)
+   {
+    Attribute attribute = i.next();
+    out.append(' ');
+    appendName(out, attribute.getName());
+    out.append("=\"");
+    appendAttributeValue(out, attribute.getValue(), encoder);
+    out.append('"');
+   }
+   out.append('>');
+   break;
+  }
+  case END_ELEMENT:
+   out.append("</");
+   appendName(out, event.asEndElement().getName());
+   out.append('>');
+   break;
+  case MarkupEvent.MARKUP:
+   out.append(((MarkupEvent)event).getMarkup());
+   break;
+  case CHARACTERS:
+  case CDATA:
+  case SPACE:
+  {
+   Characters text = (Characters)event;
+   if (text.isCData())
+    out.append("<![CDATA[").append(text.getData()).append("]]>");
+   else
+    appendText(out, text.getData(), encoder);
+   break;
+  }
+  case COMMENT:
+   out.append("<!--").append(((Comment)event).getText()).append("-->");
+   break;
+  case PROCESSING_INSTRUCTION:
+  {
+   ProcessingInstruction pi = (ProcessingInstruction)event;
+   out.append("<?").append(pi.getTarget());
+   if (null != pi.getData())
+    out.append(' ').append(pi.getData());
+   out.append("?>");
+   break;
+  }
+  case ENTITY_REFERENCE:
+   out.append('&').append(((EntityReference)event).getName()).append(';');
+   break;
+  case DTD:
+   out.append(((DTD)event).getDocumentTypeDeclaration());
+   break;
+  case START_DOCUMENT:
+  case END_DOCUMENT:
+   break;
+  default:
+   throw new IllegalArgumentException("Cannot serialize " + event);
+  }
+ }
+
+ protected static void appendName(StringBuilder out, QName name)
+ {
+  String prefix = name.getPrefix();
+  if (null != prefix && 0 < prefix.length())
+   out.append(prefix).append(':');
+  out.append(name.getLocalPart());
+ }
+
+ /**
+  * Appends a reference to the character at a position in text, or to
+  * the supplementary character that begins there.
+  * @return the position of the last <code>char</code> referenced
+  */
+ protected static int appendReference(StringBuilder out, CharSequence text, int i)
+ {
+  char c = text.charAt(i);
+  int codePoint = c;
+  if (Character.isHighSurrogate(c) && text.length() > i + 1 && Character.isLowSurrogate(text.charAt(i + 1)))
+   codePoint = Character.toCodePoint(c, text.charAt(++i));
+  out.append("&#x").append(Integer.toHexString(codePoint)).append(';');
+  return i;
+ }
+
+ /**
+  * Writes serialized markup to a character stream, replacing
+  * the characters that cannot be encoded with character references.
+  * @param out the stream to write to
+  * @param markup the markup to write
+  * @param encoder the encoder of the stream or <code>null</code>
+  * if all characters can be written as they are
+  */
+ public static void write(Appendable out, CharSequence markup, CharsetEncoder encoder)
+   throws IOException
+ {
+  if (null == encoder)
+  {
+   out.append(markup);
+   return;
+  }
+  int length = markup.length();
+  int from = 0;
+  for (int i = 0; length > i; i++)
+  {
+   char c = markup.charAt(i);
+   if (0x80 > c || encoder.canEncode(c))
+    continue;
+   out.append(markup, from, i);
+   int codePoint = c;
+   if (Character.isHighSurrogate(c) && length > i + 1 && Character.isLowSurrogate(markup.charAt(i + 1)))
+    codePoint = Character.toCodePoint(c, markup.charAt(++i));
+   out.append("&#x").append(Integer.toHexString(codePoint)).append(';');
+   from = i + 1;
+  }
+  out.append(markup, from, length);
+ }
+
+ private Markup()
+ {
+ }
+}
@@ -0,0 +1,180 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.CharsetEncoder;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Carries serialized markup through the event pipeline of a
+ * {@link Transformer}. An {@link OutputChannel} writes the markup
+ * to its target stream as is, in order with the surrounding events.
+ * The event is of its own {@link #MARKUP type}, which other event writers
+ * do not recognize. To send the markup elsewhere, parse its
+ * {@link #getMarkup() content} into events.
+ */
+public class MarkupEvent implements XMLEvent
+{
+ /**
+  * The {@link #getEventType() type} of markup events, which differs
+  * from the types defined by StAX.
+  */
+ public static final int MARKUP = 0x100;
+
+ /**
+  * @param markup well-formed, escaped XML markup
+  */
+ public MarkupEvent(String markup)
+ {
+  this.markup = markup;
+ }
+
+ /**
+  * Writes the markup to a character stream.
+  * @param out the stream to write to
+  * @param encoder the encoder of the stream, or <code>null</code>
+  * if all characters can be written as they are
+  * @see Markup#write(Appendable, CharSequence, CharsetEncoder)
+  */
+ public void writeTo(Writer out, CharsetEncoder encoder) throws IOException
+ {
+  Markup.write(out, markup, encoder);
+ }
+
+ /**
+  * Returns the markup carried by this event.
+  */
+ public String getMarkup()
+ {
+  return markup;
+ }
+
+ public int getEventType()
+ {
+  return MARKUP;
+ }
+
+ public Location getLocation()
+ {
+  return null;
+ }
+
+ public boolean isStartElement()
+ {
+  return false;
+ }
+
+ public boolean isAttribute()
+ {
+  return false;
+ }
+
+ public boolean isNamespace()
+ {
+  return false;
+ }
+
+ public boolean isEndElement()
+ {
+  return false;
+ }
+
+ public boolean isEntityReference()
+ {
+  return false;
+ }
+
+ public boolean isProcessingInstruction()
+ {
+  return false;
+ }
+
+ public boolean isCharacters()
+ {
+  return false;
+ }
+
+ public boolean isStartDocument()
+ {
+  return false;
+ }
+
+ public boolean isEndDocument()
+ {
+  return false;
+ }
+
+ public StartElement asStartElement()
+ {
+  throw new ClassCastException("Markup event is not a start element");
+ }
+
+ public EndElement asEndElement()
+ {
+  throw new ClassCastException("Markup event is not an end element");
+ }
+
+ public Characters asCharacters()
+ {
+  throw new ClassCastException("Markup event is not a text node");
+ }
+
+ public QName getSchemaType()
+ {
+  return null;
+ }
+
+ public void writeAsEncodedUnicode(Writer writer) throws XMLStreamException
+ {
+  try
+  {
+   writeTo(writer, null);
+  }
+  catch (IOException e)
+  {
+   throw new XMLStreamException("Could not write the markup", e);
+  }
+ }
+
+ @Override
+ public String toString()
+ {
+  return getMarkup();
+ }
+
+ /**
+  * Constructor for subclasses that store their markup elsewhere.
+  * Such subclasses must override {@link #getMarkup()} and
+  * {@link #writeTo(Writer, CharsetEncoder)}.
+  */
+ protected MarkupEvent()
+ {
+ }
+
+ private String markup;
+}
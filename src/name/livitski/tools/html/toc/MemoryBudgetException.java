@@ -0,0 +1,56 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Signals that a document could not be transformed within the
+ * {@link Transformer#setMemoryBudget(long) memory budget} of a
+ * transformer and there was no way to continue with less memory.
+ */
+public class MemoryBudgetException extends XMLStreamException
+{
+ /**
+  * Finds a memory budget violation among the causes of an error.
+  * @param error the error to examine
+  * @return the violation that caused the error, or <code>null</code>
+  * if the error is not caused by a budget violation
+  */
+ public static MemoryBudgetException causeOf(Throwable error)
+ {
+  for (Throwable cause = error; null != cause; cause = cause.getCause())
+   if (cause instanceof MemoryBudgetException)
+    return (MemoryBudgetException)cause;
+  return null;
+ }
+
+ public MemoryBudgetException(String msg)
+ {
+  super(msg);
+ }
+
+ public MemoryBudgetException(String msg, Location location)
+ {
+  super(msg, location);
+ }
+
+ private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,80 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+/**
+ * Describes an outline element found in a document before
+ * the document is transformed.
+ * @see OutlineScanner
+ * @see Transformer#setOutline(java.util.List)
+ */
+public class OutlineEntry
+{
+ public OutlineEntry(String element, String id, String text, long offset)
+ {
+  this.element = element;
+  this.id = id;
+  this.text = text;
+  this.offset = offset;
+ }
+
+ /**
+  * @return the name of the outline element
+  */
+ public String getElement()
+ {
+  return element;
+ }
+
+ /**
+  * @return the value of the element's <code>id</code> attribute in
+  * the source document, or <code>null</code> if the element has
+  * no id
+  */
+ public String getId()
+ {
+  return id;
+ }
+
+ /**
+  * @return the text content of the element
+  */
+ public String getText()
+ {
+  return text;
+ }
+
+ /**
+  * @return the position of the element's start tag in the source
+  */
+ public long getOffset()
+ {
+  return offset;
+ }
+
+ @Override
+ public String toString()
+ {
+  return "<" + element + (null == id ? "" : " id=\"" + id + '"') + '>' + text
+   + " at offset " + offset;
+ }
+
+ private String element, id, text;
+ private long offset;
+}
@@ -0,0 +1,849 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLEventFactory;
+
+/**
+ * Finds the outline elements of a document stored in a file without
+ * parsing the entire document. The scanner locates the TOC
+ * {@link TocPIParser#PI_TARGET processing instructions}, splits the
+ * rest of the file into byte ranges and searches those ranges
+ * for outline elements in parallel. The results are merged in
+ * document order and can be {@link Transformer#setOutline(List) passed}
+ * to a transformer, which then writes the document in a single pass
+ * without buffering the content that follows the TOC.
+ * The scanner searches for <code>&lt;</code> characters eight bytes at
+ * a time and looks up the name that follows in a table of outline
+ * elements indexed by its first byte. Other elements are passed over
+ * without reading their attributes, unless the scanner has to
+ * {@link #getIds() collect ids}. Only the outline elements found are
+ * read in full, along with comments, CDATA sections, declarations and
+ * processing instructions, which can hide markup that should not
+ * be matched.
+ * The scanner recognizes the markup of XML documents, but does not
+ * check whether documents are well-formed. It only supports files
+ * {@link #isSupported(Charset) encoded} in ASCII-compatible
+ * character sets, and files no longer than 2 GB.
+ */
+public class OutlineScanner
+{
+ /**
+  * Tells whether the scanner can read documents in a character set.
+  * Supported character sets encode the characters of XML markup
+  * the same way as ASCII does, and never use those codes in
+  * multi-byte sequences.
+  */
+ public static boolean isSupported(Charset charset)
+ {
+  if (!charset.canEncode())
+   return false;
+  try
+  {
+   return Arrays.equals(MARKUP_PROBE.getBytes(charset.name()), MARKUP_PROBE.getBytes("US-ASCII"));
+  }
+  catch (UnsupportedEncodingException e)
+  {
+   return false;
+  }
+ }
+
+ /**
+  * Creates a scanner for a file.
+  * @param file the document to scan
+  * @param charset the encoding of the document
+  * @throws IllegalArgumentException if the scanner does not
+  * {@link #isSupported(Charset) support} that encoding
+  */
+ public OutlineScanner(File file, Charset charset)
+ {
+  if (!isSupported(charset))
+   throw new IllegalArgumentException("Character set " + charset + " is not supported by the outline scanner");
+  this.file = file;
+  this.charset = charset;
+ }
+
+ /**
+  * Scans the file for the outline elements.
+  * @param threads the number of threads to scan the file with
+  * @return the outline elements following the TOC placeholder in
+  * document order, or <code>null</code> if the file does not contain
+  * a valid opening processing instruction with an outline, or contains
+  * a malformed reference that the parser should report instead
+  * @throws IOException if there is an error reading the file
+  */
+ public List<OutlineEntry> scan(int threads) throws IOException
+ {
+  FileInputStream in = new FileInputStream(file);
+  try
+  {
+   FileChannel channel = in.getChannel();
+   long size = channel.size();
+   if (Integer.MAX_VALUE < size)
+    throw new IOException("File " + file + " is too large for the outline scanner");
+   buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+   limit = (int)size;
+   ids = null;
+   collectingIds = false;
+   int start = locatePlaceholder();
+   if (0 > start)
+    return null;
+   return scan(start, Math.max(1, threads));
+  }
+  catch (MalformedMarkupException malformed)
+  {
+   ids = null;
+   return null;
+  }
+  finally
+  {
+   buffer = null;
+   outline = null;
+   outlineByFirstByte = null;
+   in.close();
+  }
+ }
+
+ /**
+  * Returns the ids of all elements that follow the TOC placeholder,
+  * found by the last {@link #scan(int) scan}. The ids are only collected
+  * when the TOC processing instruction asks to
+  * {@link TocPIData#isSlugIds() derive ids from text}, and can then be
+  * {@link Transformer#setReservedIds(java.util.Collection) reserved},
+  * so that generated ids do not collide with them.
+  * @return the list of ids in document order or <code>null</code>
+  * if ids have not been collected
+  */
+ public List<String> getIds()
+ {
+  return ids;
+ }
+
+ /**
+  * Size of the initial portion of each byte range, in bytes, in which
+  * the scanner records the positions of markup. These positions are
+  * used to check that the results from adjacent ranges agree.
+  */
+ protected static final int SYNC_WINDOW = 1 << 16;
+
+ /**
+  * Minimum length of a byte range worth scanning on a separate thread.
+  */
+ protected static final int MIN_RANGE = 1 << 16;
+
+ protected List<OutlineEntry> scan(int start, int threads) throws IOException
+ {
+  int length = limit - start;
+  if (length / MIN_RANGE < threads)
+   threads = Math.max(1, length / MIN_RANGE);
+  int[] bounds = new int[threads + 1];
+  bounds[0] = start;
+  bounds[threads] = limit;
+  for (int i = 1; threads > i; i++)
+  {
+   int bound = indexOf('<', Math.max(bounds[i - 1], start + (int)((long)length * i / threads)), limit);
+   bounds[i] = 0 > bound ? limit : bound;
+  }
+  List<Range> ranges = new ArrayList<Range>(threads);
+  for (int i = 0; threads > i; i++)
+   ranges.add(new Range(bounds[i], bounds[i + 1], 0 < i));
+  if (1 == threads)
+  {
+   Range range = ranges.get(0);
+   range.call();
+   if (collectingIds)
+    ids = range.ids;
+   return range.entries;
+  }
+  ExecutorService executor = Executors.newFixedThreadPool(threads);
+  try
+  {
+   List<Future<Range>> results = executor.invokeAll(ranges);
+   List<OutlineEntry> entries = new ArrayList<OutlineEntry>();
+   if (collectingIds)
+    ids = new ArrayList<String>();
+   int sync = start;
+   for (Future<Range> result : results)
+   {
+    Range range = result.get();
+    if (sync >= range.to)
+     continue;
+    if (sync != range.from && 0 > Arrays.binarySearch(range.starts, 0, range.startCount, sync))
+    {
+     // the range began inside markup that spans its boundary, scan it again
+     range = new Range(sync, range.to, false);
+     range.call();
+    }
+    for (OutlineEntry entry : range.entries)
+     if (sync <= entry.getOffset())
+      entries.add(entry);
+    if (collectingIds)
+     for (int i = 0; range.ids.size() > i; i++)
+      if (sync <= range.idOffsets[i])
+       ids.add(range.ids.get(i));
+    sync = range.end;
+   }
+   return entries;
+  }
+  catch (InterruptedException e)
+  {
+   throw new IOException("Outline scan of " + file + " has been interrupted");
+  }
+  catch (ExecutionException e)
+  {
+   Throwable cause = e.getCause();
+   if (cause instanceof IOException)
+    throw (IOException)cause;
+   if (cause instanceof RuntimeException)
+    throw (RuntimeException)cause;
+   throw new IOException("Error scanning " + file + ": " + cause, cause);
+  }
+  finally
+  {
+   executor.shutdownNow();
+  }
+ }
+
+ /**
+  * Finds the TOC processing instructions and reads the outline from
+  * the opening instruction.
+  * @return the position that follows the TOC placeholder or
+  * <code>-1</code> if there is no valid placeholder in the file
+  */
+ protected int locatePlaceholder() throws IOException
+ {
+  Range prolog = new Range(0, limit, false);
+  int at = prolog.findPI(0);
+  if (0 > at)
+   return -1;
+  TocPIData data = parsePI(at, prolog.end);
+  if (null == data || !data.isOpening())
+   return -1;
+  String attr = data.getOutline();
+  if (null == attr || 0 == attr.length())
+   return -1;
+  OutlineList names = new OutlineList(attr);
+  int depth = names.size();
+  if (0 < data.getMaxdepth() && data.getMaxdepth() < depth)
+   depth = data.getMaxdepth();
+  outline = new byte[depth][];
+  outlineByFirstByte = new int[256][];
+  for (int i = 0; outline.length > i; i++)
+  {
+   byte[] name = outline[i] = names.get(i).getBytes(charset.name());
+   if (0 == name.length)
+    continue;
+   int first = name[0] & 0xff;
+   int[] candidates = outlineByFirstByte[first];
+   candidates = null == candidates ? new int[1] : Arrays.copyOf(candidates, candidates.length + 1);
+   candidates[candidates.length - 1] = i;
+   outlineByFirstByte[first] = candidates;
+  }
+  collectingIds = data.isSlugIds();
+  if (!data.isClosing())
+  {
+   at = prolog.findPI(prolog.end);
+   if (0 > at)
+    return -1;
+  }
+  return prolog.end;
+ }
+
+ protected TocPIData parsePI(int at, int end) throws IOException
+ {
+  int from = at + 2 + PI_TARGET_BYTES.length;
+  String data = decode(from, end - 2 - from);
+  try
+  {
+   return new TocPIParser().parse(
+     XMLEventFactory.newFactory().createProcessingInstruction(TocPIParser.PI_TARGET, data));
+  }
+  catch (TocPIException invalid)
+  {
+   return null;
+  }
+ }
+
+ protected String decode(int from, int length)
+ {
+  byte[] bytes = new byte[length];
+  for (int i = 0; length > i; i++)
+   bytes[i] = buffer.get(from + i);
+  return new String(bytes, charset);
+ }
+
+ /**
+  * Finds an ASCII character in the buffer. The buffer is read eight
+  * bytes at a time, which are tested for that character all at once.
+  * The test relies on the big-endian byte order of mapped buffers.
+  */
+ protected int indexOf(char c, int from, int to)
+ {
+  int i = from;
+  long pattern = c * LOW_BITS;
+  for (int last = to - 8; last >= i; i += 8)
+  {
+   long word = buffer.getLong(i) ^ pattern;
+   // sets the high bit of each byte that was zero, with no carries between bytes
+   long found = ~(((word & HIGH_BITS_CLEAR) + HIGH_BITS_CLEAR) | word | HIGH_BITS_CLEAR);
+   if (0L != found)
+    return i + (Long.numberOfLeadingZeros(found) >>> 3);
+  }
+  for (; to > i; i++)
+   if (c == buffer.get(i))
+    return i;
+  return -1;
+ }
+
+ protected int indexOf(byte[] pattern, int from, int to)
+ {
+  char first = (char)pattern[0];
+  for (int last = to - pattern.length, i = from; last >= i; i++)
+  {
+   i = indexOf(first, i, last + 1);
+   if (0 > i)
+    break;
+   if (startsWith(pattern, i))
+    return i;
+  }
+  return -1;
+ }
+
+ protected boolean startsWith(byte[] pattern, int at)
+ {
+  if (limit - at < pattern.length)
+   return false;
+  for (int i = 0; pattern.length > i; i++)
+   if (pattern[i] != buffer.get(at + i))
+    return false;
+  return true;
+ }
+
+ protected static boolean isNameChar(int b)
+ {
+  return !(' ' == b || '\t' == b || '\n' == b || '\r' == b
+    || '>' == b || '/' == b || '=' == b || '<' == b || '?' == b);
+ }
+
+ protected static boolean isSpace(int b)
+ {
+  return ' ' == b || '\t' == b || '\n' == b || '\r' == b;
+ }
+
+ /**
+  * Replaces character and entity references in parsed text and
+  * normalizes its line breaks the way an XML parser would do.
+  * References to undeclared entities are dropped, except for
+  * <code>&amp;copy;</code>.
+  * @throws MalformedMarkupException if a character reference is
+  * malformed or refers to a character not allowed in XML
+  */
+ protected static void appendText(StringBuilder out, String raw, boolean attribute)
+ {
+  int length = raw.length();
+  for (int i = 0; length > i; i++)
+  {
+   char c = raw.charAt(i);
+   if ('\r' == c)
+   {
+    if (length > i + 1 && '\n' == raw.charAt(i + 1))
+     i++;
+    c = '\n';
+   }
+   if (attribute && ('\n' == c || '\t' == c))
+    c = ' ';
+   if ('&' != c)
+   {
+    out.append(c);
+    continue;
+   }
+   int semi = raw.indexOf(';', i);
+   if (0 > semi)
+   {
+    out.append(c);
+    continue;
+   }
+   String ref = raw.substring(i + 1, semi);
+   i = semi;
+   if (ref.startsWith("#"))
+   {
+    int code = codePointOf(ref);
+    if (0 > code)
+     throw new MalformedMarkupException("Invalid character reference &" + ref + ';');
+    out.appendCodePoint(code);
+   }
+   else if ("lt".equals(ref))
+    out.append('<');
+   else if ("gt".equals(ref))
+    out.append('>');
+   else if ("amp".equals(ref))
+    out.append('&');
+   else if ("quot".equals(ref))
+    out.append('"');
+   else if ("apos".equals(ref))
+    out.append('\'');
+   else if ("copy".equals(ref))
+    out.append('\u00a9');
+  }
+ }
+
+ /**
+  * Decodes the number in a character reference.
+  * @param ref the reference without its leading <code>&amp;</code> and
+  * trailing <code>;</code>, e.g. <code>#x2014</code>
+  * @return the character's code point, or <code>-1</code> if the number is
+  * malformed or the character is not allowed in XML
+  */
+ protected static int codePointOf(String ref)
+ {
+  int radix = 10, start = 1;
+  if (ref.startsWith("#x"))
+  {
+   radix = 16;
+   start = 2;
+  }
+  int length = ref.length();
+  if (length <= start)
+   return -1;
+  int code = 0;
+  for (int i = start; length > i; i++)
+  {
+   char c = ref.charAt(i);
+   int digit;
+   if ('0' <= c && '9' >= c)
+    digit = c - '0';
+   else if (16 == radix && 'a' <= c && 'f' >= c)
+    digit = c - 'a' + 10;
+   else if (16 == radix && 'A' <= c && 'F' >= c)
+    digit = c - 'A' + 10;
+   else
+    return -1;
+   code = code * radix + digit;
+   if (Character.MAX_CODE_POINT < code)
+    return -1;
+  }
+  if (0x20 <= code ? 0xD800 <= code && 0xDFFF >= code || 0xFFFE == code || 0xFFFF == code
+    : 0x9 != code && 0xA != code && 0xD != code)
+   return -1;
+  return code;
+ }
+
+ /**
+  * Thrown when the scanner finds markup that an XML parser would reject.
+  * The scan is then abandoned, so that the parser reports the error
+  * the way it does without the scanner.
+  */
+ protected static class MalformedMarkupException extends RuntimeException
+ {
+  public MalformedMarkupException(String message)
+  {
+   super(message);
+  }
+
+  private static final long serialVersionUID = 1L;
+ }
+
+ /**
+  * Scans a range of bytes for outline elements.
+  */
+ protected class Range implements Callable<Range>
+ {
+  public Range call()
+  {
+   int pos = from;
+   while (to > pos)
+   {
+    int at = indexOf('<', pos, limit);
+    if (0 > at || to <= at)
+    {
+     pos = 0 > at ? limit : at;
+     break;
+    }
+    if (recording && from + SYNC_WINDOW > at)
+     record(at);
+    pos = collectingIds ? skipMarkup(at) : passMarkup(at);
+   }
+   if (limit > pos && '<' != buffer.get(pos))
+   {
+    pos = indexOf('<', pos, limit);
+    if (0 > pos)
+     pos = limit;
+   }
+   end = pos;
+   return this;
+  }
+
+  public Range(int from, int to, boolean recording)
+  {
+   this.from = from;
+   this.to = to;
+   this.recording = recording;
+   if (recording)
+    starts = new int[64];
+  }
+
+  /**
+   * Finds the next TOC processing instruction.
+   * @return the position of that instruction, with {@link #end}
+   * pointing past it, or <code>-1</code> if there is none
+   */
+  protected int findPI(int pos)
+  {
+   while (limit > pos)
+   {
+    int at = indexOf('<', pos, limit);
+    if (0 > at)
+     break;
+    pos = skipMarkup(at);
+    if (limit > at + 1 && '?' == buffer.get(at + 1) && startsWith(PI_TARGET_BYTES, at + 2)
+      && limit > at + 2 + PI_TARGET_BYTES.length
+      && !isNameChar(buffer.get(at + 2 + PI_TARGET_BYTES.length)))
+    {
+     end = pos;
+     return at;
+    }
+   }
+   end = limit;
+   return -1;
+  }
+
+  /**
+   * Skips over markup, recording any outline elements found.
+   * @param at the position of the <code>&lt;</code> character
+   * @return the position following the markup
+   */
+  protected int skipMarkup(int at)
+  {
+   if (limit <= at + 1)
+    return limit;
+   byte next = buffer.get(at + 1);
+   if ('!' == next)
+   {
+    if (startsWith(COMMENT_START, at))
+     return skipPast(COMMENT_END, at + COMMENT_START.length);
+    if (startsWith(CDATA_START, at))
+     return skipPast(CDATA_END, at + CDATA_START.length);
+    return skipDeclaration(at);
+   }
+   if ('?' == next)
+    return skipPast(PI_END, at + 2);
+   if ('/' == next)
+    return skipTag(at);
+   int element = matchOutline(at + 1);
+   if (0 > element)
+    return skipTag(at);
+   return readEntry(at, element);
+  }
+
+  /**
+   * Passes over markup that cannot contain an outline element or
+   * a <code>&lt;</code> character without reading it. Other markup
+   * is {@link #skipMarkup(int) skipped}.
+   * @param at the position of the <code>&lt;</code> character
+   * @return the position to search for the next markup from
+   */
+  protected int passMarkup(int at)
+  {
+   if (limit <= at + 1)
+    return limit;
+   byte next = buffer.get(at + 1);
+   if ('!' == next || '?' == next || 0 <= matchOutline(at + 1))
+    return skipMarkup(at);
+   return at + 1;
+  }
+
+  protected int skipPast(byte[] terminator, int from)
+  {
+   int at = indexOf(terminator, from, limit);
+   return 0 > at ? limit : at + terminator.length;
+  }
+
+  /**
+   * Skips over a tag. When {@link #getIds() collecting ids}, records
+   * the value of the tag's <code>id</code> attribute.
+   */
+  protected int skipTag(int at)
+  {
+   byte quote = 0;
+   int value = -1;
+   for (int i = at + 1; limit > i; i++)
+   {
+    byte b = buffer.get(i);
+    if (0 != quote)
+    {
+     if (quote == b)
+     {
+      quote = 0;
+      if (0 <= value)
+      {
+       recordId(at, value, i);
+       value = -1;
+      }
+     }
+    }
+    else if ('"' == b || '\'' == b)
+    {
+     quote = b;
+     if (collectingIds && isIdValue(i))
+      value = i + 1;
+    }
+    else if ('>' == b)
+     return i + 1;
+   }
+   return limit;
+  }
+
+  /**
+   * @return whether the quote at a position opens the value of
+   * an <code>id</code> attribute
+   */
+  protected boolean isIdValue(int quote)
+  {
+   int i = quote - 1;
+   while (0 <= i && isSpace(buffer.get(i)))
+    i--;
+   if (0 > i || '=' != buffer.get(i))
+    return false;
+   i--;
+   while (0 <= i && isSpace(buffer.get(i)))
+    i--;
+   return 2 <= i && 'd' == buffer.get(i) && 'i' == buffer.get(i - 1) && isSpace(buffer.get(i - 2));
+  }
+
+  protected void recordId(int at, int from, int to)
+  {
+   StringBuilder value = new StringBuilder();
+   appendText(value, decode(from, to - from), true);
+   if (idOffsets.length == ids.size())
+    idOffsets = Arrays.copyOf(idOffsets, ids.size() * 2);
+   idOffsets[ids.size()] = at;
+   ids.add(value.toString());
+  }
+
+  protected int skipDeclaration(int at)
+  {
+   byte quote = 0;
+   int depth = 0;
+   for (int i = at + 2; limit > i; i++)
+   {
+    byte b = buffer.get(i);
+    if (0 != quote)
+    {
+     if (quote == b)
+      quote = 0;
+    }
+    else if ('"' == b || '\'' == b)
+     quote = b;
+    else if ('[' == b)
+     depth++;
+    else if (']' == b)
+     depth--;
+    else if ('>' == b && 0 >= depth)
+     return i + 1;
+   }
+   return limit;
+  }
+
+  /**
+   * @return the index of the outline element whose name begins at
+   * a position, or <code>-1</code> if there is no such element
+   */
+  protected int matchOutline(int at)
+  {
+   if (null == outline || limit <= at)
+    return -1;
+   int[] candidates = outlineByFirstByte[buffer.get(at) & 0xff];
+   if (null == candidates)
+    return -1;
+   for (int i : candidates)
+   {
+    byte[] name = outline[i];
+    if (startsWith(name, at) && (limit == at + name.length || !isNameChar(buffer.get(at + name.length))))
+     return i;
+   }
+   return -1;
+  }
+
+  protected int readEntry(int at, int element)
+  {
+   byte[] name = outline[element];
+   String id = null;
+   int pos = at + 1 + name.length;
+   boolean empty = false;
+   // attributes
+   while (limit > pos)
+   {
+    byte b = buffer.get(pos);
+    if (isSpace(b))
+     pos++;
+    else if ('>' == b)
+    {
+     pos++;
+     break;
+    }
+    else if ('/' == b)
+    {
+     empty = true;
+     pos = skipTag(pos);
+     break;
+    }
+    else
+    {
+     int nameStart = pos;
+     while (limit > pos && isNameChar(buffer.get(pos)))
+      pos++;
+     int nameEnd = pos;
+     int eq = indexOf('=', pos, limit);
+     if (0 > eq)
+      return limit;
+     int open = eq + 1;
+     while (limit > open && isSpace(buffer.get(open)))
+      open++;
+     if (limit <= open)
+      return limit;
+     int close = indexOf((char)buffer.get(open), open + 1, limit);
+     if (0 > close)
+      return limit;
+     if (2 == nameEnd - nameStart && 'i' == buffer.get(nameStart) && 'd' == buffer.get(nameStart + 1))
+     {
+      StringBuilder value = new StringBuilder();
+      appendText(value, decode(open + 1, close - open - 1), true);
+      id = value.toString();
+     }
+     pos = close + 1;
+    }
+   }
+   StringBuilder text = new StringBuilder();
+   if (!empty)
+    pos = readContent(pos, name, text);
+   entries.add(new OutlineEntry(
+     new String(name, charset), id, text.toString(), at));
+   return pos;
+  }
+
+  protected int readContent(int pos, byte[] name, StringBuilder text)
+  {
+   int depth = 0;
+   while (limit > pos)
+   {
+    int at = indexOf('<', pos, limit);
+    if (0 > at)
+     at = limit;
+    if (pos < at)
+     appendText(text, decode(pos, at - pos), false);
+    if (limit <= at + 1)
+     return limit;
+    byte next = buffer.get(at + 1);
+    if ('!' == next && startsWith(CDATA_START, at))
+    {
+     int from = at + CDATA_START.length;
+     int end = indexOf(CDATA_END, from, limit);
+     if (0 > end)
+      return limit;
+     String raw = decode(from, end - from);
+     text.append(raw.replace("\r\n", "\n").replace('\r', '\n'));
+     pos = end + CDATA_END.length;
+    }
+    else if ('!' == next || '?' == next)
+     pos = skipMarkup(at);
+    else
+    {
+     boolean closing = '/' == next;
+     int nameAt = closing ? at + 2 : at + 1;
+     boolean same = startsWith(name, nameAt)
+       && limit > nameAt + name.length && !isNameChar(buffer.get(nameAt + name.length));
+     pos = skipTag(at);
+     if (same && closing)
+     {
+      if (0 == depth)
+       return pos;
+      depth--;
+     }
+     else if (same && '/' != buffer.get(pos - 2))
+      depth++;
+    }
+   }
+   return limit;
+  }
+
+  protected void record(int at)
+  {
+   if (starts.length == startCount)
+    starts = Arrays.copyOf(starts, startCount * 2);
+   starts[startCount++] = at;
+  }
+
+  protected final int from, to;
+  protected int end;
+  protected final List<OutlineEntry> entries = new ArrayList<OutlineEntry>();
+  protected final List<String> ids = new ArrayList<String>();
+  protected int[] idOffsets = new int[16];
+  private boolean recording;
+  private int[] starts;
+  private int startCount;
+ }
+
+ protected static final String MARKUP_PROBE = "<?!-[]/>=\"'&#;:_.09AZaz \t\r\n";
+
+ private static byte[] ascii(String markup)
+ {
+  try
+  {
+   return markup.getBytes("US-ASCII");
+  }
+  catch (UnsupportedEncodingException e)
+  {
+   throw new ExceptionInInitializerError(e);
+  }
+ }
+
+ private static final byte[] PI_TARGET_BYTES = ascii(TocPIParser.PI_TARGET);
+ private static final byte[] COMMENT_START = ascii("<!--");
+ private static final byte[] COMMENT_END = ascii("-->");
+ private static final byte[] CDATA_START = ascii("<![CDATA[");
+ private static final byte[] CDATA_END = ascii("]]>");
+ private static final byte[] PI_END = ascii("?>");
+ private static final long LOW_BITS = 0x0101010101010101L;
+ private static final long HIGH_BITS_CLEAR = 0x7f7f7f7f7f7f7f7fL;
+
+ private File file;
+ private Charset charset;
+ private ByteBuffer buffer;
+ private int limit;
+ private byte[][] outline;
+ private int[][] outlineByFirstByte;
+ private boolean collectingIds;
+ private List<String> ids;
+}
@@ -0,0 +1,193 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Event writer that sends the {@link Transformer transformer's} output
+ * to a character stream and allows the transformer to push the
+ * content written so far to that stream before the document ends.
+ * All writing methods delegate to an event writer
+ * {@link XMLOutputFactory#createXMLEventWriter(Writer) created} for
+ * the target stream, except for {@link MarkupEvent markup events},
+ * which are written to the stream directly.
+ */
+public class OutputChannel implements XMLEventWriter
+{
+ /**
+  * Creates a channel that writes to a character stream.
+  * @param target the stream that receives serialized output
+  * @param outputFactory the factory that creates the underlying
+  * event writer
+  * @param eventFactory the factory used to generate auxiliary events
+  * @throws XMLStreamException if the event writer cannot be created
+  */
+ public OutputChannel(Writer target, XMLOutputFactory outputFactory, XMLEventFactory eventFactory)
+  throws XMLStreamException
+ {
+  this.target = target;
+  this.eventFactory = eventFactory;
+  this.events = outputFactory.createXMLEventWriter(target);
+  // like the event writers of the Java runtime, check every character
+  // against the stream's encoder, which also replaces supplementary
+  // characters with references in a UTF-8 or UTF-16 stream
+  if (target instanceof OutputStreamWriter)
+  {
+   String encoding = ((OutputStreamWriter)target).getEncoding();
+   try
+   {
+    this.encoder = Charset.forName(encoding).newEncoder();
+   }
+   catch (IllegalArgumentException unknown)
+   {
+    // the stream's encoding has no Charset, write markup as is 
+   }
+  }
+ }
+
+ /**
+  * Returns the encoder used to find the characters that the target
+  * stream cannot encode.
+  * @return the encoder or <code>null</code> if all characters are
+  * written as they are
+  */
+ public CharsetEncoder getEncoder()
+ {
+  return encoder;
+ }
+
+ /**
+  * Writes serialized markup to the target stream, following any
+  * events added earlier. Characters that the stream cannot encode
+  * are replaced with character references.
+  * @param markup the event that holds well-formed, escaped XML markup
+  * @throws XMLStreamException if there is an error writing the
+  * markup to the target stream
+  */
+ public void writeMarkup(MarkupEvent markup) throws XMLStreamException
+ {
+  events.add(eventFactory.createCharacters(""));
+  events.flush();
+  try
+  {
+   markup.writeTo(target, encoder);
+  }
+  catch (IOException e)
+  {
+   throw new XMLStreamException("Could not write the transformer's output", e);
+  }
+ }
+
+ /**
+  * Makes sure that everything added to this channel so far has
+  * reached the target stream. Start tags left open by the
+  * underlying writer are completed before flushing.
+  * @throws XMLStreamException if there is an error writing the
+  * content to the target stream
+  */
+ public void commit() throws XMLStreamException
+ {
+  // an empty text node makes the writer complete a pending start tag
+  events.add(eventFactory.createCharacters(""));
+  events.flush();
+  try
+  {
+   target.flush();
+  }
+  catch (IOException e)
+  {
+   throw new XMLStreamException("Could not flush the transformer's output", e);
+  }
+ }
+
+ /**
+  * @return the character stream that receives the output
+  */
+ public Writer getTarget()
+ {
+  return target;
+ }
+
+ public void add(XMLEvent event) throws XMLStreamException
+ {
+  if (event instanceof MarkupEvent)
+   writeMarkup((MarkupEvent)event);
+  else
+   events.add(event);
+ }
+
+ public void add(XMLEventReader reader) throws XMLStreamException
+ {
+  events.add(reader);
+ }
+
+ public void flush() throws XMLStreamException
+ {
+  events.flush();
+ }
+
+ public void close() throws XMLStreamException
+ {
+  events.close();
+ }
+
+ public String getPrefix(String uri) throws XMLStreamException
+ {
+  return events.getPrefix(uri);
+ }
+
+ public void setPrefix(String prefix, String uri) throws XMLStreamException
+ {
+  events.setPrefix(prefix, uri);
+ }
+
+ public void setDefaultNamespace(String uri) throws XMLStreamException
+ {
+  events.setDefaultNamespace(uri);
+ }
+
+ public void setNamespaceContext(NamespaceContext context)
+   throws XMLStreamException
+ {
+  events.setNamespaceContext(context);
+ }
+
+ public NamespaceContext getNamespaceContext()
+ {
+  return events.getNamespaceContext();
+ }
+
+ private Writer target;
+ private XMLEventWriter events;
+ private XMLEventFactory eventFactory;
+ private CharsetEncoder encoder;
+}
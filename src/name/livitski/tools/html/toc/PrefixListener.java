@@ -0,0 +1,44 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.util.EventListener;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Receives notifications when a {@link Transformer} has written
+ * the portion of a document that precedes the TOC placeholder.
+ * @see Transformer#addPrefixListener(PrefixListener)
+ */
+public interface PrefixListener extends EventListener
+{
+ /**
+  * Called once per document after the content preceding the
+  * opening {@link TocPIParser#PI_TARGET processing instruction}
+  * has been written to the transformer's result. When the result is
+  * a {@link javax.xml.transform.stream.StreamResult character or
+  * byte stream}, that content has also been flushed to the stream.
+  * @param transformer the transformer that processes the document
+  * @throws XMLStreamException to abort
+  * the transformation
+  */
+ void prefixCommitted(Transformer transformer)
+  throws XMLStreamException;
+}
@@ -21,10 +21,19 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -43,6 +52,28 @@ import javax.xml.transform.stream.StreamSource;
  * Set the <code>name.livitski.tools.html.toc.encoding</code> system
  * property to change the encoding in which the files are read and written.
  * If not set, the system default encoding is used.
+ * Set the {@link #SCAN_THREADS_PROPERTY} system property to a positive
+ * number to {@link OutlineScanner scan} the file for outline elements
+ * with that many threads before transforming it.
+ * Set the <code>name.livitski.tools.html.toc.memory.budget</code> system
+ * property to limit the memory used to hold the content following
+ * the TOC, as described {@link Transformer#setMemoryBudget(long) here}.
+ * Set the {@link #ERRORS_PROPERTY} system property to
+ * {@link #COLLECT_ERRORS} to continue past errors that the transformer
+ * can recover from and print all problems found in the file as
+ * {@link ErrorHandler#writeDiagnostics(Appendable, String) diagnostics}.
+ * Set the {@link #CHECK_PROPERTY} system property to <code>true</code>
+ * to {@link Transformer#check(javax.xml.transform.Source) check}
+ * the TOC markup of the file without writing any output.
+ * Set the {@link #IN_PLACE_PROPERTY} system property to <code>true</code>
+ * to rewrite files in place instead. In that mode, the command accepts
+ * any number of files, and leaves those that do not change or
+ * cannot be processed untouched.
+ * Set the {@link #WATCH_PROPERTY} system property to <code>true</code>
+ * to watch a directory and rewrite the files in it in place as they change.
+ * Set the {@link #QUEUE_PROPERTY} system property to a directory to
+ * share the work of rewriting files in place with other processes
+ * through a {@link WorkQueue}.
  */
 public class ProcessFile implements Runnable
 {
@@ -53,6 +84,18 @@ public class ProcessFile implements Runnable
   */
  public static void main(String[] args)
  {
+  if (Boolean.getBoolean(WATCH_PROPERTY))
+  {
+   watch(args);
+   return;
+  }
+  if (null != System.getProperty(QUEUE_PROPERTY))
+  {
+   Status status = queue(args);
+   if (Status.OK != status)
+    System.exit(status.getCode());
+   return;
+  }
   ProcessFile job = new ProcessFile().withArguments(args);
   Status status = job.getStatus();
   if (null == status)
@@ -73,6 +116,49 @@ public class ProcessFile implements Runnable
  {
   if (null != status)
    return;
+  if (null == files)
+  {
+   process();
+   return;
+  }
+  Status first = Status.OK;
+  for (File next : files)
+  {
+   Status result = rewrite(next);
+   if (Status.OK == first)
+    first = result;
+   if (SYNC_BATCH <= changed.size() && !replace().isEmpty() && Status.OK == first)
+    first = Status.IOERR;
+  }
+  if (!replace().isEmpty() && Status.OK == first)
+   first = Status.IOERR;
+  status = first;
+ }
+
+ /**
+  * Transforms a file in place. If the result differs from the file,
+  * it is added to the batch of {@link #changed} files, which must then
+  * be {@link #replace() replaced}.
+  * @return the status of the transformation
+  */
+ private Status rewrite(File next)
+ {
+  file = next;
+  status = null;
+  replacement = null;
+  process();
+  if (Status.OK == status && null != replacement && replacement.isChanged())
+   changed.add(replacement);
+  else if (null != replacement)
+   replacement.discard();
+  return status;
+ }
+
+ /**
+  * Transforms the current {@link #file} with the job's {@link #processor}.
+  */
+ private void process()
+ {
   String encoding = Transformer.defaultEncoding();
   FileInputStream fileInput = null;
   StreamResult target = null;
@@ -81,21 +167,45 @@ public class ProcessFile implements Runnable
    fileInput = new FileInputStream(file);
    StreamSource source = new StreamSource(
      new InputStreamReader(new BufferedInputStream(fileInput), encoding));
-   target = new StreamResult(
-     new OutputStreamWriter(System.out, encoding)
-     {
-      @Override
-      public void close() throws IOException
+   // one transformer is reused for all files processed by this job
+   if (null == processor)
+    processor = new Transformer();
+   errorHandler = new ErrorHandler()
+     .debug(Boolean.getBoolean(DEBUG_PROPERTY))
+     .collect(COLLECT_ERRORS.equals(System.getProperty(ERRORS_PROPERTY)));
+   processor.setErrorListener(errorHandler);
+   if (Boolean.getBoolean(CHECK_PROPERTY))
+   {
+    processor.check(source);
+    status = errorHandler.hasErrors() ? Status.SYNTAX : Status.OK;
+    return;
+   }
+   if (null != files)
+   {
+    replacement = new ReplacementOutputStream(file);
+    target = new StreamResult(new OutputStreamWriter(replacement, encoding));
+   }
+   else
+    target = new StreamResult(
+      new OutputStreamWriter(System.out, encoding)
       {
-       flush();
-       System.out.flush();
+       @Override
+       public void close() throws IOException
+       {
+        flush();
+        System.out.flush();
+       }
       }
-     }
-   );
-   Transformer processor = new Transformer();
-   processor.setErrorListener(new ErrorHandler().debug(Boolean.getBoolean(DEBUG_PROPERTY)));
+    );
+   int threads = Integer.getInteger(SCAN_THREADS_PROPERTY, 0);
+   if (0 < threads && OutlineScanner.isSupported(Charset.forName(encoding)))
+   {
+    OutlineScanner scanner = new OutlineScanner(file, Charset.forName(encoding));
+    processor.setOutline(scanner.scan(threads));
+    processor.setReservedIds(scanner.getIds());
+   }
    processor.transform(source, target);
-   status = Status.OK;
+   status = errorHandler.hasErrors() ? Status.SYNTAX : Status.OK;
   }
   catch (TransformerException e)
   {
@@ -106,6 +216,12 @@ public class ProcessFile implements Runnable
     legend = "Internal error";
     status = Status.INTERNAL;
    }
+   else if (null != MemoryBudgetException.causeOf(e))
+   {
+    legend = "Memory budget exceeded";
+    report = MemoryBudgetException.causeOf(e);
+    status = Status.MEMORY;
+   }
    else if (e.getCause() instanceof IOException)
    {
     legend = "Input/output error";
@@ -117,7 +233,10 @@ public class ProcessFile implements Runnable
     legend = "Data error";
     status = Status.SYNTAX;
    }
-   reportProcessingError(legend, report);
+   if (Status.SYNTAX == status && null != errorHandler && errorHandler.isCollecting())
+    errorHandler.record(ErrorHandler.Severity.FATAL, e);
+   else
+    reportProcessingError(legend, report);
   }
   catch (UnsupportedEncodingException ex)
   {
@@ -133,9 +252,18 @@ public class ProcessFile implements Runnable
   }
   catch (RuntimeException ex)
   {
-   String legend = "Internal error";
-   reportProcessingError(legend, ex);
-   status = Status.INTERNAL;
+   if (ex.getCause() instanceof TransformerException)
+   {
+    // an error the transformer reported, but was not allowed to recover from
+    status = Status.SYNTAX;
+    reportProcessingError("Data error", ex.getCause());
+   }
+   else
+   {
+    String legend = "Internal error";
+    reportProcessingError(legend, ex);
+    status = Status.INTERNAL;
+   }
   }
   catch (Error err)
   {
@@ -177,6 +305,8 @@ public class ProcessFile implements Runnable
      reportProcessingError("Input/output error", ioex);
     }
    }
+   if (null != errorHandler && errorHandler.isCollecting())
+    reportDiagnostics();
   }
  }
 
@@ -193,6 +323,22 @@ public class ProcessFile implements Runnable
    status = Status.NOARGS;
    return this;
   }
+  if (Boolean.getBoolean(IN_PLACE_PROPERTY))
+  {
+   files = new ArrayList<File>(args.length);
+   for (String arg : args)
+   {
+    File next = new File(arg);
+    if (!next.exists() || next.isDirectory())
+    {
+     System.err.println("File \"" + next + "\" does not exist or is a directory");
+     status = Status.NOFILE;
+     return this;
+    }
+    files.add(next);
+   }
+   return this;
+  }
   if (1 < args.length)
   {
    System.err.println("Cannot process extra argument \"" + args[1] + '"');
@@ -215,6 +361,109 @@ public class ProcessFile implements Runnable
   */
  public static final String DEBUG_PROPERTY = "debug";
 
+ /**
+  * Name of the system property that sets the number of threads
+  * used to {@link OutlineScanner scan} the file for outline elements
+  * before it is transformed. If this property is not set, the file is
+  * not scanned in advance.
+  */
+ public static final String SCAN_THREADS_PROPERTY = "name.livitski.tools.html.toc.scan.threads";
+
+ /**
+  * Name of the system property that selects how errors in the file are
+  * handled. By default, processing stops at the first error. Set this
+  * property to {@link #COLLECT_ERRORS} to collect all errors instead.
+  */
+ public static final String ERRORS_PROPERTY = "name.livitski.tools.html.toc.errors";
+
+ /**
+  * Value of the {@link #ERRORS_PROPERTY} that makes the tool continue
+  * past errors that the transformer can recover from, stopping only on
+  * fatal errors, and print all errors found on the
+  * {@link System#err standard error stream}, one per line, in the
+  * {@link ErrorHandler#writeDiagnostics(Appendable, String) format}
+  * of {@link ErrorHandler}.
+  */
+ public static final String COLLECT_ERRORS = "collect";
+
+ /**
+  * Name of the system property that switches the tool into the check
+  * mode. In that mode, the file is only checked for errors in its
+  * TOC markup and no output is written. The exit status tells whether
+  * the markup is valid.
+  */
+ public static final String CHECK_PROPERTY = "name.livitski.tools.html.toc.check";
+
+ /**
+  * Name of the system property that switches the tool into the in-place
+  * mode. In that mode, each file is transformed into a temporary file
+  * next to it, which replaces the file only if the transformation
+  * succeeds and its result differs from the file's content.
+  * The output is compared with the file as it is written, so that
+  * files that are already up to date are never written to.
+  */
+ public static final String IN_PLACE_PROPERTY = "name.livitski.tools.html.toc.inplace";
+
+ /**
+  * Name of the system property that switches the tool into the watch
+  * mode. In that mode, the only argument is a directory, which is watched
+  * with the files in it and its subdirectories. The files that change
+  * are rewritten {@link #IN_PLACE_PROPERTY in place}. The watch mode is
+  * implemented by {@link #WATCHER_CLASS a class} that is only available
+  * when HTMLtoc is built with Java 9 or newer.
+  */
+ public static final String WATCH_PROPERTY = "name.livitski.tools.html.toc.watch";
+
+ /**
+  * Name of the class that implements the {@link #WATCH_PROPERTY watch mode}.
+  */
+ public static final String WATCHER_CLASS = "name.livitski.tools.html.toc.TreeWatcher";
+
+ /**
+  * Name of the system property that switches the tool into the queue
+  * mode and points to the directory of the {@link WorkQueue} shared by
+  * the processes taking part. In that mode, the files on the command
+  * line are added to the queue, and, if the {@link #QUEUE_WORKERS_PROPERTY}
+  * is set, rewritten {@link #IN_PLACE_PROPERTY in place} by that many
+  * worker processes started by the tool. The exit status is then that of
+  * the first file that could not be processed. Without arguments, the tool
+  * runs as a worker, claiming files from the queue and rewriting them in
+  * place until the queue is empty, including the files claimed by workers
+  * that stopped responding for {@link #QUEUE_TIMEOUT_PROPERTY some time}.
+  */
+ public static final String QUEUE_PROPERTY = "name.livitski.tools.html.toc.queue";
+
+ /**
+  * Name of the system property that sets the number of worker processes
+  * started in the {@link #QUEUE_PROPERTY queue mode} once the files on
+  * the command line have been added to the queue. If it is not set,
+  * the tool only adds the files to the queue.
+  */
+ public static final String QUEUE_WORKERS_PROPERTY = "name.livitski.tools.html.toc.queue.workers";
+
+ /**
+  * Name of the system property that sets the time in milliseconds after
+  * which a file claimed by a worker that has not shown signs of life is
+  * returned to the {@link #QUEUE_PROPERTY queue}. Defaults to
+  * {@link #DEFAULT_QUEUE_TIMEOUT}.
+  */
+ public static final String QUEUE_TIMEOUT_PROPERTY = "name.livitski.tools.html.toc.queue.timeout";
+
+ /**
+  * Name of the system property with the options, separated by spaces,
+  * passed to the Java runtimes of the worker processes started
+  * in the {@link #QUEUE_PROPERTY queue mode}, such as the heap size.
+  */
+ public static final String QUEUE_JVM_ARGS_PROPERTY = "name.livitski.tools.html.toc.queue.jvmargs";
+
+ public static final long DEFAULT_QUEUE_TIMEOUT = 60000L;
+
+ /**
+  * Maximum number of files rewritten in place that are synchronized
+  * with the storage device together before they replace the originals.
+  */
+ public static final int SYNC_BATCH = 64;
+
  private void reportProcessingError(String legend, Throwable ex)
  {
   System.err.println(legend + " while processing file \"" + file + "\":");
@@ -224,8 +473,378 @@ public class ProcessFile implements Runnable
    System.err.println(ex.getMessage());
  }
 
+ /**
+  * Runs the {@link #WATCHER_CLASS watcher}, which is loaded
+  * dynamically since it cannot be compiled with Java 6.
+  */
+ private static void watch(String[] args)
+ {
+  Method main;
+  try
+  {
+   main = Class.forName(WATCHER_CLASS).getMethod("main", String[].class);
+  }
+  catch (ClassNotFoundException unsupported)
+  {
+   System.err.println("The watch mode requires HTMLtoc built with Java 9 or newer.");
+   System.exit(Status.INTERNAL.getCode());
+   return;
+  }
+  catch (NoSuchMethodException e)
+  {
+   throw new IllegalStateException("Could not find the entry point of " + WATCHER_CLASS, e);
+  }
+  try
+  {
+   main.invoke(null, (Object)args);
+  }
+  catch (InvocationTargetException e)
+  {
+   Throwable cause = e.getCause();
+   if (cause instanceof RuntimeException)
+    throw (RuntimeException)cause;
+   if (cause instanceof Error)
+    throw (Error)cause;
+   throw new IllegalStateException(cause);
+  }
+  catch (IllegalAccessException e)
+  {
+   throw new IllegalStateException("Could not run " + WATCHER_CLASS, e);
+  }
+ }
+
+ /**
+  * Runs the {@link #QUEUE_PROPERTY queue mode}.
+  */
+ private static Status queue(String[] args)
+ {
+  WorkQueue queue;
+  try
+  {
+   queue = new WorkQueue(new File(System.getProperty(QUEUE_PROPERTY)));
+  }
+  catch (IOException ioex)
+  {
+   System.err.println("Could not open the work queue: " + ioex.getMessage());
+   return Status.IOERR;
+  }
+  if (0 == args.length)
+   return work(queue);
+  List<File> files = new ArrayList<File>(args.length);
+  for (String arg : args)
+  {
+   File next = new File(arg);
+   if (!next.exists() || next.isDirectory())
+   {
+    System.err.println("File \"" + next + "\" does not exist or is a directory");
+    return Status.NOFILE;
+   }
+   files.add(next);
+  }
+  List<String> entries;
+  try
+  {
+   entries = queue.add(files);
+  }
+  catch (IOException ioex)
+  {
+   System.err.println("Could not add files to the work queue: " + ioex.getMessage());
+   return Status.IOERR;
+  }
+  int workers = Integer.getInteger(QUEUE_WORKERS_PROPERTY, 0);
+  if (0 >= workers)
+   return Status.OK;
+  try
+  {
+   launch(queue, workers);
+  }
+  catch (IOException ioex)
+  {
+   System.err.println("Could not start worker processes: " + ioex.getMessage());
+   return Status.INTERNAL;
+  }
+  catch (InterruptedException interrupted)
+  {
+   System.err.println("Interrupted while waiting for worker processes");
+   return Status.INTERNAL;
+  }
+  Status first = Status.OK;
+  for (int i = 0; entries.size() > i; i++)
+  {
+   Status status;
+   try
+   {
+    WorkQueue.Result result = queue.getResult(entries.get(i));
+    if (null != result)
+     status = result.getStatus();
+    else
+    {
+     System.err.println("File \"" + files.get(i) + "\" has not been processed by the workers");
+     status = Status.INTERNAL;
+    }
+   }
+   catch (IOException ioex)
+   {
+    System.err.println("Could not read the outcome of processing file \"" + files.get(i) + "\": "
+      + ioex.getMessage());
+    status = Status.IOERR;
+   }
+   if (Status.OK == first)
+    first = status;
+  }
+  return first;
+ }
+
+ /**
+  * Claims files from a queue and rewrites them in place until
+  * there are no files left to claim.
+  * @return the status of the first file that could not be processed,
+  * or of the worker if it failed
+  */
+ private static Status work(WorkQueue queue)
+ {
+  long timeout = Long.getLong(QUEUE_TIMEOUT_PROPERTY, DEFAULT_QUEUE_TIMEOUT);
+  long period = Math.max(1L, timeout / 4);
+  Timer heartbeat = new Timer("HTMLtoc queue heartbeat", true);
+  Status first = Status.OK;
+  // one job rewrites all files claimed by the worker, so that they share
+  // a transformer and are synchronized with the storage device in batches
+  ProcessFile job = new ProcessFile();
+  job.files = Collections.emptyList();
+  List<WorkQueue.Claim> held = new ArrayList<WorkQueue.Claim>(SYNC_BATCH);
+  List<TimerTask> touches = new ArrayList<TimerTask>(SYNC_BATCH);
+  List<Status> outcomes = new ArrayList<Status>(SYNC_BATCH);
+  List<Long> times = new ArrayList<Long>(SYNC_BATCH);
+  try
+  {
+   for (;;)
+   {
+    final WorkQueue.Claim claim = queue.claim();
+    if (null == claim)
+    {
+     // claims held by this worker must not keep it waiting for itself
+     Status result = complete(job, held, touches, outcomes, times);
+     if (Status.OK == first)
+      first = result;
+     if (0 < queue.reclaim(timeout))
+      continue;
+     if (!queue.hasClaims())
+      break;
+     // other workers are still busy, and may yet stop responding
+     Thread.sleep(Math.min(period, 1000L));
+     continue;
+    }
+    TimerTask touch = new TimerTask()
+    {
+     @Override
+     public void run()
+     {
+      claim.touch();
+     }
+    };
+    heartbeat.schedule(touch, period, period);
+    long start = System.currentTimeMillis();
+    int changed = job.changed.size();
+    Status status = job.rewrite(claim.getFile());
+    if (null == status)
+    {
+     System.err.println("Internal error in XML TOC processor, the process did not complete.");
+     status = Status.INTERNAL;
+    }
+    if (changed == job.changed.size())
+    {
+     // the file is left as it was, so its outcome is known
+     touch.cancel();
+     claim.complete(status, System.currentTimeMillis() - start);
+     if (Status.OK == first)
+      first = status;
+     continue;
+    }
+    held.add(claim);
+    touches.add(touch);
+    outcomes.add(status);
+    times.add(System.currentTimeMillis() - start);
+    if (SYNC_BATCH <= held.size())
+    {
+     Status result = complete(job, held, touches, outcomes, times);
+     if (Status.OK == first)
+      first = result;
+    }
+   }
+  }
+  catch (IOException ioex)
+  {
+   System.err.println("Work queue error: " + ioex.getMessage());
+   return Status.IOERR;
+  }
+  catch (InterruptedException interrupted)
+  {
+   System.err.println("Interrupted while waiting for other workers");
+   return Status.INTERNAL;
+  }
+  finally
+  {
+   heartbeat.cancel();
+   // files of claims that could not be completed are left to other workers
+   for (ReplacementOutputStream next : job.changed)
+    next.discard();
+  }
+  return first;
+ }
+
+ /**
+  * Replaces the files changed by a worker's job and completes the
+  * claims of those files.
+  * @return the status of the first file that could not be processed
+  */
+ private static Status complete(ProcessFile job, List<WorkQueue.Claim> held,
+   List<TimerTask> touches, List<Status> outcomes, List<Long> times) throws IOException
+ {
+  List<File> failed = job.replace();
+  Status first = Status.OK;
+  for (int i = 0; held.size() > i; i++)
+  {
+   WorkQueue.Claim claim = held.get(i);
+   touches.get(i).cancel();
+   Status status = outcomes.get(i);
+   if (Status.OK == status && failed.contains(claim.getFile()))
+    status = Status.IOERR;
+   claim.complete(status, times.get(i));
+   if (Status.OK == first)
+    first = status;
+  }
+  held.clear();
+  touches.clear();
+  outcomes.clear();
+  times.clear();
+  return first;
+ }
+
+ /**
+  * Starts worker processes for a queue with the same class path and
+  * settings as this process, and waits for them to finish. The output
+  * of the workers is copied to the {@link System#err standard error stream}.
+  */
+ private static void launch(WorkQueue queue, int count)
+   throws IOException, InterruptedException
+ {
+  List<String> command = new ArrayList<String>();
+  command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+  String jvmArgs = System.getProperty(QUEUE_JVM_ARGS_PROPERTY);
+  if (null != jvmArgs)
+   for (String arg : jvmArgs.trim().split("\\s+"))
+    if (0 < arg.length())
+     command.add(arg);
+  command.add("-cp");
+  command.add(System.getProperty("java.class.path"));
+  for (String name : System.getProperties().stringPropertyNames())
+   if (name.startsWith(PROPERTY_PREFIX) && !QUEUE_PROPERTY.equals(name) || DEBUG_PROPERTY.equals(name))
+    command.add("-D" + name + '=' + System.getProperty(name));
+  command.add("-D" + QUEUE_PROPERTY + '=' + queue.getDirectory().getAbsolutePath());
+  command.add(ProcessFile.class.getName());
+  List<Process> workers = new ArrayList<Process>(count);
+  List<Thread> pumps = new ArrayList<Thread>(count);
+  try
+  {
+   for (int i = 0; count > i; i++)
+   {
+    final Process worker = new ProcessBuilder(command).redirectErrorStream(true).start();
+    worker.getOutputStream().close();
+    workers.add(worker);
+    Thread pump = new Thread("HTMLtoc worker output #" + i)
+    {
+     @Override
+     public void run()
+     {
+      byte[] buffer = new byte[4096];
+      InputStream in = worker.getInputStream();
+      try
+      {
+       for (int read; 0 <= (read = in.read(buffer));)
+        System.err.write(buffer, 0, read);
+      }
+      catch (IOException ignored)
+      {
+      }
+      finally
+      {
+       System.err.flush();
+      }
+     }
+    };
+    pump.start();
+    pumps.add(pump);
+   }
+   for (Process worker : workers)
+    worker.waitFor();
+   for (Thread pump : pumps)
+    pump.join();
+  }
+  finally
+  {
+   for (Process worker : workers)
+    worker.destroy();
+  }
+ }
+
+ /**
+  * Forces the batch of {@link #changed} files to the storage device,
+  * then replaces the original files with them.
+  * @return the files that could not be replaced
+  */
+ private List<File> replace()
+ {
+  List<File> failed = new ArrayList<File>();
+  for (ReplacementOutputStream next : changed)
+   try
+   {
+    next.sync();
+   }
+   catch (IOException ioex)
+   {
+    file = next.getTarget();
+    reportProcessingError("Input/output error", ioex);
+    next.discard();
+    failed.add(file);
+   }
+  for (ReplacementOutputStream next : changed)
+   try
+   {
+    next.replace();
+   }
+   catch (IOException ioex)
+   {
+    file = next.getTarget();
+    reportProcessingError("Input/output error", ioex);
+    next.discard();
+    failed.add(file);
+   }
+  changed.clear();
+  return failed;
+ }
+
+ private void reportDiagnostics()
+ {
+  try
+  {
+   errorHandler.writeDiagnostics(System.err, file.getPath());
+  }
+  catch (IOException ioex)
+  {
+   // System.err does not throw
+  }
+  System.err.flush();
+ }
+
+ private static final String PROPERTY_PREFIX = "name.livitski.tools.html.toc.";
+
  private File file;
+ private List<File> files;
+ private Transformer processor;
+ private ReplacementOutputStream replacement;
+ private List<ReplacementOutputStream> changed = new ArrayList<ReplacementOutputStream>(SYNC_BATCH);
  private Status status;
+ private ErrorHandler errorHandler;
 
  /**
   * Exit codes returned from {@link ProcessFile#main(String[]) this class}. 
@@ -244,6 +863,8 @@ public class ProcessFile implements Runnable
   IOERR,
   /** Invalid content. */
   SYNTAX,
+  /** Document exceeds the memory budget. */
+  MEMORY,
   /* TODO: Add error codes here */
   /** Internal error. */
   INTERNAL(-1),
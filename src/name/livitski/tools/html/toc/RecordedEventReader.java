@@ -0,0 +1,396 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.XMLEvent;
+
+import static javax.xml.stream.XMLStreamConstants.*;
+
+/**
+ * Replays the events stored by an {@link EventRecorder}. Wrap this reader
+ * into a {@link javax.xml.transform.stax.StAXSource} to transform a recorded
+ * document without parsing it again:
+ * <pre>
+ * transformer.transform(new StAXSource(new RecordedEventReader(in)), result);
+ * </pre>
+ * To transform a recording with different TOC settings, wrap this reader
+ * into an {@link javax.xml.stream.util.EventReaderDelegate} that replaces
+ * the processing instruction.
+ * If a recording does not begin with a start of the document or an element,
+ * the reader begins with a generated start of the document, as required
+ * by <code>StAXSource</code>.
+ */
+public class RecordedEventReader implements XMLEventReader
+{
+ /**
+  * Creates a reader of a recording that uses the default event factory.
+  * @param in the stream with the recording
+  * @throws IOException if the stream does not contain a recording of
+  * a supported version, or cannot be read
+  */
+ public RecordedEventReader(InputStream in) throws IOException
+ {
+  this(in, XMLEventFactory.newFactory());
+ }
+
+ public RecordedEventReader(InputStream in, XMLEventFactory factory) throws IOException
+ {
+  this.in = new DataInputStream(new BufferedInputStream(in, EventRecorder.BUFFER_SIZE));
+  this.factory = factory;
+  byte[] magic = new byte[EventRecorder.MAGIC.length];
+  try
+  {
+   this.in.readFully(magic);
+  }
+  catch (EOFException empty)
+  {
+   throw new IOException("Stream does not contain an event recording");
+  }
+  for (int i = 0; magic.length > i; i++)
+   if (EventRecorder.MAGIC[i] != magic[i])
+    throw new IOException("Stream does not contain an event recording");
+  int version = this.in.readUnsignedByte();
+  if (EventRecorder.VERSION != version)
+   throw new IOException("Unsupported version " + version + " of the event recording");
+ }
+
+ public XMLEvent nextEvent() throws XMLStreamException
+ {
+  XMLEvent event = peek();
+  if (null == event)
+   throw new NoSuchElementException("No more events in the recording");
+  next = null;
+  return event;
+ }
+
+ public boolean hasNext()
+ {
+  try
+  {
+   return null != peek();
+  }
+  catch (XMLStreamException e)
+  {
+   throw new IllegalStateException(e.getMessage(), e);
+  }
+ }
+
+ public XMLEvent peek() throws XMLStreamException
+ {
+  if (null == next && !ended)
+  {
+   try
+   {
+    next = read();
+   }
+   catch (IOException e)
+   {
+    throw new XMLStreamException("Could not read the event recording", e);
+   }
+   if (started)
+    ;
+   else if (next.isStartDocument() || next.isStartElement())
+    started = true;
+   else
+   {
+    pending = next;
+    next = factory.createStartDocument();
+    started = true;
+   }
+  }
+  return next;
+ }
+
+ public String getElementText() throws XMLStreamException
+ {
+  StringBuilder text = new StringBuilder();
+  for (;;)
+  {
+   XMLEvent event = nextEvent();
+   if (event.isEndElement())
+    break;
+   else if (event.isCharacters())
+    text.append(event.asCharacters().getData());
+   else if (event.isStartElement())
+    throw new XMLStreamException("Element text contains an element", event.getLocation());
+  }
+  return text.toString();
+ }
+
+ public XMLEvent nextTag() throws XMLStreamException
+ {
+  for (;;)
+  {
+   XMLEvent event = nextEvent();
+   if (event.isStartElement() || event.isEndElement())
+    return event;
+   if (!(event.isCharacters() && event.asCharacters().isWhiteSpace()
+     || COMMENT == event.getEventType() || PROCESSING_INSTRUCTION == event.getEventType()))
+    throw new XMLStreamException("Unexpected event before a tag: " + event, event.getLocation());
+  }
+ }
+
+ public Object getProperty(String name)
+ {
+  throw new IllegalArgumentException("Property " + name + " is not supported");
+ }
+
+ public void close() throws XMLStreamException
+ {
+  try
+  {
+   in.close();
+  }
+  catch (IOException e)
+  {
+   throw new XMLStreamException("Could not close the event recording", e);
+  }
+ }
+
+ public Object next()
+ {
+  try
+  {
+   return nextEvent();
+  }
+  catch (XMLStreamException e)
+  {
+   throw new IllegalStateException(e.getMessage(), e);
+  }
+ }
+
+ public void remove()
+ {
+  throw new UnsupportedOperationException();
+ }
+
+ /**
+  * Decodes the next event of the recording.
+  * @return the event or <code>null</code> after the end of the document
+  */
+ protected XMLEvent read() throws IOException, XMLStreamException
+ {
+  if (null != pending)
+  {
+   XMLEvent event = pending;
+   pending = null;
+   return event;
+  }
+  int type = in.read();
+  if (0 > type)
+  {
+   ended = true;
+   if (!documentEnded)
+    throw new XMLStreamException("Event recording ends before the end of the document");
+   return null;
+  }
+  factory.setLocation(readLocation());
+  XMLEvent event;
+  switch (type)
+  {
+  case START_ELEMENT:
+  {
+   QName name = readQName();
+   List<Namespace> namespaces = new ArrayList<Namespace>();
+   while (0 != readVarint())
+   {
+    String prefix = readName();
+    String uri = readName();
+    namespaces.add(null == prefix || 0 == prefix.length()
+      ? factory.createNamespace(uri)
+      : factory.createNamespace(prefix, uri));
+   }
+   List<Attribute> attributes = new ArrayList<Attribute>();
+   while (0 != readVarint())
+   {
+    QName attrName = readQName();
+    attributes.add(factory.createAttribute(attrName, readText()));
+   }
+   event = factory.createStartElement(name, attributes.iterator(), namespaces.iterator());
+   break;
+  }
+  case END_ELEMENT:
+   event = factory.createEndElement(readQName(), null);
+   break;
+  case CHARACTERS:
+   event = factory.createCharacters(readText());
+   break;
+  case CDATA:
+   event = factory.createCData(readText());
+   break;
+  case SPACE:
+   event = in.readBoolean()
+     ? factory.createIgnorableSpace(readText())
+     : factory.createSpace(readText());
+   break;
+  case COMMENT:
+   event = factory.createComment(readText());
+   break;
+  case PROCESSING_INSTRUCTION:
+   event = factory.createProcessingInstruction(readName(), readText());
+   break;
+  case ENTITY_REFERENCE:
+   event = factory.createEntityReference(readName(), null);
+   break;
+  case DTD:
+   event = factory.createDTD(readText());
+   break;
+  case START_DOCUMENT:
+  {
+   String encoding = readText();
+   String version = readText();
+   int standalone = in.readUnsignedByte();
+   if (0 != standalone)
+    event = factory.createStartDocument(encoding, version, 2 == standalone);
+   else if (null != encoding)
+    event = factory.createStartDocument(encoding, version);
+   else
+    event = factory.createStartDocument();
+   break;
+  }
+  case END_DOCUMENT:
+   event = factory.createEndDocument();
+   documentEnded = true;
+   break;
+  default:
+   throw new IOException("Unknown event type " + type + " in the event recording");
+  }
+  factory.setLocation(null);
+  return event;
+ }
+
+ protected Location readLocation() throws IOException
+ {
+  offset += unzigzag(readVarint());
+  line += unzigzag(readVarint());
+  return new RecordedLocation(offset, line, unzigzag(readVarint()));
+ }
+
+ protected QName readQName() throws IOException
+ {
+  String localPart = readName();
+  String prefix = readName();
+  String uri = readName();
+  return new QName(null == uri ? "" : uri, localPart, null == prefix ? "" : prefix);
+ }
+
+ protected String readName() throws IOException
+ {
+  int reference = readVarint();
+  if (0 == reference)
+   return null;
+  else if (1 == reference)
+  {
+   String name = readText();
+   names.add(name);
+   return name;
+  }
+  else
+   return names.get(reference - 2);
+ }
+
+ protected String readText() throws IOException
+ {
+  int length = readVarint() - 1;
+  if (0 > length)
+   return null;
+  if (buffer.length < length)
+   buffer = new byte[Math.max(length, buffer.length * 2)];
+  in.readFully(buffer, 0, length);
+  return new String(buffer, 0, length, EventRecorder.UTF8);
+ }
+
+ protected int readVarint() throws IOException
+ {
+  int value = 0;
+  for (int shift = 0;; shift += 7)
+  {
+   int b = in.readUnsignedByte();
+   value |= (b & 0x7f) << shift;
+   if (0 == (b & 0x80))
+    return value;
+  }
+ }
+
+ protected static int unzigzag(int value)
+ {
+  return value >>> 1 ^ -(value & 1);
+ }
+
+ protected static class RecordedLocation implements Location
+ {
+  public RecordedLocation(int offset, int line, int column)
+  {
+   this.offset = offset;
+   this.line = line;
+   this.column = column;
+  }
+
+  public int getLineNumber()
+  {
+   return line;
+  }
+
+  public int getColumnNumber()
+  {
+   return column;
+  }
+
+  public int getCharacterOffset()
+  {
+   return offset;
+  }
+
+  public String getPublicId()
+  {
+   return null;
+  }
+
+  public String getSystemId()
+  {
+   return null;
+  }
+
+  private int offset, line, column;
+ }
+
+ private DataInputStream in;
+ private XMLEventFactory factory;
+ private List<String> names = new ArrayList<String>();
+ private byte[] buffer = new byte[256];
+ private int offset, line;
+ private XMLEvent next, pending;
+ private boolean started, ended, documentEnded;
+}
@@ -0,0 +1,409 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Stream that replaces the content of a file only if that content changes.
+ * Bytes written to the stream are compared with those of the file as they
+ * arrive. Until they differ, nothing is written. At the first difference,
+ * the matching part of the file is copied to a temporary file in the same
+ * directory, which then receives the rest of the output. Once the stream
+ * is {@link #close() closed}, a changed file can be {@link #replace() replaced}
+ * with the temporary file by renaming it, so that readers of the file
+ * see either its old or its new content.
+ * <p>
+ * The length and modification time of the file are recorded when the
+ * stream is created. If another program changes the file before it is
+ * replaced, the new content is derived from an outdated version, so the
+ * stream throws a {@link FileChangedException} instead of copying the
+ * file or renaming the temporary file over it. A change made between the
+ * last check and the rename, or one that keeps both the length and the
+ * modification time of the file, still goes unnoticed.
+ * </p>
+ * <p>
+ * Forcing the temporary file to the storage device is a
+ * {@link #sync() separate step}, so that an application that replaces
+ * many files can write them all before it waits for the device.
+ * The replacement file is given the {@link #copyAttributes() permissions,
+ * owner and group} of the original file before it is synchronized.
+ * </p>
+ */
+public class ReplacementOutputStream extends OutputStream
+{
+ /**
+  * Creates a stream that will replace the content of a file.
+  * @param target the existing file to replace
+  * @throws IOException if the file cannot be read
+  */
+ public ReplacementOutputStream(File target) throws IOException
+ {
+  this.target = target;
+  this.length = target.length();
+  this.modified = target.lastModified();
+  this.original = new FileInputStream(target);
+ }
+
+ @Override
+ public void write(int b) throws IOException
+ {
+  single[0] = (byte)b;
+  write(single, 0, 1);
+ }
+
+ @Override
+ public void write(byte[] b, int off, int len) throws IOException
+ {
+  if (closed)
+   throw new IOException("Stream replacing " + target + " has been closed");
+  if (null == out)
+  {
+   if (matches(b, off, len))
+   {
+    matched += len;
+    return;
+   }
+   diverge();
+  }
+  out.write(b, off, len);
+ }
+
+ @Override
+ public void flush() throws IOException
+ {
+  if (null != out)
+   out.flush();
+ }
+
+ /**
+  * Ends the output. If the output is the same as the content of the file,
+  * there is nothing to {@link #replace()}. Otherwise, the temporary file
+  * stays open until it is {@link #sync() synchronized}.
+  */
+ @Override
+ public void close() throws IOException
+ {
+  if (closed)
+   return;
+  closed = true;
+  try
+  {
+   if (null == out && 0 <= original.read())
+    // the output is a prefix of the file
+    diverge();
+  }
+  finally
+  {
+   original.close();
+  }
+  if (null != out)
+   out.flush();
+ }
+
+ /**
+  * Tells whether the output differs from the content of the file.
+  * The answer is final once the stream is {@link #close() closed}.
+  */
+ public boolean isChanged()
+ {
+  return null != temporary;
+ }
+
+ public File getTarget()
+ {
+  return target;
+ }
+
+ /**
+  * Forces the new content of a {@link #isChanged() changed} file to the
+  * storage device and closes the temporary file.
+  */
+ public void sync() throws IOException
+ {
+  if (null == out)
+   return;
+  if (!closed)
+   throw new IllegalStateException("Stream replacing " + target + " must be closed before synchronizing");
+  try
+  {
+   out.flush();
+   copyAttributes();
+   file.getFD().sync();
+  }
+  finally
+  {
+   out.close();
+   out = null;
+  }
+ }
+
+ /**
+  * Replaces the file with its new content if it has
+  * {@link #isChanged() changed}, {@link #sync() synchronizing}
+  * that content first unless it has been already.
+  * @return whether the file has been replaced
+  * @throws FileChangedException if the file has changed since this
+  * stream was created, in which case it is left as it is
+  */
+ public boolean replace() throws IOException
+ {
+  if (null == temporary)
+   return false;
+  sync();
+  checkUnchanged();
+  if (!temporary.renameTo(target))
+  {
+   // some systems do not rename a file over an existing one
+   if (!target.delete() || !temporary.renameTo(target))
+    throw new IOException("Could not replace " + target + " with " + temporary);
+  }
+  temporary = null;
+  return true;
+ }
+
+ /**
+  * Abandons the new content, leaving the file as it was.
+  */
+ public void discard()
+ {
+  try
+  {
+   if (!closed)
+    original.close();
+   if (null != out)
+    out.close();
+  }
+  catch (IOException ignored)
+  {
+  }
+  closed = true;
+  out = null;
+  if (null != temporary)
+   temporary.delete();
+  temporary = null;
+ }
+
+ /**
+  * Compares output with the next bytes of the file.
+  */
+ protected boolean matches(byte[] b, int off, int len) throws IOException
+ {
+  while (0 < len)
+  {
+   int count = original.read(buffer, 0, Math.min(len, buffer.length));
+   if (0 > count)
+    return false;
+   for (int i = 0; count > i; i++)
+    if (buffer[i] != b[off + i])
+     return false;
+   off += count;
+   len -= count;
+  }
+  return true;
+ }
+
+ /**
+  * Starts the temporary file with the part of the file that
+  * matches the output.
+  */
+ protected void diverge() throws IOException
+ {
+  File directory = target.getAbsoluteFile().getParentFile();
+  temporary = File.createTempFile('.' + target.getName() + '.', TEMP_SUFFIX, directory);
+  file = new FileOutputStream(temporary);
+  out = new BufferedOutputStream(file, BUFFER_SIZE);
+  InputStream in = new FileInputStream(target);
+  try
+  {
+   for (long left = matched; 0 < left;)
+   {
+    int count = in.read(buffer, 0, (int)Math.min(left, buffer.length));
+    if (0 > count)
+     throw new FileChangedException(target);
+    out.write(buffer, 0, count);
+    left -= count;
+   }
+  }
+  finally
+  {
+   in.close();
+  }
+  // the copy must come from the version that was compared
+  checkUnchanged();
+ }
+
+ /**
+  * Makes sure the file has the length and modification time it had
+  * when this stream was created.
+  * @throws FileChangedException if either of them is different
+  */
+ protected void checkUnchanged() throws FileChangedException
+ {
+  if (length != target.length() || modified != target.lastModified())
+   throw new FileChangedException(target);
+ }
+
+ /**
+  * Gives the temporary file the permissions, owner and group of the file
+  * it replaces, as far as the file system and the privileges of the
+  * process allow: only a privileged process can give a file to another
+  * user or to a group it is not a member of. The attributes are copied
+  * with <code>java.nio.file</code>, which is looked up at run time since
+  * this class is compiled for Java 6. On older runtimes, the temporary
+  * file keeps the default permissions.
+  */
+ protected void copyAttributes() throws IOException
+ {
+  Method[] methods = attributeMethods();
+  if (null == methods)
+   return;
+  Object from = invoke(methods[0], target);
+  Object to = invoke(methods[0], temporary);
+  for (String name : COPIED_ATTRIBUTES)
+  {
+   Object value;
+   try
+   {
+    value = invoke(methods[1], null, from, name, noLinkOptions);
+   }
+   catch (UnsupportedOperationException unsupported)
+   {
+    // the file system has no such attributes
+    continue;
+   }
+   catch (IllegalArgumentException unsupported)
+   {
+    continue;
+   }
+   try
+   {
+    invoke(methods[2], null, to, name, value, noLinkOptions);
+   }
+   catch (IOException denied)
+   {
+    if (PERMISSIONS_ATTRIBUTE.equals(name))
+     throw denied;
+   }
+  }
+ }
+
+ /**
+  * Suffix of the names of temporary files.
+  */
+ public static final String TEMP_SUFFIX = ".tmp";
+
+ protected static final int BUFFER_SIZE = 1 << 16;
+
+ /**
+  * Name of the attribute with the permissions of a file.
+  */
+ protected static final String PERMISSIONS_ATTRIBUTE = "posix:permissions";
+
+ /**
+  * Attributes given to the temporary file, in order. Changing the
+  * owner or group of a file may clear some of its permissions,
+  * so those are copied last.
+  */
+ protected static final String[] COPIED_ATTRIBUTES =
+  { "owner:owner", "posix:group", PERMISSIONS_ATTRIBUTE };
+
+ private static Object invoke(Method method, Object target, Object... args) throws IOException
+ {
+  try
+  {
+   return method.invoke(target, args);
+  }
+  catch (InvocationTargetException e)
+  {
+   Throwable cause = e.getCause();
+   if (cause instanceof IOException)
+    throw (IOException)cause;
+   if (cause instanceof RuntimeException)
+    throw (RuntimeException)cause;
+   if (cause instanceof Error)
+    throw (Error)cause;
+   throw new IllegalStateException("Could not call " + method, cause);
+  }
+  catch (IllegalAccessException e)
+  {
+   throw new IllegalStateException("Could not call " + method, e);
+  }
+ }
+
+ /**
+  * Looks up <code>File.toPath()</code>, <code>Files.getAttribute()</code>
+  * and <code>Files.setAttribute()</code>.
+  * @return the methods or <code>null</code> if the runtime does not have them
+  */
+ private static synchronized Method[] attributeMethods()
+ {
+  if (!attributeMethodsLoaded)
+  {
+   attributeMethodsLoaded = true;
+   try
+   {
+    Class<?> path = Class.forName("java.nio.file.Path");
+    Class<?> files = Class.forName("java.nio.file.Files");
+    Class<?> linkOption = Class.forName("java.nio.file.LinkOption");
+    noLinkOptions = Array.newInstance(linkOption, 0);
+    Class<?> linkOptions = noLinkOptions.getClass();
+    attributeMethods = new Method[] {
+     File.class.getMethod("toPath"),
+     files.getMethod("getAttribute", path, String.class, linkOptions),
+     files.getMethod("setAttribute", path, String.class, Object.class, linkOptions)
+    };
+   }
+   catch (ClassNotFoundException unsupported)
+   {
+    attributeMethods = null;
+   }
+   catch (NoSuchMethodException unsupported)
+   {
+    attributeMethods = null;
+   }
+  }
+  return attributeMethods;
+ }
+
+ private static boolean attributeMethodsLoaded;
+ private static Method[] attributeMethods;
+ private static Object noLinkOptions;
+
+ private final File target;
+ private final long length;
+ private final long modified;
+ private final InputStream original;
+ private final byte[] buffer = new byte[BUFFER_SIZE];
+ private final byte[] single = new byte[1];
+ private long matched;
+ private boolean closed;
+ private File temporary;
+ private FileOutputStream file;
+ private OutputStream out;
+}
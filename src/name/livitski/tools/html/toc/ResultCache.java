@@ -0,0 +1,287 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of transformed documents for applications that
+ * transform the same documents repeatedly. Results are keyed by a
+ * {@link #keyFor(String, byte[], int, int) digest} of the source
+ * document and of the settings that affect the transformation,
+ * which include the TOC processing instructions as they are part of
+ * the document. The same key serves as an {@link #etagOf(String) ETag}
+ * of the result, so that a caller holding a document can tell whether
+ * a client's copy of the result is current without transforming it.
+ * <p>
+ * The cache is bounded by the total size of the results it holds.
+ * It is split into {@link #SEGMENTS} segments by key, each holding
+ * an equal share of the capacity, locked separately and evicting its
+ * least recently used results when full. Results larger than a
+ * segment's share are {@link #getMaxResultSize() not cached}.
+ * The cache counts hits, misses and evictions.
+ * </p>
+ */
+public class ResultCache
+{
+ /**
+  * Creates an empty cache.
+  * @param capacity the maximum total size of the cached results
+  * in bytes
+  */
+ public ResultCache(long capacity)
+ {
+  if (SEGMENTS > capacity)
+   throw new IllegalArgumentException("Cache capacity is too small: " + capacity);
+  this.capacity = capacity;
+  segments = new Segment[SEGMENTS];
+  for (int i = 0; SEGMENTS > i; i++)
+   segments[i] = new Segment(capacity / SEGMENTS);
+ }
+
+ /**
+  * Computes the key of a transformation result.
+  * @param settings the settings that affect the result besides the
+  * document, such as its encoding, or <code>null</code> if there are none
+  * @param document the buffer holding the source document
+  * @param offset the offset of the document in the buffer
+  * @param length the length of the document
+  * @return the hexadecimal SHA-256 digest of the settings and document
+  */
+ public static String keyFor(String settings, byte[] document, int offset, int length)
+ {
+  MessageDigest digest;
+  try
+  {
+   digest = MessageDigest.getInstance("SHA-256");
+   if (null != settings)
+    digest.update(settings.getBytes("UTF-8"));
+  }
+  catch (NoSuchAlgorithmException e)
+  {
+   throw new IllegalStateException("SHA-256 digest is not available", e);
+  }
+  catch (UnsupportedEncodingException e)
+  {
+   throw new IllegalStateException("UTF-8 encoding is not available", e);
+  }
+  digest.update((byte)0);
+  digest.update(document, offset, length);
+  StringBuilder key = new StringBuilder(64);
+  for (byte b : digest.digest())
+  {
+   key.append(HEX_DIGITS[(b >> 4) & 0xf]);
+   key.append(HEX_DIGITS[b & 0xf]);
+  }
+  return key.toString();
+ }
+
+ /**
+  * Returns the ETag of a result with a key, as it appears in
+  * the <code>ETag</code> HTTP header.
+  */
+ public static String etagOf(String key)
+ {
+  return '"' + key + '"';
+ }
+
+ /**
+  * Tells whether the value of an <code>If-None-Match</code> HTTP header
+  * matches an ETag, using weak comparison.
+  * @param header the header value, or <code>null</code> if there is
+  * no such header
+  * @param etag the ETag of a result
+  */
+ public static boolean matches(String header, String etag)
+ {
+  if (null == header)
+   return false;
+  for (String tag : header.split(","))
+  {
+   tag = tag.trim();
+   if (tag.startsWith("W/"))
+    tag = tag.substring(2);
+   if ("*".equals(tag) || etag.equals(tag))
+    return true;
+  }
+  return false;
+ }
+
+ /**
+  * Looks up a result.
+  * @return the cached result, which must not be modified, or
+  * <code>null</code> if there is no result with that key
+  */
+ public byte[] get(String key)
+ {
+  byte[] result = segmentFor(key).get(key);
+  (null == result ? misses : hits).incrementAndGet();
+  return result;
+ }
+
+ /**
+  * Adds a result to the cache, evicting least recently used results
+  * if necessary. Results {@link #getMaxResultSize() too large} to be
+  * cached are ignored.
+  * @param result the result, which must not be modified afterwards
+  */
+ public void put(String key, byte[] result)
+ {
+  if (getMaxResultSize() < result.length)
+   return;
+  Segment segment = segmentFor(key);
+  int evicted = segment.put(key, result);
+  if (0 < evicted)
+   evictions.addAndGet(evicted);
+ }
+
+ /**
+  * Removes all results from the cache. The counters are not reset.
+  */
+ public void clear()
+ {
+  for (Segment segment : segments)
+   segment.clear();
+ }
+
+ public long getCapacity()
+ {
+  return capacity;
+ }
+
+ /**
+  * Returns the size of the largest result that the cache will hold.
+  */
+ public int getMaxResultSize()
+ {
+  return (int)Math.min(capacity / SEGMENTS, Integer.MAX_VALUE);
+ }
+
+ /**
+  * Returns the total size of the results in the cache.
+  */
+ public long getSize()
+ {
+  long size = 0;
+  for (Segment segment : segments)
+   size += segment.getSize();
+  return size;
+ }
+
+ public long getHits()
+ {
+  return hits.get();
+ }
+
+ public long getMisses()
+ {
+  return misses.get();
+ }
+
+ public long getEvictions()
+ {
+  return evictions.get();
+ }
+
+ @Override
+ public String toString()
+ {
+  return "ResultCache: " + getSize() + " of " + capacity + " bytes used, "
+    + getHits() + " hit(s), " + getMisses() + " miss(es), " + getEvictions() + " eviction(s)";
+ }
+
+ /**
+  * Number of independently locked parts of the cache.
+  */
+ public static final int SEGMENTS = 16;
+
+ protected Segment segmentFor(String key)
+ {
+  int hash = key.hashCode();
+  hash ^= hash >>> 16;
+  return segments[hash & (SEGMENTS - 1)];
+ }
+
+ /**
+  * Part of the cache with its own lock and share of the capacity.
+  */
+ protected static class Segment
+ {
+  public Segment(long capacity)
+  {
+   this.capacity = capacity;
+  }
+
+  public synchronized byte[] get(String key)
+  {
+   return results.get(key);
+  }
+
+  /**
+   * @return the number of results evicted
+   */
+  public synchronized int put(String key, byte[] result)
+  {
+   byte[] replaced = results.put(key, result);
+   size += result.length;
+   if (null != replaced)
+    size -= replaced.length;
+   int evicted = 0;
+   for (Iterator<byte[]> i = results.values().iterator(); capacity < size && i.hasNext();)
+   {
+    byte[] eldest = i.next();
+    if (eldest == result)
+     continue;
+    i.remove();
+    size -= eldest.length;
+    evicted++;
+   }
+   return evicted;
+  }
+
+  public synchronized void clear()
+  {
+   results.clear();
+   size = 0;
+  }
+
+  public synchronized long getSize()
+  {
+   return size;
+  }
+
+  private final long capacity;
+  private long size;
+  private final Map<String, byte[]> results = new LinkedHashMap<String, byte[]>(16, .75f, true);
+ }
+
+ private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+ private final long capacity;
+ private final Segment[] segments;
+ private final AtomicLong hits = new AtomicLong();
+ private final AtomicLong misses = new AtomicLong();
+ private final AtomicLong evictions = new AtomicLong();
+}
@@ -0,0 +1,296 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact store of the items of a TOC, which holds them until the TOC
+ * is rendered. An item takes a level byte and three offsets into an
+ * arena of characters shared by all items, which holds the ids and text
+ * of the items as they are, without escaping. Thus, the store keeps
+ * no objects per item, and none of the markup that is the same for
+ * all items at a level.
+ * The arena is allocated when the first item is added. Its first chunk
+ * starts with {@link #INITIAL_CHUNK_SIZE} characters and doubles until
+ * it holds {@link #CHUNK_SIZE} characters, then the arena grows in chunks
+ * of that size that are never copied. The chunks can be allocated
+ * outside of the Java heap.
+ * The store is not thread-safe.
+ */
+public class TocEntries
+{
+ /**
+  * Creates an empty store.
+  * @param offHeap whether to allocate the arena in direct buffers
+  * outside of the Java heap
+  */
+ public TocEntries(boolean offHeap)
+ {
+  this.offHeap = offHeap;
+  clear();
+ }
+
+ /**
+  * Returns the number of items in the store.
+  */
+ public int size()
+ {
+  return size;
+ }
+
+ public boolean isOffHeap()
+ {
+  return offHeap;
+ }
+
+ /**
+  * Adds an item. Its text is {@link #close(CharSequence) added}
+  * when the item is closed.
+  * @param level the level of the item in the outline, less than
+  * {@link #MAX_LEVELS}
+  * @param id the id of the element the item links to
+  * @return the index of the new item
+  */
+ public int open(int level, CharSequence id)
+ {
+  if (0 > level || MAX_LEVELS <= level)
+   throw new IllegalArgumentException("Invalid TOC level: " + level);
+  if (0 < size && 0 > ends[size - 1])
+   throw new IllegalStateException("TOC item #" + (size - 1) + " has not been closed");
+  if (levels.length == size)
+  {
+   int capacity = levels.length * 2;
+   levels = Arrays.copyOf(levels, capacity);
+   idStarts = Arrays.copyOf(idStarts, capacity);
+   textStarts = Arrays.copyOf(textStarts, capacity);
+   ends = Arrays.copyOf(ends, capacity);
+  }
+  levels[size] = (byte)level;
+  idStarts[size] = length;
+  append(id);
+  textStarts[size] = length;
+  ends[size] = -1;
+  return size++;
+ }
+
+ /**
+  * Sets the text of the last item added to the store.
+  */
+ public void close(CharSequence text)
+ {
+  int last = size - 1;
+  if (0 > last || 0 <= ends[last])
+   throw new IllegalStateException("There is no open TOC item");
+  append(text);
+  ends[last] = length;
+ }
+
+ /**
+  * Replaces the id of an item. The item's id and text are copied to
+  * the end of the arena, leaving the space they took unused.
+  */
+ public void setId(int index, CharSequence id)
+ {
+  check(index);
+  boolean closed = 0 <= ends[index];
+  if (closed || index != size - 1)
+  {
+   int from = textStarts[index], to = ends[index];
+   idStarts[index] = length;
+   append(id);
+   textStarts[index] = length;
+   for (int i = from; to > i; i++)
+    append(charAt(i));
+   ends[index] = length;
+  }
+  else
+  {
+   // the text of the open item will follow the new id
+   idStarts[index] = length;
+   append(id);
+   textStarts[index] = length;
+  }
+ }
+
+ public int getLevel(int index)
+ {
+  check(index);
+  return levels[index];
+ }
+
+ public CharSequence getId(int index)
+ {
+  check(index);
+  return new Slice(idStarts[index], textStarts[index]);
+ }
+
+ public CharSequence getText(int index)
+ {
+  check(index);
+  int end = ends[index];
+  return new Slice(textStarts[index], 0 > end ? textStarts[index] : end);
+ }
+
+ /**
+  * Estimates the memory held by the store, in bytes. Only the chunks
+  * of the arena that have been allocated are counted.
+  */
+ public long getFootprint()
+ {
+  long arena = chunks.isEmpty() ? 0 : chunks.get(0).capacity() + (long)CHUNK_SIZE * (chunks.size() - 1);
+  return (long)levels.length * BYTES_PER_ITEM + 2L * arena;
+ }
+
+ /**
+  * Removes all items, releasing most of the memory they took.
+  */
+ public void clear()
+ {
+  size = 0;
+  length = 0;
+  if (null == levels || INITIAL_CAPACITY < levels.length)
+  {
+   levels = new byte[INITIAL_CAPACITY];
+   idStarts = new int[INITIAL_CAPACITY];
+   textStarts = new int[INITIAL_CAPACITY];
+   ends = new int[INITIAL_CAPACITY];
+  }
+  if (null == chunks)
+   chunks = new ArrayList<CharBuffer>();
+  else
+   chunks.clear();
+ }
+
+ /**
+  * Maximum number of levels in a TOC.
+  */
+ public static final int MAX_LEVELS = Byte.MAX_VALUE + 1;
+
+ /**
+  * Number of characters in a chunk of the arena.
+  */
+ public static final int CHUNK_SIZE = 1 << 15;
+
+ /**
+  * Number of characters in the first chunk of the arena when it is allocated.
+  */
+ public static final int INITIAL_CHUNK_SIZE = 1 << 6;
+
+ protected static final int INITIAL_CAPACITY = 16;
+
+ /**
+  * Bytes taken by an item in the arrays of the store.
+  */
+ protected static final int BYTES_PER_ITEM = 13;
+
+ protected void append(CharSequence text)
+ {
+  for (int count = text.length(), i = 0; count > i; i++)
+   append(text.charAt(i));
+ }
+
+ protected void append(char c)
+ {
+  int chunk = length >>> CHUNK_BITS;
+  if (chunks.size() == chunk)
+  {
+   if (0 > length + 1)
+    throw new IllegalStateException("TOC text exceeds " + Integer.MAX_VALUE + " characters");
+   chunks.add(allocate(0 == chunk ? INITIAL_CHUNK_SIZE : CHUNK_SIZE));
+  }
+  else if (0 == chunk && chunks.get(0).capacity() == length)
+  {
+   CharBuffer first = chunks.get(0);
+   first.clear();
+   chunks.set(0, allocate(Math.min(length * 2, CHUNK_SIZE)).put(first));
+  }
+  chunks.get(chunk).put(length & CHUNK_MASK, c);
+  length++;
+ }
+
+ protected CharBuffer allocate(int capacity)
+ {
+  return offHeap
+    ? ByteBuffer.allocateDirect(capacity * 2).asCharBuffer()
+    : CharBuffer.allocate(capacity);
+ }
+
+ protected char charAt(int offset)
+ {
+  return chunks.get(offset >>> CHUNK_BITS).get(offset & CHUNK_MASK);
+ }
+
+ protected void check(int index)
+ {
+  if (0 > index || size <= index)
+   throw new IndexOutOfBoundsException("TOC item #" + index + " does not exist, there are " + size + " items");
+ }
+
+ /**
+  * A range of the arena.
+  */
+ protected class Slice implements CharSequence
+ {
+  public Slice(int start, int end)
+  {
+   this.start = start;
+   this.end = end;
+  }
+
+  public int length()
+  {
+   return end - start;
+  }
+
+  public char charAt(int index)
+  {
+   if (0 > index || end - start <= index)
+    throw new IndexOutOfBoundsException(String.valueOf(index));
+   return TocEntries.this.charAt(start + index);
+  }
+
+  public CharSequence subSequence(int from, int to)
+  {
+   if (0 > from || from > to || end - start < to)
+    throw new IndexOutOfBoundsException(from + ", " + to);
+   return new Slice(start + from, start + to);
+  }
+
+  @Override
+  public String toString()
+  {
+   return new StringBuilder(this).toString();
+  }
+
+  private final int start, end;
+ }
+
+ private static final int CHUNK_BITS = 15;
+ private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+ private final boolean offHeap;
+ private byte[] levels;
+ private int[] idStarts, textStarts, ends;
+ private int size, length;
+ private List<CharBuffer> chunks;
+}
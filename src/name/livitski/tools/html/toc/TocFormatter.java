@@ -18,10 +18,12 @@
 
 package name.livitski.tools.html.toc;
 
-import static javax.xml.XMLConstants.DEFAULT_NS_PREFIX;
-import static javax.xml.XMLConstants.NULL_NS_URI;
-
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -44,7 +46,12 @@ import name.livitski.tools.xml.staxform.helpers.IdentityEventProcessor;
  * Detects relevant items in a stream of XML events and formats them for
  * inclusion in the table of contents (TOC). The items to include in the
  * TOC are selected using the {@link TocPIData formatter's processing instruction}.
- * Groups the TOC items into levels according to the configured outline.  
+ * Groups the TOC items into levels according to the configured outline.
+ * The items are kept in a compact {@link #getEntries() store} until the
+ * TOC is complete, and then {@link #detach() rendered} as serialized
+ * markup rather than XML events. The wrapper tags of each level are
+ * compiled into escaped fragments when the formatter is created, so that
+ * only the ids and text of TOC items have to be escaped while rendering.
  */
 public class TocFormatter extends IdentityEventProcessor implements EventFilter
 {
@@ -71,7 +78,20 @@ public class TocFormatter extends IdentityEventProcessor implements EventFilter
   Iterator<String> linetags = new OutlineList(attrValue).iterator();
   TocFormatter formatter = new TocFormatter();
   formatter.levels = new LinkedHashMap<QName, Level>();
-  for (int i = 0; outline.size() > i; i++)
+  formatter.skipEmpty = pi.isSkipEmpty();
+  formatter.maxLength = pi.getMaxlength();
+  formatter.slugIds = pi.isSlugIds();
+  if (pi.isDedupe())
+   formatter.titles = new HashSet<String>();
+  int depth = outline.size();
+  if (0 < pi.getMaxdepth() && pi.getMaxdepth() < depth)
+   depth = pi.getMaxdepth();
+  if (TocEntries.MAX_LEVELS < depth)
+   throw new XMLStreamException(
+     "Outline cannot have more than " + TocEntries.MAX_LEVELS
+     + " levels in <?" + TocPIParser.PI_TARGET + "?>",
+     location);
+  for (int i = 0; depth > i; i++)
   {
    String indexable = outline.get(i);
    if (null == indexable || 0 == indexable.length())
@@ -107,9 +127,56 @@ public class TocFormatter extends IdentityEventProcessor implements EventFilter
  }
 
  /**
-  * Opens a TOC item.
-  * A call to this method is likely to generate 
-  * {@link #hasNext() outgoing XML events} within the formatter.
+  * Tells whether items have to be {@link #admit(CharSequence) admitted}
+  * by their text, or their ids derived from that text, before they
+  * are opened.
+  */
+ public boolean isSelective()
+ {
+  return skipEmpty || null != titles || slugIds;
+ }
+
+ /**
+  * Tells whether the ids of items without them are
+  * {@link TocPIData#isSlugIds() derived from the items' text}.
+  */
+ public boolean isSlugIds()
+ {
+  return slugIds;
+ }
+
+ /**
+  * Decides whether an item with certain text belongs in the TOC. Items
+  * without text are left out when the processing instruction asks to
+  * {@link TocPIData#isSkipEmpty() skip empty items}. When it asks to
+  * {@link TocPIData#isDedupe() dedupe} items, an item is left out if
+  * its text, with whitespace collapsed, has been admitted before.
+  * @param text the text of an item that has been {@link #accept accepted}
+  * @return whether to list the item in the TOC
+  */
+ public boolean admit(CharSequence text)
+ {
+  if (!skipEmpty && null == titles)
+   return true;
+  StringBuilder title = new StringBuilder(text.length());
+  for (int i = 0; text.length() > i; i++)
+  {
+   char c = text.charAt(i);
+   if (!TocPIParser.isSpace(c))
+    title.append(c);
+   else if (0 < title.length() && ' ' != title.charAt(title.length() - 1))
+    title.append(' ');
+  }
+  if (0 < title.length() && ' ' == title.charAt(title.length() - 1))
+   title.setLength(title.length() - 1);
+  if (skipEmpty && 0 == title.length())
+   return false;
+  return null == titles || titles.add(title.toString());
+ }
+
+ /**
+  * Opens a TOC item and adds it to the formatter's
+  * {@link #getEntries() store}.
   * @param start the event that begins a TOC item in the document.
   * Currently, this must be a {@link StartElement} event
   * @param id the marker assigned to the item for references by TOC
@@ -135,27 +202,14 @@ public class TocFormatter extends IdentityEventProcessor implements EventFilter
      "TOC item " + Transformer.describeEvent(start)
      + " is not included in the outline",
      start.getLocation());
-  jumpToLevel(level);
-  StartElement startLineElement = level.startLineElement();
-  if (null != startLineElement)
-   super.add(startLineElement);
-  XMLEventFactory eventFactory = getXMLEventFactory();
-  Set<Attribute> attrs = Collections.singleton(
-	eventFactory.createAttribute("href", '#' + id)
-  );
-  super.add(
-	eventFactory.createStartElement(
-	  DEFAULT_NS_PREFIX,
-	  NULL_NS_URI,
-	  "a",
-	  attrs.iterator(),
-	  Collections.EMPTY_SET.iterator()));
+  entries.open(level.getIndex(), id);
+  textLength = 0;
+  truncated = false;
+  space = false;
  }
 
  /**
-  * Closes a TOC item.
-  * A call to this method is likely to generate 
-  * {@link #hasNext() outgoing XML events} within the formatter.
+  * Closes a TOC item, storing its text.
   * @param end the event that ends a TOC item in the document.
   * Currently, this must be an {@link EndElement} event
   * @throws XMLStreamException
@@ -181,19 +235,14 @@ public class TocFormatter extends IdentityEventProcessor implements EventFilter
      + ' ' + Transformer.describeLocation(openItem.getLocation()),
      end.getLocation());
   
-  super.add(getXMLEventFactory().createEndElement(DEFAULT_NS_PREFIX, NULL_NS_URI, "a"));
-  EndElement endLineElement = atLevel.endLineElement();
-  if (null != endLineElement)
-   super.add(endLineElement);
-  addEOL();
-
+  entries.close(itemText());
   openItem = null;
  }
 
  /**
-  * Adds XML content to the current TOC item.
-  * A call to this method is likely to generate 
-  * {@link #hasNext() outgoing XML events} within the formatter.
+  * Adds XML content to the current TOC item. The text of the item is
+  * accumulated with whitespace collapsed and stored when the item
+  * is {@link #closeItem closed}.
   * @param content
   * @throws XMLStreamException
   */
@@ -206,13 +255,12 @@ public class TocFormatter extends IdentityEventProcessor implements EventFilter
      + " is not expected outside of a TOC item",
      content.getLocation());
   if (content instanceof Characters && !((Characters)content).isIgnorableWhiteSpace())
-   super.add(content);
+   accumulate(((Characters)content).getData());
  }
 
  /**
-  * Closes out the TOC produced by this formatter.
-  * A call to this method is likely to generate 
-  * {@link #hasNext() outgoing XML events} within the formatter.
+  * Closes out the TOC produced by this formatter, which can then be
+  * {@link #detach() rendered}.
   * @throws XMLStreamException
   */
  public void end() throws XMLStreamException
@@ -221,17 +269,107 @@ public class TocFormatter extends IdentityEventProcessor implements EventFilter
    throw new XMLStreamException(
      "TOC item " + Transformer.describeEvent(openItem)
      + " has never been closed.", openItem.getLocation());
-  jumpToLevel(null);
  }
 
+ /**
+  * Discards the state left by a previous document, including any
+  * pending output, so that this formatter can be reused with
+  * another document having the same settings.
+  */
  @Override
  public void reset() throws XMLStreamException
  {
-  // TODO reset this object's state
-  atLevel = null;
+  openItem = null;
+  entries.clear();
+  if (null != titles)
+   titles.clear();
   super.reset();
  }
 
+ /**
+  * Returns the store of the items added to the TOC so far.
+  */
+ public TocEntries getEntries()
+ {
+  return entries;
+ }
+
+ /**
+  * Makes the store hold its items outside of the Java heap.
+  * Takes effect when the store is empty.
+  * @see TocEntries#TocEntries(boolean)
+  */
+ public void setOffHeap(boolean offHeap)
+ {
+  if (offHeap != entries.isOffHeap() && 0 == entries.size())
+   entries = new TocEntries(offHeap);
+ }
+
+ public boolean isCompact()
+ {
+  return compact;
+ }
+
+ /**
+  * Makes the formatter render the TOC without line breaks
+  * between its tags.
+  */
+ public void setCompact(boolean compact)
+ {
+  this.compact = compact;
+ }
+
+ /**
+  * Hands over the items of a {@link #end() complete} TOC to an event
+  * that renders them, leaving the formatter with an empty store.
+  * @return the markup event that renders the TOC or <code>null</code>
+  * if the TOC has no items
+  */
+ public MarkupEvent detach()
+ {
+  if (0 == entries.size())
+   return null;
+  MarkupEvent rendering = new Rendering(entries);
+  entries = new TocEntries(entries.isOffHeap());
+  return rendering;
+ }
+
+ /**
+  * Renders a TOC into serialized markup.
+  * @param entries the items of the TOC
+  * @param out the markup to append to
+  * @param from the index of the first item to render
+  * @param limit the length of the markup at which rendering stops
+  * once the item being rendered is complete
+  * @return the index of the item that follows the rendered ones
+  */
+ public int render(TocEntries entries, StringBuilder out, int from, int limit)
+ {
+  int size = entries.size();
+  int at = 0 == from ? -1 : entries.getLevel(from - 1);
+  int i = from;
+  for (; size > i && limit > out.length(); i++)
+  {
+   int index = entries.getLevel(i);
+   at = jump(out, at, index);
+   Level level = levelsIndex[index];
+   if (null != level.startLine)
+    out.append(level.startLine);
+   out.append(START_LINK);
+   Markup.appendAttributeValue(out, entries.getId(i));
+   out.append(END_START_LINK);
+   Markup.appendText(out, entries.getText(i));
+   out.append(END_LINK);
+   if (null != level.endLine)
+    out.append(level.endLine);
+   if (!compact)
+    out.append(EOL);
+  }
+  if (size == i)
+   jump(out, at, -1);
+  return i;
+ }
+
  public XMLEventFactory getXMLEventFactory()
  {
   if (null == xmlEventFactory)
@@ -250,41 +388,157 @@ public class TocFormatter extends IdentityEventProcessor implements EventFilter
  public static String DEFAULT_BLOCK_WRAPPER = "";  
  public static String DEFAULT_LINE_WRAPPER = "div";  
 
- protected void addEOL() throws XMLStreamException
+ protected static final char[] START_LINK = "<a href=\"#".toCharArray();
+ protected static final char[] END_START_LINK = "\">".toCharArray();
+ protected static final char[] END_LINK = "</a>".toCharArray();
+ protected static final char EOL = '\n';
+ protected static final char ELLIPSIS = '\u2026';
+
+ /**
+  * Number of characters of markup rendered at a time when the TOC
+  * is written out.
+  */
+ protected static final int RENDERING_CHUNK = 1 << 13;
+
+ /**
+  * Appends text to the current item, collapsing whitespace into
+  * single spaces and dropping leading whitespace. Once the item's text
+  * is longer than the {@link TocPIData#getMaxlength() length limit},
+  * the rest is discarded.
+  */
+ protected void accumulate(String data)
+ {
+  if (truncated)
+   return;
+  int length = data.length();
+  if (text.length < textLength + length + 1)
+  {
+   char[] grown = new char[Math.max(text.length * 2, textLength + length + 1)];
+   System.arraycopy(text, 0, grown, 0, textLength);
+   text = grown;
+  }
+  for (int i = 0; length > i; i++)
+  {
+   char c = data.charAt(i);
+   if (TocPIParser.isSpace(c))
+    space = true;
+   else
+   {
+    if (space && 0 < textLength)
+     text[textLength++] = ' ';
+    space = false;
+    text[textLength++] = c;
+   }
+  }
+  if (0 < maxLength && maxLength < textLength)
+   truncated = true;
+ }
+
+ /**
+  * Returns the accumulated text of an item, cutting it at the last
+  * word boundary within the length limit if necessary.
+  */
+ protected CharSequence itemText()
  {
-  super.add(getXMLEventFactory().createCharacters("\n"));
+  int length = textLength;
+  if (0 < maxLength && maxLength < length)
+  {
+   length = maxLength;
+   if (' ' != text[length])
+   {
+    int cut = length;
+    while (0 < cut && ' ' != text[cut - 1])
+     cut--;
+    // a word longer than the limit is cut in the middle
+    if (0 < cut)
+     length = cut;
+   }
+   while (0 < length && ' ' == text[length - 1])
+    length--;
+   if (0 < length && Character.isHighSurrogate(text[length - 1]))
+    length--;
+  }
+  if (length < textLength)
+   // the text is no longer needed past the cut
+   text[length++] = ELLIPSIS;
+  return CharBuffer.wrap(text, 0, length);
  }
 
- protected void jumpToLevel(Level level) throws XMLStreamException
+ /**
+  * Renders the wrapper tags that open or close blocks of items
+  * when moving from one level to another.
+  * @param atIndex the index of the current level, or <code>-1</code>
+  * outside of the TOC
+  * @param index the index of the level to move to, or <code>-1</code>
+  * to close all blocks
+  * @return the index of the level moved to
+  */
+ protected int jump(StringBuilder markup, int atIndex, int index)
  {
-  int atIndex = null == atLevel ? -1 : atLevel.getIndex();
-  int index = null == level ? -1 : level.getIndex();
   if (index > atIndex)
   {
    while (index > atIndex++)
    {
-    StartElement startElement = levelsIndex[atIndex].startBlockElement();
-    if (null != startElement)
+    char[] startBlock = levelsIndex[atIndex].startBlock;
+    if (null != startBlock)
     {
-     super.add(startElement);
-     addEOL();
+     markup.append(startBlock);
+     if (!compact)
+      markup.append(EOL);
     }
    }
   }
   else if (index < atIndex)
   {
-   // TODO close out blocks
    while (index < atIndex)
    {
-    EndElement endElement = levelsIndex[atIndex--].endBlockElement();
-    if (null != endElement)
+    char[] endBlock = levelsIndex[atIndex--].endBlock;
+    if (null != endBlock)
     {
-     super.add(endElement);
-     addEOL();
+     markup.append(endBlock);
+     if (!compact)
+      markup.append(EOL);
     }
    }
   }
-  atLevel = level;
+  return index;
+ }
+
+ /**
+  * Renders the items of a TOC when the event is written out.
+  */
+ protected class Rendering extends MarkupEvent
+ {
+  public Rendering(TocEntries entries)
+  {
+   this.entries = entries;
+  }
+
+  @Override
+  public void writeTo(Writer out, CharsetEncoder encoder) throws IOException
+  {
+   StringBuilder buffer = new StringBuilder(RENDERING_CHUNK + RENDERING_CHUNK / 4);
+   for (int i = 0; entries.size() > i;)
+   {
+    i = render(entries, buffer, i, RENDERING_CHUNK);
+    Markup.write(out, buffer, encoder);
+    buffer.setLength(0);
+   }
+  }
+
+  /**
+   * Renders the entire TOC into memory. Use
+   * {@link #writeTo(Writer, CharsetEncoder)} to write it out instead.
+   */
+  @Override
+  public String getMarkup()
+  {
+   StringBuilder markup = new StringBuilder();
+   render(entries, markup, 0, Integer.MAX_VALUE);
+   return markup.toString();
+  }
+
+  private final TocEntries entries;
  }
 
  protected class Level
@@ -299,17 +553,16 @@ public class TocFormatter extends IdentityEventProcessor implements EventFilter
    return index;
   }
 
+  /**
+   * Creates the start tag of the element that wraps the items
+   * of this level and nested levels. The tags of the wrapper are
+   * {@link #compile() compiled} into markup when the level is created.
+   * @return the start tag or <code>null</code> if the items of this
+   * level are not wrapped
+   */
   public StartElement startBlockElement()
   {
-   if (null == blockWrap)
-    return null;
-   XMLEventFactory factory = getXMLEventFactory();
-   Set<Attribute> attributes;
-   if (null == blockClass)
-    attributes = Collections.emptySet();
-   else
-    attributes = Collections.singleton(factory.createAttribute(CLASS_ATTR_QNAME, blockClass));
-   return factory.createStartElement(blockWrap, attributes.iterator(), null);
+   return null == blockWrap ? null : startElement(blockWrap, blockClass);
   }
 
   public EndElement endBlockElement()
@@ -317,17 +570,16 @@ public class TocFormatter extends IdentityEventProcessor implements EventFilter
    return null == blockWrap ? null : getXMLEventFactory().createEndElement(blockWrap, null);
   }
 
+  /**
+   * Creates the start tag of the element that wraps each item
+   * of this level. The tags of the wrapper are {@link #compile() compiled}
+   * into markup when the level is created.
+   * @return the start tag or <code>null</code> if the items
+   * are not wrapped
+   */
   public StartElement startLineElement()
   {
-   if (null == lineWrap)
-    return null;
-   XMLEventFactory factory = getXMLEventFactory();
-   Set<Attribute> attributes;
-   if (null == lineClass)
-    attributes = Collections.emptySet();
-   else
-    attributes = Collections.singleton(factory.createAttribute(CLASS_ATTR_QNAME, lineClass));
-   return factory.createStartElement(lineWrap, attributes.iterator(), null);
+   return null == lineWrap ? null : startElement(lineWrap, lineClass);
   }
 
   public EndElement endLineElement()
@@ -345,16 +597,62 @@ public class TocFormatter extends IdentityEventProcessor implements EventFilter
    parts = lineSpec.split(CLASS_DELIMITER, 2);
    this.lineWrap = 0 == parts[0].length() ? null : new QName(parts[0]);
    this.lineClass = 1 < parts.length ? parts[1] : null;
+   compile();
+  }
+
+  /**
+   * Serializes the tags returned by {@link #startBlockElement()},
+   * {@link #endBlockElement()}, {@link #startLineElement()} and
+   * {@link #endLineElement()} into the markup templates of this level.
+   */
+  protected void compile()
+  {
+   startBlock = markupOf(startBlockElement());
+   endBlock = markupOf(endBlockElement());
+   startLine = markupOf(startLineElement());
+   endLine = markupOf(endLineElement());
+  }
+
+  protected StartElement startElement(QName name, String className)
+  {
+   XMLEventFactory factory = getXMLEventFactory();
+   Set<Attribute> attributes;
+   if (null == className)
+    attributes = Collections.emptySet();
+   else
+    attributes = Collections.singleton(factory.createAttribute(CLASS_ATTR_QNAME, className));
+   return factory.createStartElement(name, attributes.iterator(), null);
+  }
+
+  protected char[] markupOf(XMLEvent tag)
+  {
+   if (null == tag)
+    return null;
+   StringBuilder markup = new StringBuilder();
+   Markup.appendEvent(markup, tag);
+   return markup.toString().toCharArray();
   }
 
-  private QName indexable, blockWrap, lineWrap;
+  /**
+   * Escaped wrapper tags of this level, <code>null</code> if the
+   * level has no wrapper of that kind.
+   */
+  protected char[] startBlock, endBlock, startLine, endLine;
+  private QName blockWrap, lineWrap;
   private String blockClass, lineClass;
+  private QName indexable;
   private int index;
  }
 
  private Map<QName, Level> levels;
  private Level[] levelsIndex;
- private Level atLevel;
  private StartElement openItem;
+ private TocEntries entries = new TocEntries(false);
+ private boolean skipEmpty, slugIds, compact;
+ private Set<String> titles;
+ private int maxLength;
+ private char[] text = new char[256];
+ private int textLength;
+ private boolean truncated, space;
  private XMLEventFactory xmlEventFactory;
 }
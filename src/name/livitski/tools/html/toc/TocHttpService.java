@@ -0,0 +1,772 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embeddable HTTP endpoint that adds tables of contents to XHTML
+ * documents. Clients <code>POST</code> a document to the service's
+ * context path and receive the transformed document in response.
+ * The request body is streamed into a {@link Transformer} as it
+ * arrives, and the response begins as soon as the transformer
+ * produces its first output.
+ * Each request runs on a virtual thread when the Java runtime
+ * supports them, or on a pooled platform thread otherwise. Requests
+ * are subject to {@link #setMaxRequestSize(long) size} and
+ * {@link #setRequestTimeout(long) time} limits.
+ * When a {@link #setCache(ResultCache) result cache} is set, the service
+ * reads each document in full before transforming it, answers repeated
+ * documents from the cache, and tags its responses with ETags. A request
+ * whose <code>If-None-Match</code> header has the ETag of the result
+ * receives status 304 without the document being transformed.
+ * The service is built on the HTTP server bundled with the JDK and
+ * requires no other libraries.
+ */
+public class TocHttpService implements HttpHandler
+{
+ /**
+  * Runs the service from the command line. The only argument,
+  * if present, is the port to listen on. The service then runs
+  * until the process is terminated.
+  */
+ public static void main(String[] args) throws IOException
+ {
+  int port = DEFAULT_PORT;
+  if (0 < args.length)
+   port = Integer.parseInt(args[0]);
+  TocHttpService service = new TocHttpService(new InetSocketAddress(port), DEFAULT_CONTEXT);
+  service.errorHandler.debug(Boolean.getBoolean(ProcessFile.DEBUG_PROPERTY));
+  long cacheSize = Long.getLong(CACHE_SIZE_PROPERTY, 0L);
+  if (0 < cacheSize)
+   service.setCache(new ResultCache(cacheSize));
+  service.start();
+  System.err.println("Listening on " + service.getAddress() + DEFAULT_CONTEXT);
+ }
+
+ /**
+  * Creates a service bound to a local address. The service does not
+  * accept requests until {@link #start() started}.
+  * @param address the address to listen on
+  * @param contextPath the path that accepts documents
+  * @throws IOException if the server socket cannot be bound
+  */
+ public TocHttpService(InetSocketAddress address, String contextPath)
+   throws IOException
+ {
+  server = HttpServer.create(address, 0);
+  server.createContext(contextPath, this);
+ }
+
+ public void start()
+ {
+  executor = newRequestExecutor();
+  watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+  {
+   public Thread newThread(Runnable task)
+   {
+    Thread thread = new Thread(task, "HTMLtoc request watchdog");
+    thread.setDaemon(true);
+    return thread;
+   }
+  });
+  server.setExecutor(executor);
+  server.start();
+ }
+
+ /**
+  * Stops accepting requests and shuts the service down.
+  * @param delay the maximum time in seconds to wait for
+  * the requests being processed to complete
+  */
+ public void stop(int delay)
+ {
+  server.stop(delay);
+  if (null != executor)
+   executor.shutdown();
+  if (null != watchdog)
+   watchdog.shutdownNow();
+  executor = null;
+  watchdog = null;
+ }
+
+ public InetSocketAddress getAddress()
+ {
+  return server.getAddress();
+ }
+
+ public long getMaxRequestSize()
+ {
+  return maxRequestSize;
+ }
+
+ /**
+  * Limits the number of bytes accepted in a request body.
+  * Requests that exceed the limit are rejected with status 413.
+  * @param maxRequestSize the limit in bytes, or a non-positive number
+  * to accept requests of any size
+  */
+ public void setMaxRequestSize(long maxRequestSize)
+ {
+  this.maxRequestSize = maxRequestSize;
+ }
+
+ public long getRequestTimeout()
+ {
+  return requestTimeout;
+ }
+
+ /**
+  * Limits the time spent on a request. Requests that are not
+  * complete when the limit expires are aborted. If no part of the
+  * response has been sent by then and the connection is still usable,
+  * the client receives status 408. A request waiting for its body to
+  * arrive when the limit expires has its connection closed.
+  * The limit is enforced by interrupting the request's thread and
+  * failing its subsequent reads, so it does not stop a transformation
+  * that keeps the processor busy without reading more input, e.g.
+  * while formatting a large TOC, nor a write of the response that
+  * is blocked by a slow client. Such requests end when that work does.
+  * @param requestTimeout the limit in milliseconds, or a
+  * non-positive number to allow requests to run indefinitely
+  */
+ public void setRequestTimeout(long requestTimeout)
+ {
+  this.requestTimeout = requestTimeout;
+ }
+
+ public long getMemoryBudget()
+ {
+  return memoryBudget;
+ }
+
+ /**
+  * Limits the memory that each request may use to hold the content
+  * following its TOC. Requests over the limit are spilled to temporary
+  * files, or rejected with status 413 if their TOC alone is over the limit.
+  * @param memoryBudget the limit in bytes, or a non-positive number
+  * to keep all content in memory
+  * @see Transformer#setMemoryBudget(long)
+  */
+ public void setMemoryBudget(long memoryBudget)
+ {
+  this.memoryBudget = memoryBudget;
+ }
+
+ public ResultCache getCache()
+ {
+  return cache;
+ }
+
+ /**
+  * Makes the service cache its results. The cache may be shared with
+  * other services whose transformers produce the same output.
+  * @param cache the cache to use, or <code>null</code> to stream
+  * each request without caching, which is the default
+  */
+ public void setCache(ResultCache cache)
+ {
+  this.cache = cache;
+ }
+
+ public void handle(final HttpExchange exchange) throws IOException
+ {
+  try
+  {
+   if (!"POST".equalsIgnoreCase(exchange.getRequestMethod()))
+   {
+    exchange.getResponseHeaders().set("Allow", "POST");
+    sendError(exchange, HttpURLConnection.HTTP_BAD_METHOD, "Please POST an XHTML document to this address.");
+    return;
+   }
+   String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+   if (0 < maxRequestSize && null != contentLength
+     && maxRequestSize < Long.parseLong(contentLength.trim()))
+   {
+    sendError(exchange, HttpURLConnection.HTTP_ENTITY_TOO_LARGE, "Request exceeds " + maxRequestSize + " bytes.");
+    return;
+   }
+   RequestInputStream input = new RequestInputStream(exchange.getRequestBody());
+   Alarm alarm = null;
+   ScheduledFuture<?> scheduled = null;
+   if (0 < requestTimeout)
+   {
+    alarm = new Alarm(input, Thread.currentThread());
+    scheduled = watchdog.schedule(alarm, requestTimeout, TimeUnit.MILLISECONDS);
+   }
+   try
+   {
+    transform(exchange, input);
+   }
+   finally
+   {
+    if (null != alarm)
+    {
+     alarm.disarm();
+     scheduled.cancel(false);
+    }
+    // the alarm can no longer fire, clear its interrupt before the
+    // thread returns to the pool
+    Thread.interrupted();
+   }
+  }
+  catch (NumberFormatException badLength)
+  {
+   sendError(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "Invalid Content-Length");
+  }
+  finally
+  {
+   exchange.close();
+  }
+ }
+
+ /**
+  * Default port number for the {@link #main(String[]) standalone}
+  * service.
+  */
+ public static final int DEFAULT_PORT = 8080;
+
+ /**
+  * Default context path for the {@link #main(String[]) standalone}
+  * service.
+  */
+ public static final String DEFAULT_CONTEXT = "/toc";
+
+ /**
+  * Default {@link #setMaxRequestSize(long) request size limit}.
+  */
+ public static final long DEFAULT_MAX_REQUEST_SIZE = 64L << 20;
+
+ /**
+  * Default {@link #setRequestTimeout(long) request timeout}.
+  */
+ public static final long DEFAULT_REQUEST_TIMEOUT = 30000L;
+
+ /**
+  * Name of the system property that sets the capacity in bytes of the
+  * {@link #setCache(ResultCache) result cache} of the
+  * {@link #main(String[]) standalone} service. The service does not
+  * cache results unless that property is set.
+  */
+ public static final String CACHE_SIZE_PROPERTY = "name.livitski.tools.html.toc.cache.size";
+
+ /**
+  * Maximum number of idle transformers retained for reuse.
+  */
+ public static final int TRANSFORMER_POOL_SIZE = 64;
+
+ /**
+  * Creates the executor that runs requests. Uses a virtual thread per
+  * request when the runtime supports them, and falls back to a cached
+  * pool of platform threads otherwise.
+  */
+ protected static ExecutorService newRequestExecutor()
+ {
+  try
+  {
+   Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+   return (ExecutorService)factory.invoke(null);
+  }
+  catch (NoSuchMethodException unsupported)
+  {
+   return Executors.newCachedThreadPool();
+  }
+  catch (Exception e)
+  {
+   throw new IllegalStateException("Could not create an executor of virtual threads", e);
+  }
+ }
+
+ protected void transform(HttpExchange exchange, RequestInputStream input)
+   throws IOException
+ {
+  String charset = charsetOf(exchange.getRequestHeaders().getFirst("Content-Type"));
+  ResultCache cache = this.cache;
+  if (null == cache)
+  {
+   transform(exchange, input, charset, null);
+   return;
+  }
+  ByteArrayOutputStream document = new ByteArrayOutputStream();
+  try
+  {
+   byte[] buffer = new byte[BUFFER_SIZE];
+   for (int read; 0 <= (read = input.read(buffer));)
+    document.write(buffer, 0, read);
+  }
+  catch (IOException e)
+  {
+   if (null == input.getViolation())
+    throw e;
+   sendError(exchange, input.getViolation().getStatus(), input.getViolation().getMessage());
+   return;
+  }
+  byte[] body = document.toByteArray();
+  document = null;
+  String key = ResultCache.keyFor(null == charset ? null : "charset=" + charset, body, 0, body.length);
+  String etag = ResultCache.etagOf(key);
+  if (ResultCache.matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag))
+  {
+   exchange.getResponseHeaders().set("ETag", etag);
+   exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+   return;
+  }
+  byte[] result = cache.get(key);
+  if (null != result)
+  {
+   exchange.getResponseHeaders().set("ETag", etag);
+   exchange.getResponseHeaders().set("Content-Type", ResponseOutputStream.contentType(outputCharset(charset)));
+   exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0 == result.length ? -1 : result.length);
+   if (0 < result.length)
+   {
+    OutputStream out = exchange.getResponseBody();
+    out.write(result);
+    out.close();
+   }
+   return;
+  }
+  input.replay(body);
+  exchange.getResponseHeaders().set("ETag", etag);
+  result = transform(exchange, input, charset, cache.getMaxResultSize());
+  if (null != result)
+   cache.put(key, result);
+ }
+
+ /**
+  * Transforms a request and sends the result.
+  * @param capture the maximum size of the result to return, or
+  * <code>null</code> to return none
+  * @return the result, if it has been sent successfully and
+  * was to be returned, or <code>null</code> otherwise
+  */
+ protected byte[] transform(HttpExchange exchange, RequestInputStream input, String charset, Integer capture)
+   throws IOException
+ {
+  StreamSource source = null == charset
+    ? new StreamSource(input)
+    : new StreamSource(new InputStreamReader(input, charset));
+  String outputCharset = outputCharset(charset);
+  ResponseOutputStream response = new ResponseOutputStream(exchange, outputCharset);
+  if (null != capture)
+   response.capture(capture);
+  Writer writer = new OutputStreamWriter(response, outputCharset);
+  Transformer transformer = acquireTransformer();
+  try
+  {
+   transformer.transform(source, new StreamResult(writer));
+   writer.flush();
+   response.complete();
+   releaseTransformer(transformer);
+   return response.getCaptured();
+  }
+  catch (TransformerException e)
+  {
+   int status;
+   if (null != input.getViolation())
+    status = input.getViolation().getStatus();
+   else if (null != MemoryBudgetException.causeOf(e))
+    status = HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+   else if (e instanceof TransformerConfigurationException)
+    status = HttpURLConnection.HTTP_INTERNAL_ERROR;
+   else
+    status = HttpURLConnection.HTTP_BAD_REQUEST;
+   String message = null == input.getViolation() ? e.getMessageAndLocation() : input.getViolation().getMessage();
+   if (response.isCommitted())
+    report(exchange, message, e);
+   else
+    sendError(exchange, status, message);
+  }
+  catch (RuntimeException e)
+  {
+   report(exchange, "Internal error", e);
+   if (!response.isCommitted())
+    sendError(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, "Internal error");
+  }
+  return null;
+ }
+
+ protected static String outputCharset(String charset)
+ {
+  return null == charset ? "UTF-8" : charset;
+ }
+
+ protected Transformer acquireTransformer()
+ {
+  Transformer transformer = transformers.poll();
+  if (null == transformer)
+  {
+   transformer = new Transformer();
+   transformer.setErrorListener(errorHandler);
+  }
+  else
+   idleCount.decrementAndGet();
+  transformer.setMemoryBudget(memoryBudget);
+  return transformer;
+ }
+
+ protected void releaseTransformer(Transformer transformer)
+ {
+  if (TRANSFORMER_POOL_SIZE > idleCount.getAndIncrement())
+   transformers.offer(transformer);
+  else
+   idleCount.decrementAndGet();
+ }
+
+ protected void sendError(HttpExchange exchange, int status, String message)
+   throws IOException
+ {
+  byte[] body = (null == message ? "" : message + '\n').getBytes("UTF-8");
+  exchange.getResponseHeaders().remove("ETag");
+  exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+  exchange.sendResponseHeaders(status, 0 == body.length ? -1 : body.length);
+  if (0 < body.length)
+  {
+   OutputStream out = exchange.getResponseBody();
+   out.write(body);
+   out.close();
+  }
+ }
+
+ protected void report(HttpExchange exchange, String message, Throwable error)
+ {
+  System.err.println("Error processing request from " + exchange.getRemoteAddress() + ": " + message);
+  if (errorHandler.isDebug())
+   error.printStackTrace();
+ }
+
+ protected static String charsetOf(String contentType)
+ {
+  if (null == contentType)
+   return null;
+  for (String param : contentType.split(";"))
+  {
+   param = param.trim();
+   if (param.regionMatches(true, 0, "charset=", 0, 8))
+   {
+    String charset = param.substring(8).trim();
+    if (charset.startsWith("\"") && charset.endsWith("\"") && 1 < charset.length())
+     charset = charset.substring(1, charset.length() - 1);
+    return 0 == charset.length() ? null : charset;
+   }
+  }
+  return null;
+ }
+
+ /**
+  * Reasons for rejecting a request while it is being read.
+  */
+ protected enum Violation
+ {
+  /** The request is larger than the configured limit. */
+  SIZE(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, "Request is too large."),
+  /** The request took longer than the configured limit. */
+  TIME(HttpURLConnection.HTTP_CLIENT_TIMEOUT, "Request timed out.");
+
+  public int getStatus()
+  {
+   return status;
+  }
+
+  public String getMessage()
+  {
+   return message;
+  }
+
+  Violation(int status, String message)
+  {
+   this.status = status;
+   this.message = message;
+  }
+
+  private int status;
+  private String message;
+ }
+
+ /**
+  * Interrupts a request that has run out of time. Once
+  * {@link #disarm() disarmed}, the alarm no longer interrupts the request's
+  * thread, so that the thread can clear any interrupt already delivered
+  * without another one arriving afterwards.
+  */
+ protected static class Alarm implements Runnable
+ {
+  public Alarm(RequestInputStream input, Thread worker)
+  {
+   this.input = input;
+   this.worker = worker;
+  }
+
+  public synchronized void run()
+  {
+   if (disarmed)
+    return;
+   // interrupting a virtual thread also aborts its blocking socket reads
+   input.expire();
+   worker.interrupt();
+  }
+
+  /**
+   * Keeps the alarm from firing. Waits for the alarm to finish
+   * interrupting the request if it is doing so.
+   */
+  public synchronized void disarm()
+  {
+   disarmed = true;
+  }
+
+  private final RequestInputStream input;
+  private final Thread worker;
+  private boolean disarmed;
+ }
+
+ /**
+  * Request body stream that enforces the service's limits.
+  */
+ protected class RequestInputStream extends FilterInputStream
+ {
+  public RequestInputStream(InputStream in)
+  {
+   super(in);
+  }
+
+  @Override
+  public int read() throws IOException
+  {
+   check();
+   int b = super.read();
+   if (0 <= b)
+    count++;
+   return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+   check();
+   int read = super.read(b, off, len);
+   if (0 < read)
+    count += read;
+   check();
+   return read;
+  }
+
+  @Override
+  public long skip(long n) throws IOException
+  {
+   check();
+   long skipped = super.skip(n);
+   count += skipped;
+   return skipped;
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+   return false;
+  }
+
+  public Violation getViolation()
+  {
+   return violation;
+  }
+
+  /**
+   * Makes the stream read a buffered copy of the request body
+   * from the beginning. The request's limits still apply.
+   */
+  public void replay(byte[] body)
+  {
+   in = new ByteArrayInputStream(body);
+   count = 0;
+  }
+
+  /**
+   * Marks the request as timed out. Subsequent reads will fail.
+   */
+  public void expire()
+  {
+   violation = Violation.TIME;
+  }
+
+  protected void check() throws IOException
+  {
+   if (null == violation && 0 < maxRequestSize && maxRequestSize < count)
+    violation = Violation.SIZE;
+   if (null != violation)
+    throw new IOException(violation.getMessage());
+  }
+
+  private long count;
+  private volatile Violation violation;
+ }
+
+ /**
+  * Response body stream that sends the response headers on the
+  * first write, so that errors detected before any output is
+  * produced can still be reported with a proper status code.
+  */
+ protected static class ResponseOutputStream extends OutputStream
+ {
+  public ResponseOutputStream(HttpExchange exchange, String charset)
+  {
+   this.exchange = exchange;
+   this.charset = charset;
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+   body().write(b);
+   if (null != captured)
+   {
+    if (captureLimit > captured.size())
+     captured.write(b);
+    else
+     captured = null;
+   }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+   if (0 < len)
+   {
+    body().write(b, off, len);
+    if (null != captured)
+    {
+     if (captureLimit - captured.size() >= len)
+      captured.write(b, off, len);
+     else
+      captured = null;
+    }
+   }
+  }
+
+  @Override
+  public void flush() throws IOException
+  {
+   if (null != body)
+    body.flush();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+   flush();
+  }
+
+  public boolean isCommitted()
+  {
+   return null != body;
+  }
+
+  /**
+   * Makes the stream keep a copy of the response body.
+   * @param limit the maximum size of the copy, the copy is
+   * discarded if the body grows larger
+   */
+  public void capture(int limit)
+  {
+   captured = new ByteArrayOutputStream();
+   captureLimit = limit;
+  }
+
+  /**
+   * @return the copy of the response body, or <code>null</code>
+   * if no copy has been kept
+   */
+  public byte[] getCaptured()
+  {
+   return null == captured ? null : captured.toByteArray();
+  }
+
+  public static String contentType(String charset)
+  {
+   return "application/xhtml+xml; charset=" + charset;
+  }
+
+  /**
+   * Finishes the response, sending the headers if no
+   * content has been written.
+   */
+  public void complete() throws IOException
+  {
+   body().close();
+  }
+
+  protected OutputStream body() throws IOException
+  {
+   if (null == body)
+   {
+    exchange.getResponseHeaders().set("Content-Type", contentType(charset));
+    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+    body = exchange.getResponseBody();
+   }
+   return body;
+  }
+
+  private HttpExchange exchange;
+  private String charset;
+  private OutputStream body;
+  private ByteArrayOutputStream captured;
+  private int captureLimit;
+ }
+
+ private static final int BUFFER_SIZE = 1 << 13;
+
+ private HttpServer server;
+ private ExecutorService executor;
+ private ScheduledExecutorService watchdog;
+ private long maxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
+ private long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+ private long memoryBudget = Transformer.defaultMemoryBudget();
+ private volatile ResultCache cache;
+ private ErrorHandler errorHandler = new ErrorHandler();
+ private Queue<Transformer> transformers = new ConcurrentLinkedQueue<Transformer>();
+ private AtomicInteger idleCount = new AtomicInteger();
+}
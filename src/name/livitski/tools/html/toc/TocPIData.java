@@ -18,19 +18,15 @@
 
 package name.livitski.tools.html.toc;
 
-import javax.xml.bind.annotation.XmlAttribute;
-import javax.xml.bind.annotation.XmlRootElement;
-import javax.xml.bind.annotation.XmlTransient;
-
 /**
  * Encapsulates the parsed content of the processing instructions
  * for this package. 
  */
-@XmlRootElement(name="toc-pi", namespace="")
 public class TocPIData
 {
  /**
-  * Argumentless constructor required by JAXB.
+  * Creates settings with no attributes, as filled in by
+  * the {@link TocPIParser parser}.
   */
  public TocPIData()
  {
@@ -41,7 +37,6 @@ public class TocPIData
   return version;
  }
 
- @XmlAttribute(required=true)
  public void setVersion(String version)
  {
   this.version = version;
@@ -59,7 +54,6 @@ public class TocPIData
   return outline;
  }
 
- @XmlAttribute(required=false)
  public void setOutline(String outline)
  {
   this.outline = outline;
@@ -81,7 +75,6 @@ public class TocPIData
   return blocktags;
  }
 
- @XmlAttribute(required=false)
  public void setBlocktags(String blocktags)
  {
   this.blocktags = blocktags;
@@ -103,18 +96,105 @@ public class TocPIData
   return linetags;
  }
 
- @XmlAttribute(required=false)
  public void setLinetags(String linetags)
  {
   this.linetags = linetags;
  }
 
+ /**
+  * Limits the number of outline levels included in the TOC. Elements
+  * on the {@link #getOutline() outline} below that depth are neither
+  * listed in the TOC nor given ids.
+  * @return the number of levels to include or <code>0</code> to include
+  * all levels of the outline
+  */
+ public int getMaxdepth()
+ {
+  return maxdepth;
+ }
+
+ public void setMaxdepth(int maxdepth)
+ {
+  this.maxdepth = maxdepth;
+ }
+
+ /**
+  * Limits the length of TOC entries' text. Longer text is cut at
+  * the last word boundary within the limit and followed by an ellipsis.
+  * @return the maximum number of characters in an entry or <code>0</code>
+  * if the text is not truncated
+  */
+ public int getMaxlength()
+ {
+  return maxlength;
+ }
+
+ public void setMaxlength(int maxlength)
+ {
+  this.maxlength = maxlength;
+ }
+
+ /**
+  * Tells whether outline elements without text are left out of
+  * the TOC.
+  */
+ public boolean isSkipEmpty()
+ {
+  return skipEmpty;
+ }
+
+ public void setSkipEmpty(boolean skipEmpty)
+ {
+  this.skipEmpty = skipEmpty;
+ }
+
+ /**
+  * Tells whether outline elements are left out of the TOC when
+  * their text, with whitespace collapsed, is the same as that of
+  * an earlier entry.
+  */
+ public boolean isDedupe()
+ {
+  return dedupe;
+ }
+
+ public void setDedupe(boolean dedupe)
+ {
+  this.dedupe = dedupe;
+ }
+
+ /**
+  * Selects how ids are generated for outline elements that do not
+  * have them: {@link #IDS_SEQUENCE} numbers the elements in document
+  * order, {@link #IDS_SLUG} derives ids from the elements' text, so
+  * that the ids do not change when other elements are inserted.
+  * @return the id generation mode or <code>null</code> for the default,
+  * {@link #IDS_SEQUENCE}
+  */
+ public String getIds()
+ {
+  return ids;
+ }
+
+ public void setIds(String ids)
+ {
+  this.ids = ids;
+ }
+
+ /**
+  * Tells whether ids are {@link #getIds() derived} from the text of
+  * outline elements.
+  */
+ public boolean isSlugIds()
+ {
+  return IDS_SLUG.equals(ids);
+ }
+
  public boolean isOpening()
  {
   return opening;
  }
 
- @XmlTransient
  public void setOpening(boolean opening)
  {
   this.opening = opening;
@@ -125,7 +205,6 @@ public class TocPIData
   return closing;
  }
 
- @XmlTransient
  public void setClosing(boolean closing)
  {
   this.closing = closing;
@@ -136,7 +215,14 @@ public class TocPIData
   return opening && closing;
  }
 
+ /**
+  * Values of the {@link #getIds() ids} attribute.
+  */
+ public static final String IDS_SEQUENCE = "sequence", IDS_SLUG = "slug";
+
  private String version;
- private String outline, blocktags, linetags;
+ private String outline, blocktags, linetags, ids;
+ private int maxdepth, maxlength;
+ private boolean skipEmpty, dedupe;
  private boolean opening, closing;
 }
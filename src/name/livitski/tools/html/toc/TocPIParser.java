@@ -18,18 +18,17 @@
 
 package name.livitski.tools.html.toc;
 
-import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Set;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.stream.events.ProcessingInstruction;
 
 /**
  * Parses the {@link ProcessingInstruction XML events} for
  * the tool's {@link TocPIParser#PI_TARGET processing instructions}
  * and converts them into {@link TocPIData data objects}. 
+ * The parser does not use JAXB or reflection, so that it adds nothing
+ * to the startup time of short runs.
  */
 public class TocPIParser
 {
@@ -37,7 +36,8 @@ public class TocPIParser
   * The target of processing instructions handled by this processor.
   * Set to this class's package name.
   */
- public static final String PI_TARGET = TocPIParser.class.getPackage().getName();
+ public static final String PI_TARGET =
+  TocPIParser.class.getName().substring(0, TocPIParser.class.getName().lastIndexOf('.'));
 
  /**
   * Tells whether a processing instruction will be ignored by this
@@ -58,8 +58,10 @@ public class TocPIParser
   * @return the data from the processing instruction or <code>null</code>
   * if the event is {@link #isIgnoredPI(ProcessingInstruction) ignored}
   * by this parser
+  * @throws TocPIException if the instruction is malformed or its
+  * settings are invalid
   */
- public TocPIData parse(ProcessingInstruction pi) throws JAXBException
+ public TocPIData parse(ProcessingInstruction pi) throws TocPIException
  {
   if (isIgnoredPI(pi))
    return null;
@@ -74,35 +76,188 @@ public class TocPIParser
   else if (closing)
    data = new TocPIData();
   else
-   throw new JAXBException("Processing instruction contains no data");
+   throw new TocPIException("Processing instruction contains no data");
   data.setClosing(closing);
   return data;
  }
 
- protected TocPIData parseAttrs(String raw) throws JAXBException
+ /**
+  * Parses the pseudo-attributes of a processing instruction. The
+  * attributes follow the syntax of XML attributes, and their values
+  * are normalized the way an XML parser would normalize them.
+  * Attributes that have no meaning to {@link TocPIData} are ignored.
+  */
+ protected TocPIData parseAttrs(String raw) throws TocPIException
  {
-  String dummy = '<' + XML_NAME + ' ' + raw + " />";
-  TocPIData data = (TocPIData)unmarshaller().unmarshal(new StringReader(dummy));
+  TocPIData data = new TocPIData();
   data.setOpening(true);
+  Set<String> names = new HashSet<String>();
+  StringBuilder value = new StringBuilder();
+  int length = raw.length();
+  for (int at = skipSpace(raw, 0); length > at; at = skipSpace(raw, at))
+  {
+   int start = at;
+   while (length > at && isNameChar(raw.charAt(at)))
+    at++;
+   if (start == at)
+    throw new TocPIException("Unexpected character '" + raw.charAt(at)
+      + "' at position " + at + " in <?" + PI_TARGET + "?>");
+   String name = raw.substring(start, at);
+   if (!names.add(name))
+    throw new TocPIException("Duplicate attribute \"" + name + "\" in <?" + PI_TARGET + "?>");
+   at = skipSpace(raw, at);
+   if (length <= at || '=' != raw.charAt(at))
+    throw new TocPIException("Attribute \"" + name + "\" has no value in <?" + PI_TARGET + "?>");
+   at = skipSpace(raw, at + 1);
+   char quote = length > at ? raw.charAt(at) : 0;
+   if ('"' != quote && '\'' != quote)
+    throw new TocPIException("Value of attribute \"" + name + "\" is not quoted in <?" + PI_TARGET + "?>");
+   value.setLength(0);
+   for (at++;; at++)
+   {
+    if (length <= at)
+     throw new TocPIException("Unterminated value of attribute \"" + name + "\" in <?" + PI_TARGET + "?>");
+    char c = raw.charAt(at);
+    if (quote == c)
+     break;
+    else if ('<' == c)
+     throw new TocPIException("Character '<' is not allowed in attribute \"" + name + "\" of <?" + PI_TARGET + "?>");
+    else if ('&' == c)
+     at = appendReference(raw, at, value);
+    else if ('\r' == c)
+    {
+     // a line break is normalized to a single space
+     if (length > at + 1 && '\n' == raw.charAt(at + 1))
+      at++;
+     value.append(' ');
+    }
+    else if ('\t' == c || '\n' == c)
+     value.append(' ');
+    else
+     value.append(c);
+   }
+   at++;
+   if (length > at && !isSpace(raw.charAt(at)))
+    throw new TocPIException("Attribute \"" + name + "\" must be followed by a space in <?" + PI_TARGET + "?>");
+   if ("version".equals(name))
+    data.setVersion(value.toString());
+   else if ("outline".equals(name))
+    data.setOutline(value.toString());
+   else if ("blocktags".equals(name))
+    data.setBlocktags(value.toString());
+   else if ("linetags".equals(name))
+    data.setLinetags(value.toString());
+   else if ("maxdepth".equals(name))
+    data.setMaxdepth(parseCount(name, value.toString()));
+   else if ("maxlength".equals(name))
+    data.setMaxlength(parseCount(name, value.toString()));
+   else if ("skip-empty".equals(name))
+    data.setSkipEmpty(parseBoolean(name, value.toString()));
+   else if ("dedupe".equals(name))
+    data.setDedupe(parseBoolean(name, value.toString()));
+   else if ("ids".equals(name))
+   {
+    String ids = value.toString().trim();
+    if (!TocPIData.IDS_SEQUENCE.equals(ids) && !TocPIData.IDS_SLUG.equals(ids))
+     throw new TocPIException("Value \"" + ids + "\" of attribute \"" + name + "\" must be \""
+       + TocPIData.IDS_SEQUENCE + "\" or \"" + TocPIData.IDS_SLUG + "\" in <?" + PI_TARGET + "?>");
+    data.setIds(ids);
+   }
+  }
   String version = data.getVersion();
   if (null == version)
-   throw new JAXBException("Version attribute missing for <?" + PI_TARGET + "?>");
+   throw new TocPIException("Version attribute missing for <?" + PI_TARGET + "?>");
   if (!"1.0".equals(version))
-   throw new JAXBException("Unsupported version \"" + version + "\" for <?" + PI_TARGET + "?>");
+   throw new TocPIException("Unsupported version \"" + version + "\" for <?" + PI_TARGET + "?>");
   return data;
  }
 
- protected Unmarshaller unmarshaller() throws JAXBException
+ /**
+  * Parses the value of an attribute that must be a positive number.
+  */
+ protected static int parseCount(String name, String value) throws TocPIException
  {
-  if (null == unmarshaller)
+  try
+  {
+   int depth = Integer.parseInt(value.trim());
+   if (0 < depth)
+    return depth;
+  }
+  catch (NumberFormatException invalid)
   {
-   JAXBContext context = JAXBContext.newInstance(TocPIData.class);
-   unmarshaller = context.createUnmarshaller();
   }
-  return unmarshaller;
+  throw new TocPIException("Value \"" + value + "\" of attribute \"" + name
+    + "\" is not a positive number in <?" + PI_TARGET + "?>");
  }
 
- protected static final String XML_NAME =
-  ((XmlRootElement)TocPIData.class.getAnnotation(XmlRootElement.class)).name();
- private Unmarshaller unmarshaller;
+ /**
+  * Parses a boolean value the way XML Schema defines <code>xs:boolean</code>.
+  */
+ protected static boolean parseBoolean(String name, String value) throws TocPIException
+ {
+  value = value.trim();
+  if ("true".equals(value) || "1".equals(value))
+   return true;
+  else if ("false".equals(value) || "0".equals(value))
+   return false;
+  throw new TocPIException("Value \"" + value + "\" of attribute \"" + name
+    + "\" is not a boolean in <?" + PI_TARGET + "?>");
+ }
+
+ /**
+  * Decodes a predefined entity or character reference.
+  * @return the position of the reference's last character
+  */
+ protected static int appendReference(String raw, int at, StringBuilder out)
+   throws TocPIException
+ {
+  int end = raw.indexOf(';', at);
+  if (0 > end)
+   throw new TocPIException("Unterminated reference at position " + at + " in <?" + PI_TARGET + "?>");
+  String name = raw.substring(at + 1, end);
+  if ("lt".equals(name))
+   out.append('<');
+  else if ("gt".equals(name))
+   out.append('>');
+  else if ("amp".equals(name))
+   out.append('&');
+  else if ("quot".equals(name))
+   out.append('"');
+  else if ("apos".equals(name))
+   out.append('\'');
+  else if (name.startsWith("#"))
+  {
+   try
+   {
+    int codePoint = name.startsWith("#x")
+      ? Integer.parseInt(name.substring(2), 16)
+      : Integer.parseInt(name.substring(1));
+    out.appendCodePoint(codePoint);
+   }
+   catch (IllegalArgumentException invalid)
+   {
+    throw new TocPIException("Invalid character reference &" + name + "; in <?" + PI_TARGET + "?>");
+   }
+  }
+  else
+   throw new TocPIException("Undefined entity &" + name + "; in <?" + PI_TARGET + "?>");
+  return end;
+ }
+
+ protected static int skipSpace(String raw, int at)
+ {
+  while (raw.length() > at && isSpace(raw.charAt(at)))
+   at++;
+  return at;
+ }
+
+ protected static boolean isSpace(char c)
+ {
+  return ' ' == c || '\t' == c || '\n' == c || '\r' == c;
+ }
+
+ protected static boolean isNameChar(char c)
+ {
+  return Character.isLetterOrDigit(c) || '-' == c || '_' == c || '.' == c || ':' == c;
+ }
 }
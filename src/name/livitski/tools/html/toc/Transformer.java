@@ -18,21 +18,46 @@
 
 package name.livitski.tools.html.toc;
 
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import javax.xml.bind.JAXBException;
 import javax.xml.namespace.QName;
 import javax.xml.stream.EventFilter;
 import javax.xml.stream.Location;
 import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.Comment;
 import javax.xml.stream.events.DTD;
 import javax.xml.stream.events.EndDocument;
 import javax.xml.stream.events.EndElement;
@@ -40,7 +65,16 @@ import javax.xml.stream.events.EntityReference;
 import javax.xml.stream.events.ProcessingInstruction;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
+import javax.xml.transform.ErrorListener;
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.SourceLocator;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stax.StAXResult;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 
 import name.livitski.tools.xml.staxform.XMLEventProcessor;
 import name.livitski.tools.xml.staxform.XMLEventTransformer;
@@ -76,10 +110,348 @@ public class Transformer extends XMLEventTransformer
   return encoding;
  }
 
+ /**
+  * Name of the system property that sets the default
+  * {@link #setMemoryBudget(long) memory budget} of new transformers
+  * in bytes.
+  */
+ public static final String MEMORY_BUDGET_PROPERTY = "name.livitski.tools.html.toc.memory.budget";
+
+ /**
+  * Returns the memory budget set by the {@link #MEMORY_BUDGET_PROPERTY}
+  * system property, or a quarter of the maximum heap size if that property
+  * is not set.
+  */
+ public static long defaultMemoryBudget()
+ {
+  return Long.getLong(MEMORY_BUDGET_PROPERTY, Runtime.getRuntime().maxMemory() / 4);
+ }
+
+ /**
+  * Name of the system property that makes new transformers hold
+  * the TOC {@link #setOffHeapToc(boolean) outside of the Java heap}
+  * when set to <code>true</code>.
+  */
+ public static final String OFF_HEAP_PROPERTY = "name.livitski.tools.html.toc.offheap";
+
+ /**
+  * Name of the system property that makes new transformers write
+  * {@link #setCompactOutput(boolean) compact output} when set
+  * to <code>true</code>.
+  */
+ public static final String COMPACT_PROPERTY = "name.livitski.tools.html.toc.compact";
+
  public Transformer()
  {
+  memoryBudget = defaultMemoryBudget();
+  offHeapToc = Boolean.getBoolean(OFF_HEAP_PROPERTY);
+  compactOutput = Boolean.getBoolean(COMPACT_PROPERTY);
+  probe = TransformerProbe.newProbe();
   setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-  setFunction(processor());
+  function = processor();
+  setFunction(function);
+ }
+
+ /**
+  * Transforms a document. When the result is a
+  * {@link StreamResult character or byte stream}, the content
+  * preceding the TOC placeholder is flushed to that stream as soon
+  * as the placeholder is found, without waiting for the rest of
+  * the document to be indexed.
+  * @see #addPrefixListener(PrefixListener)
+  */
+ @Override
+ public void transform(Source source, Result result)
+   throws TransformerException
+ {
+  if (null != feed)
+   throw new IllegalStateException("The transformer is already processing a document");
+  OutputChannel channel = null;
+  boolean complete = false;
+  try
+  {
+   probe.documentStarted(source.getSystemId(), false);
+   if (result instanceof StreamResult)
+   {
+    channel = openChannel((StreamResult)result);
+    if (null != channel)
+     result = new StAXResult(channel);
+   }
+   output = channel;
+   function.reset();
+   super.transform(source, result);
+   if (null != channel)
+   {
+    probe.flushStarted();
+    channel.commit();
+    probe.flushEnded(false);
+   }
+   if (null != recorder)
+    recorder.flush();
+   complete = true;
+  }
+  catch (XMLStreamException e)
+  {
+   throw new TransformerException(e);
+  }
+  catch (IOException e)
+  {
+   throw new TransformerException("Could not record the events of the document", e);
+  }
+  finally
+  {
+   probe.documentEnded(complete);
+   endDocument();
+  }
+ }
+
+ /**
+  * Starts transforming a document whose bytes will be supplied
+  * as they become available. Unlike {@link #transform(Source, Result)},
+  * which parks its thread while it waits for the input, a feed
+  * parses only the bytes {@link Feed#add(ByteBuffer) added} to it,
+  * transforms the resulting events and returns, so that a small pool
+  * of threads can take turns transforming many documents, each with
+  * a transformer of its own. The document is parsed by the
+  * {@link #newFeeder() feeder} of this transformer.
+  * The transformer cannot be used for other documents until the
+  * feed is {@link Feed#finish() finished} or {@link Feed#abort() aborted}.
+  * @param result the result of the transformation, which must be
+  * a {@link StreamResult stream} or a {@link StAXResult} with
+  * an event writer. The transformer writes to it from the threads
+  * that add input to the feed.
+  * @return the feed that accepts the document's bytes
+  * @throws TransformerException if the result is not supported
+  * or cannot be opened
+  */
+ public Feed openFeed(Result result) throws TransformerException
+ {
+  if (null != feed)
+   throw new IllegalStateException("The transformer is already processing a document");
+  try
+  {
+   probe.documentStarted(null == result ? null : result.getSystemId(), true);
+   XMLEventWriter writer = null;
+   if (result instanceof StreamResult)
+    writer = output = openChannel((StreamResult)result);
+   else if (result instanceof StAXResult)
+    writer = ((StAXResult)result).getXMLEventWriter();
+   if (null == writer)
+    throw new TransformerException("Unsupported result of a fed transformation: " + result);
+   if (null == feeder)
+    feeder = newFeeder();
+   else
+    feeder.reset();
+   function.reset();
+   feed = new Feed(writer);
+   return feed;
+  }
+  catch (XMLStreamException e)
+  {
+   probe.documentEnded(false);
+   endDocument();
+   throw new TransformerException(e);
+  }
+  catch (TransformerException e)
+  {
+   probe.documentEnded(false);
+   endDocument();
+   throw e;
+  }
+ }
+
+ /**
+  * Checks the TOC markup of a document without transforming it.
+  * The document is parsed as a stream and each event is passed through
+  * the state machine that finds the TOC placeholder, so that the
+  * placement and nesting of the processing instructions and the
+  * elements of the placeholder are checked. The settings of the opening
+  * instruction are checked as they would be when formatting the TOC.
+  * No events are held and no output is produced. Errors that the
+  * transformation could recover from are reported to the
+  * {@link #setErrorListener(javax.xml.transform.ErrorListener) error listener},
+  * which decides whether the check continues.
+  * @param source the document to check, either a {@link StreamSource}
+  * or a {@link StAXSource}
+  * @throws TransformerException if the document is not well-formed,
+  * its TOC markup is invalid, or it cannot be read
+  */
+ public void check(Source source) throws TransformerException
+ {
+  if (null != feed)
+   throw new IllegalStateException("The transformer is already processing a document");
+  XMLEventReader reader = null;
+  try
+  {
+   reader = openReader(source);
+   Indexer checker = new Indexer();
+   checker.setXMLEventFactory(eventFactory());
+   checker.reset();
+   while (reader.hasNext())
+    checker.check(reader.nextEvent());
+  }
+  catch (XMLStreamException e)
+  {
+   throw new TransformerException(e);
+  }
+  catch (IllegalStateException e)
+  {
+   if (e.getCause() instanceof TransformerException)
+    throw (TransformerException)e.getCause();
+   throw e;
+  }
+  finally
+  {
+   if (null != reader)
+    try
+    {
+     reader.close();
+    }
+    catch (XMLStreamException ignored)
+    {
+     // the outcome of the check is already known
+    }
+  }
+ }
+
+ public long getMemoryBudget()
+ {
+  return memoryBudget;
+ }
+
+ /**
+  * Limits the approximate amount of memory used to hold the content
+  * that follows the TOC while the document is being indexed. When the
+  * result is a {@link StreamResult stream}, content over the limit is
+  * spilled to a temporary file and copied to the stream once the TOC
+  * is complete. Otherwise, or if the TOC itself exceeds the limit,
+  * the transformation fails with a {@link MemoryBudgetException}.
+  * @param memoryBudget the limit in bytes, or a non-positive number
+  * to keep all content in memory
+  * @see #defaultMemoryBudget()
+  */
+ public void setMemoryBudget(long memoryBudget)
+ {
+  this.memoryBudget = memoryBudget;
+ }
+
+ public boolean isOffHeapToc()
+ {
+  return offHeapToc;
+ }
+
+ /**
+  * Chooses where the items of the TOC are {@link TocEntries stored}
+  * until the TOC is complete. Keeping them outside of the Java heap
+  * spares the garbage collector when a TOC has millions of items.
+  * The memory they take still counts towards the
+  * {@link #setMemoryBudget(long) memory budget}.
+  * @param offHeapToc whether to store the TOC in direct buffers
+  */
+ public void setOffHeapToc(boolean offHeapToc)
+ {
+  this.offHeapToc = offHeapToc;
+ }
+
+ public boolean isCompactOutput()
+ {
+  return compactOutput;
+ }
+
+ /**
+  * Makes the transformer leave out the markup that it adds to
+  * a document only for the looks or for legacy browsers: the line
+  * breaks after the document type declaration, the TOC placeholder
+  * and each TOC line, and the <code>&lt;a name="..."&gt;</code>
+  * anchors within outline elements, which are reachable by their
+  * <code>id</code> attributes anyway.
+  * @param compactOutput whether to write compact output
+  */
+ public void setCompactOutput(boolean compactOutput)
+ {
+  this.compactOutput = compactOutput;
+ }
+
+ public File getSpillDirectory()
+ {
+  return spillDirectory;
+ }
+
+ /**
+  * Sets the directory for temporary files that hold content over
+  * the {@link #setMemoryBudget(long) memory budget}.
+  * @param spillDirectory the directory or <code>null</code> to use
+  * the system's default location of temporary files
+  */
+ public void setSpillDirectory(File spillDirectory)
+ {
+  this.spillDirectory = spillDirectory;
+ }
+
+ /**
+  * Registers an object to be notified when the content preceding
+  * the TOC placeholder has been written to the output.
+  * @param listener the listener to add
+  */
+ public void addPrefixListener(PrefixListener listener)
+ {
+  prefixListeners.add(listener);
+ }
+
+ public void removePrefixListener(PrefixListener listener)
+ {
+  prefixListeners.remove(listener);
+ }
+
+ /**
+  * Supplies the outline of the next document to be transformed,
+  * found in advance by an {@link OutlineScanner}. The transformer
+  * then writes the complete TOC when it reaches the placeholder and
+  * passes the rest of the document through without buffering it.
+  * Outline elements that do not match the supplied outline cause the
+  * transformation to fail. The outline is discarded after the next
+  * {@link #transform(Source, Result)} call.
+  * @param outline the list of outline elements that follow
+  * the placeholder, in document order
+  */
+ public void setOutline(List<OutlineEntry> outline)
+ {
+  this.outline = outline;
+ }
+
+ /**
+  * Supplies ids that occur in the next document to be transformed,
+  * found in advance by an {@link OutlineScanner}. When ids are
+  * {@link TocPIData#isSlugIds() derived from text}, they are chosen so
+  * as not to collide with the supplied ids. Without them, an id that
+  * occurs after an outline element with the same derived id takes
+  * over that id, and the derived ids are chosen again in document
+  * order, which gives the same ids as when they are supplied, even if
+  * the element has already been spilled to a file due to the
+  * {@link #setMemoryBudget(long) memory budget}. The ids are discarded
+  * after the next {@link #transform(Source, Result)} call.
+  * @param reservedIds the ids to avoid or <code>null</code>
+  */
+ public void setReservedIds(Collection<String> reservedIds)
+ {
+  this.reservedIds = reservedIds;
+ }
+
+ /**
+  * Records the events of the next document to be transformed as they
+  * come out of the {@link #preprocessor() preprocessor}. Later
+  * transformations can replay the recording without parsing the
+  * document again:
+  * <pre>
+  * transformer.transform(new StAXSource(new RecordedEventReader(in)), result);
+  * </pre>
+  * The recorder is flushed, but not closed, after the next
+  * {@link #transform(Source, Result)} call and then discarded.
+  * @param recorder the recorder to write events to
+  */
+ public void setRecorder(EventRecorder recorder)
+ {
+  this.recorder = recorder;
  }
 
  @Override
@@ -91,21 +463,53 @@ public class Transformer extends XMLEventTransformer
  protected XMLEventProcessor processor()
  {
   Indexer indexer = new Indexer();
+  indexer.setXMLEventFactory(eventFactory());
   XMLEventProcessor processor = new ConditionalEventProcessor(indexer, indexer)
   {
    @Override
    public void add(XMLEvent event) throws XMLStreamException
    {
-    // TODO: replace this patch with proper entity handling
-    if (event instanceof EntityReference && "copy".equals(((EntityReference)event).getName()))
-     super.add(getXMLEventFactory().createCharacters("\u00a9"));
-    else
-     super.add(event);
+    if (null != recorder)
+     try
+     {
+      recorder.write(event);
+     }
+     catch (IOException e)
+     {
+      throw new XMLStreamException("Could not record an event", event.getLocation(), e);
+     }
+    try
+    {
+     // TODO: replace this patch with proper entity handling
+     if (event instanceof EntityReference && "copy".equals(((EntityReference)event).getName()))
+      super.add(getXMLEventFactory().createCharacters("\u00a9"));
+     else
+      super.add(event);
+    }
+    catch (IllegalArgumentException error)
+    {
+     // the filter cannot throw checked exceptions, report invalid
+     // instructions at their location as check() does
+     if (!(error.getCause() instanceof TocPIException))
+      throw error;
+     throw new XMLStreamException(error.getLocalizedMessage(), event.getLocation(), error);
+    }
    }
   };
+  processor.setXMLEventFactory(eventFactory());
   return processor;
  }
 
+ /**
+  * Creates the parser that {@link #openFeed(Result) feeds} use.
+  * Override this method to plug in another non-blocking parser.
+  * The default implementation returns a {@link FeedingTokenizer}.
+  */
+ protected XMLEventFeeder newFeeder()
+ {
+  return new FeedingTokenizer(eventFactory());
+ }
+
  protected TocPIParser piParser()
  {
   if (null == piParser)
@@ -113,6 +517,189 @@ public class Transformer extends XMLEventTransformer
   return piParser;
  }
 
+ /**
+  * Returns the event factory shared by all components of this
+  * transformer. The factory is looked up once per transformer
+  * instance and reused for all documents it processes.
+  */
+ protected XMLEventFactory eventFactory()
+ {
+  if (null == eventFactory)
+   eventFactory = XMLEventFactory.newFactory();
+  return eventFactory;
+ }
+
+ protected static XMLInputFactory inputFactory()
+ {
+  synchronized (Transformer.class)
+  {
+   if (null == inputFactory)
+    inputFactory = XMLInputFactory.newFactory();
+   return inputFactory;
+  }
+ }
+
+ /**
+  * Creates a reader of the events of a document to be
+  * {@link #check(Source) checked}. Entity references are not replaced,
+  * as they are not when a document is transformed.
+  */
+ protected static XMLEventReader openReader(Source source)
+   throws XMLStreamException, TransformerException
+ {
+  if (source instanceof StAXSource)
+  {
+   StAXSource stax = (StAXSource)source;
+   return null != stax.getXMLEventReader()
+     ? stax.getXMLEventReader()
+     : sourceFactory().createXMLEventReader(stax.getXMLStreamReader());
+  }
+  else if (source instanceof StreamSource)
+  {
+   StreamSource stream = (StreamSource)source;
+   if (null != stream.getReader())
+    return sourceFactory().createXMLEventReader(stream.getSystemId(), stream.getReader());
+   else if (null != stream.getInputStream())
+    return sourceFactory().createXMLEventReader(stream.getSystemId(), stream.getInputStream());
+  }
+  throw new TransformerException("Unsupported source of a document to check: " + source);
+ }
+
+ protected static XMLInputFactory sourceFactory()
+ {
+  synchronized (Transformer.class)
+  {
+   if (null == sourceFactory)
+   {
+    sourceFactory = XMLInputFactory.newFactory();
+    sourceFactory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.FALSE);
+   }
+   return sourceFactory;
+  }
+ }
+
+ protected static XMLOutputFactory outputFactory()
+ {
+  synchronized (Transformer.class)
+  {
+   if (null == outputFactory)
+    outputFactory = XMLOutputFactory.newFactory();
+   return outputFactory;
+  }
+ }
+
+ /**
+  * Wraps the stream of a result into an {@link OutputChannel}.
+  * @return the channel or <code>null</code> if the result
+  * does not contain a stream
+  */
+ protected OutputChannel openChannel(StreamResult result)
+   throws XMLStreamException
+ {
+  Writer writer = result.getWriter();
+  if (null == writer && null != result.getOutputStream())
+  {
+   String encoding = getOutputProperty(OutputKeys.ENCODING);
+   if (null == encoding)
+    encoding = defaultEncoding();
+   try
+   {
+    writer = new OutputStreamWriter(result.getOutputStream(), encoding);
+   }
+   catch (UnsupportedEncodingException e)
+   {
+    throw new XMLStreamException("Unsupported output encoding: " + encoding, e);
+   }
+  }
+  if (null == writer)
+   return null;
+  return new OutputChannel(writer, outputFactory(), eventFactory());
+ }
+
+ /**
+  * Creates a temporary file that will hold the content following the
+  * TOC until the TOC is complete.
+  */
+ protected Spill openSpill() throws IOException
+ {
+  discardSpill();
+  spill = new Spill(spillDirectory, null == output ? null : output.getEncoder());
+  return spill;
+ }
+
+ protected void discardSpill()
+ {
+  if (null != spill)
+   spill.discard();
+  spill = null;
+ }
+
+ /**
+  * Estimates the number of bytes of memory occupied by an event.
+  */
+ @SuppressWarnings("unchecked")
+ protected static long costOf(XMLEvent event)
+ {
+  long cost = EVENT_COST;
+  switch (event.getEventType())
+  {
+  case START_ELEMENT:
+   StartElement element = (StartElement)event;
+   cost += 2 * element.getName().getLocalPart().length();
+   for (Iterator<Attribute> i = element.getAttributes(); i.hasNext();)
+   {
+    Attribute attr = i.next();
+    cost += ATTRIBUTE_COST
+      + 2 * (attr.getName().getLocalPart().length() + attr.getValue().length());
+   }
+   break;
+  case CHARACTERS:
+  case CDATA:
+  case SPACE:
+   cost += 2 * ((Characters)event).getData().length();
+   break;
+  case COMMENT:
+   cost += 2 * ((Comment)event).getText().length();
+   break;
+  case PROCESSING_INSTRUCTION:
+   ProcessingInstruction pi = (ProcessingInstruction)event;
+   cost += 2 * pi.getTarget().length();
+   if (null != pi.getData())
+    cost += 2 * pi.getData().length();
+   break;
+  }
+  return cost;
+ }
+
+ /**
+  * Discards the state and settings that apply to a single document.
+  */
+ protected void endDocument()
+ {
+  output = null;
+  outline = null;
+  reservedIds = null;
+  recorder = null;
+  feed = null;
+  discardSpill();
+ }
+
+ /**
+  * Sends the output accumulated so far to the result's stream, if any,
+  * and notifies the {@link #addPrefixListener(PrefixListener) listeners}.
+  */
+ protected void commitPrefix() throws XMLStreamException
+ {
+  if (null != output)
+  {
+   probe.flushStarted();
+   output.commit();
+   probe.flushEnded(true);
+  }
+  for (PrefixListener listener : prefixListeners)
+   listener.prefixCommitted(this);
+ }
+
  protected static String describeLocation(Location location)
  {
   String legend = "at offset " + location.getCharacterOffset()
@@ -143,6 +730,137 @@ public class Transformer extends XMLEventTransformer
 
  protected static final QName ID_ATTR_QNAME = new QName("id");
 
+ /**
+  * Transformation of a document that is {@link Transformer#openFeed(Result)
+  * supplied in portions}. Calls to a feed need not come from the same
+  * thread, but must not overlap.
+  */
+ public class Feed
+ {
+  /**
+   * Parses the next portion of the document and writes the output that
+   * it produces. Content that follows the TOC placeholder is held back
+   * until the TOC is complete, as it is by
+   * {@link Transformer#transform(Source, Result)}.
+   * @param input the bytes that follow those added earlier, which are
+   * all consumed by this call
+   * @throws TransformerException if the transformation fails, in which
+   * case the feed is aborted
+   */
+  public void add(ByteBuffer input) throws TransformerException
+  {
+   checkOpen();
+   try
+   {
+    feeder.feed(input);
+    drain();
+   }
+   catch (XMLStreamException e)
+   {
+    abort();
+    throw new TransformerException(e);
+   }
+   catch (RuntimeException e)
+   {
+    abort();
+    throw e;
+   }
+  }
+
+  /**
+   * Completes the transformation once all bytes of the document have
+   * been added.
+   * @throws TransformerException if the document is incomplete or the
+   * transformation fails
+   */
+  public void finish() throws TransformerException
+  {
+   checkOpen();
+   boolean complete = false;
+   try
+   {
+    feeder.endOfInput();
+    drain();
+    if (!feeder.isComplete())
+     throw new XMLStreamException("The parser did not reach the end of the document");
+    probe.flushStarted();
+    writer.flush();
+    if (null != output)
+     output.commit();
+    probe.flushEnded(false);
+    if (null != recorder)
+     recorder.flush();
+    complete = true;
+   }
+   catch (XMLStreamException e)
+   {
+    throw new TransformerException(e);
+   }
+   catch (IOException e)
+   {
+    throw new TransformerException("Could not record the events of the document", e);
+   }
+   finally
+   {
+    end(complete);
+   }
+  }
+
+  /**
+   * Abandons the transformation, freeing the transformer for other
+   * documents. Does nothing if the feed is no longer open.
+   */
+  public void abort()
+  {
+   end(false);
+  }
+
+  public boolean isOpen()
+  {
+   return this == feed;
+  }
+
+  protected void end(boolean complete)
+  {
+   if (!isOpen())
+    return;
+   probe.documentEnded(complete);
+   endDocument();
+  }
+
+  protected Feed(XMLEventWriter writer)
+  {
+   this.writer = writer;
+   this.preprocessor = preprocessor();
+  }
+
+  /**
+   * Passes the events parsed so far through the transformer's processors.
+   */
+  protected void drain() throws XMLStreamException
+  {
+   for (XMLEvent event; null != (event = feeder.nextEvent());)
+   {
+    preprocessor.add(event);
+    while (preprocessor.hasNext())
+    {
+     function.add(preprocessor.next());
+     while (function.hasNext())
+      writer.add(function.next());
+    }
+   }
+  }
+
+  protected void checkOpen()
+  {
+   if (!isOpen())
+    throw new IllegalStateException("The feed has been finished or aborted");
+  }
+
+  private final XMLEventWriter writer;
+  private final XMLEventProcessor preprocessor;
+ }
+
  protected class Preprocessor extends XMLHeaderProcessor
  {
   @Override
@@ -160,17 +878,48 @@ public class Transformer extends XMLEventTransformer
   {
    super.reset();
    state = State.ROOT;
+   discard = false;
+   orphans = 0;
    endContext();
+   int size = deferred.size();
    deferred.clear();
+   if (RETAINED_CAPACITY < size)
+   {
+    deferred.trimToSize();
+    deferred.ensureCapacity(RETAINED_CAPACITY);
+   }
+   deferredCost = 0;
+   discardSpill();
    lastId = 0;
    idBuf.replace(3, 9, "000000");
    piData = null;
+   if (null != formatter)
+    formatter.reset();
    formatter = null;
+   streaming = false;
+   expectedIds = null;
+   outlineIndex = 0;
+   item = null;
+   itemText.setLength(0);
+   usedIds.clear();
+   slugs.clear();
+   slugBases.clear();
+   slugOrder.clear();
+   if (null != reservedIds)
+    for (String id : reservedIds)
+     usedIds.add(id);
   }
 
   @Override
   public void add(XMLEvent event) throws XMLStreamException
   {
+   if (discard)
+   {
+    discard = false;
+    return;
+   }
+   if (0 < orphans && !dropOrphan(event))
+    return;
    if (event instanceof ProcessingInstruction)
    {
     if (null == piData)
@@ -182,11 +931,17 @@ public class Transformer extends XMLEventTransformer
    {
     if (piData.isOpening())
     {
-     formatter = TocFormatter.forPI(piData, event.getLocation());
-     formatter.setXMLEventFactory(getXMLEventFactory());
+     probe.tocOpened();
+     formatter = formatterFor((ProcessingInstruction)event, piData);
+     commitPrefix();
     }
     if (piData.isClosing())
-     super.add(getXMLEventFactory().createCharacters("\n"));
+    {
+     if (!compactOutput)
+      super.add(getXMLEventFactory().createCharacters("\n"));
+     if (null != outline && null != formatter)
+      formatOutline(outline);
+    }
    }
    else if (state == State.INDEXED)
     index(event);
@@ -200,13 +955,23 @@ public class Transformer extends XMLEventTransformer
 
   public boolean accept(XMLEvent event)
   {
+    if ((State.ROOT == state || State.PASSTHROUGH == state) && event instanceof StartElement)
+    {
+     Attribute id = ((StartElement)event).getAttributeByName(ID_ATTR_QNAME);
+     if (null != id)
+      usedIds.add(id.getValue());
+    }
     switch (state)
     {
     case ROOT:
      if (event instanceof ProcessingInstruction
        && !TocPIParser.isIgnoredPI((ProcessingInstruction)event))
-      throw new IllegalStateException("Processing instructions <?" + TocPIParser.PI_TARGET
-        + "?> cannot be placed outside the root element.");
+     {
+      // recover by leaving the instruction as is
+      reportError("Processing instructions <?" + TocPIParser.PI_TARGET
+        + "?> cannot be placed outside the root element.", event);
+      return false;
+     }
      else if (event instanceof StartElement)
       break;
      else
@@ -229,24 +994,36 @@ public class Transformer extends XMLEventTransformer
      if (!(event instanceof ProcessingInstruction))
      {
       trackContext(event);
+      // an element or document that ends within the placeholder ends it
+      if (null == context)
+       state = State.INDEXED;
       break;
      }
      piData = filterPIEvent((ProcessingInstruction)event);
      if (null == piData)
       break;
      if (piData.isOpening())
-      throw new IllegalStateException("Processing instruction <?" + TocPIParser.PI_TARGET
-        + "?> cannot be nested. Nesting instruction began" + describeLocation(origin.getLocation()));
-     else if (!context.isEmpty())
      {
-      StartElement open = context.get(0);
-      throw new IllegalStateException("Unclosed element <" + open.getName() + "> "
-          + describeLocation(open.getLocation())
-          + " within placeholder XML for processing instruction <?" + TocPIParser.PI_TARGET
-          + "?>");
+      // recover by dropping the nested instruction with the placeholder
+      piData = null;
+      discard = true;
+      reportError("Processing instruction <?" + TocPIParser.PI_TARGET
+        + "?> cannot be nested. Nesting instruction began" + describeLocation(origin.getLocation()),
+        event);
      }
      else
      {
+      if (!context.isEmpty())
+      {
+       StartElement open = context.get(0);
+       reportError("Unclosed element <" + open.getName() + "> "
+           + describeLocation(open.getLocation())
+           + " within placeholder XML for processing instruction <?" + TocPIParser.PI_TARGET
+           + "?>", event);
+       // the placeholder is dropped, so must be the end tags of its elements
+       orphans = context.size();
+       orphanDepth = 0;
+      }
       endContext();
       state = State.INDEXED;
      }
@@ -260,6 +1037,28 @@ public class Transformer extends XMLEventTransformer
     return true;
   }
 
+  /**
+   * Returns a formatter configured by a processing instruction.
+   * The formatter created for the last document is reused if that
+   * document contained an identical instruction.
+   */
+  protected TocFormatter formatterFor(ProcessingInstruction pi, TocPIData data)
+    throws XMLStreamException
+  {
+   String key = pi.getData();
+   if (null == cachedFormatter || !key.equals(cachedPI))
+   {
+    cachedFormatter = TocFormatter.forPI(data, pi.getLocation());
+    cachedFormatter.setXMLEventFactory(getXMLEventFactory());
+    cachedPI = key;
+   }
+   else
+    cachedFormatter.reset();
+   cachedFormatter.setOffHeap(offHeapToc);
+   cachedFormatter.setCompact(compactOutput);
+   return cachedFormatter;
+  }
+
   protected void addDTD(StartElement event) throws XMLStreamException
   {
    QName qName = ((StartElement)event).getName();
@@ -272,7 +1071,8 @@ public class Transformer extends XMLEventTransformer
    XMLEventFactory eventFactory = getXMLEventFactory();
    DTD dtdEvent = eventFactory.createDTD("<!DOCTYPE " + name + '>');
    super.add(dtdEvent);
-   super.add(eventFactory.createCharacters("\n"));
+   if (!compactOutput)
+    super.add(eventFactory.createCharacters("\n"));
   }
 
   protected void index(XMLEvent event) throws XMLStreamException
@@ -280,18 +1080,50 @@ public class Transformer extends XMLEventTransformer
    final Location location = event.getLocation();
    try
    {
+    if (event instanceof StartElement && null != formatter && formatter.isSlugIds())
+    {
+     Attribute id = ((StartElement)event).getAttributeByName(ID_ATTR_QNAME);
+     if (null != id)
+      useId(id.getValue());
+    }
     if (event instanceof EndDocument)
     {
      if (null != context)
       trackContext(event);
-     if (null != formatter)
+     if (streaming && expectedIds.length > outlineIndex)
+      throw new IllegalStateException("Document ended before outline element #" + outlineIndex
+        + " found by the outline scanner");
+     if (null != formatter && !streaming)
      {
       formatter.end();
       conveyFormatted();
      }
-     for (XMLEvent resumed : deferred)
-      super.add(resumed);
-     super.add(event);
+     boolean replay = null != spill || !deferred.isEmpty();
+     if (replay)
+      probe.replayStarted();
+     int replayed = deferred.size();
+     if (null != spill)
+     {
+      // end tags of the open elements are in the spill file, the end of
+      // the document must not make the writer repeat them
+      try
+      {
+       spill.finish();
+      }
+      catch (IOException e)
+      {
+       throw new XMLStreamException("Could not write the spill file", location, e);
+      }
+      super.add(spill);
+     }
+     else
+     {
+      for (XMLEvent resumed : deferred)
+       super.add(resumed);
+      super.add(event);
+     }
+     if (replay)
+      probe.replayEnded(replayed, deferredCost, null != spill);
     }
     else if (event instanceof EndElement && null != context && context.isEmpty())
     {
@@ -300,52 +1132,45 @@ public class Transformer extends XMLEventTransformer
       throw new IllegalStateException("Unclosed " + describeEvent(origin) + ' '
           + describeLocation(origin.getLocation()));
      endContext();
-     if (null != formatter)
-     {
+     boolean listed = null == item || resumeItem();
+     if (listed && null != formatter && !streaming)
       formatter.closeItem(event);
-      conveyFormatted();
-     }
-     deferred.add(event);
+     defer(event);
     }
     else if (null == context)
     {
-     String id = null;
-     if (null != formatter && formatter.accept(event))
+     if (null == formatter || !formatter.accept(event)
+       || streaming && skipOutlineEntry((StartElement)event))
+      defer(event);
+     else if (!streaming && formatter.isSelective())
      {
-      event = assignIdToElement((StartElement)event);
-      id = ((StartElement)event).getAttributeByName(ID_ATTR_QNAME).getValue();
+      // the text decides whether the element is listed,
+      // so hold the element until it ends
+      item = new ArrayList<XMLEvent>();
+      item.add(event);
+      itemText.setLength(0);
+      enterContext(event);
      }
-     deferred.add(event);
-     if (null != id)
+     else
      {
-      XMLEventFactory eventFactory = getXMLEventFactory();
-      Set<Attribute> attrs = Collections.singleton(
-	eventFactory.createAttribute("name", id)
-      );
-      deferred.add(eventFactory.createStartElement(
-	DEFAULT_NS_PREFIX,
-	NULL_NS_URI,
-	"a",
-	attrs.iterator(),
-	Collections.EMPTY_SET.iterator()));
-      deferred.add(eventFactory.createCharacters(" "));
-      deferred.add(eventFactory.createEndElement(DEFAULT_NS_PREFIX, NULL_NS_URI, "a"));
-      if (null != formatter)
-      {
-       formatter.openItem(event, id);
-       conveyFormatted();
-      }
+      openItem((StartElement)event, null);
       enterContext(event);
      }
     }
     else // null != context
     {
      trackContext(event);
-     deferred.add(event);
-     if (null != formatter)
+     if (null != item)
      {
-      formatter.addContent(event);
-      conveyFormatted();
+      item.add(event);
+      if (event instanceof Characters && !((Characters)event).isIgnorableWhiteSpace())
+       itemText.append(((Characters)event).getData());
+     }
+     else
+     {
+      defer(event);
+      if (null != formatter && !streaming)
+       formatter.addContent(event);
      }
     }
    }
@@ -355,47 +1180,409 @@ public class Transformer extends XMLEventTransformer
    }
   }
 
+  /**
+   * Assigns an id to an outline element that is listed in the TOC,
+   * inserts an anchor with that id after the element's start tag
+   * unless the output is {@link Transformer#setCompactOutput(boolean) compact},
+   * and opens the element's TOC item.
+   * @param element the start of the outline element
+   * @param text the text of the element if it is known, used to
+   * {@link TocFormatter#isSlugIds() derive the element's id}
+   */
+  protected void openItem(StartElement element, CharSequence text) throws XMLStreamException
+  {
+   boolean generated = null == element.getAttributeByName(ID_ATTR_QNAME);
+   element = assignIdToElement(element, text);
+   String id = element.getAttributeByName(ID_ATTR_QNAME).getValue();
+   if (streaming)
+    checkOutline(element, id);
+   // an id that appears later in the document may take over a slug,
+   // remember where the slug is used while it can still be replaced
+   SlugUse use = null;
+   if (generated && !streaming && formatter.isSlugIds())
+   {
+    use = new SlugUse(IdSet.slug(text), id, formatter.getEntries().size());
+    slugs.put(id, use);
+    List<SlugUse> uses = slugBases.get(use.base);
+    if (null == uses)
+     slugBases.put(use.base, uses = new ArrayList<SlugUse>(1));
+    uses.add(use);
+    slugOrder.add(use);
+   }
+   defer(element);
+   if (null != use && null == spill)
+    use.heading = deferred.size() - 1;
+   else if (null != use)
+    use.headingMark = spill.markLast(ID_ATTR_QNAME.getLocalPart());
+   if (!compactOutput)
+   {
+    defer(anchor(id));
+    if (null != use && null == spill)
+     use.anchor = deferred.size() - 1;
+    else if (null != use)
+     use.anchorMark = spill.markLast("name");
+    defer(getXMLEventFactory().createCharacters(" "));
+    defer(getXMLEventFactory().createEndElement(DEFAULT_NS_PREFIX, NULL_NS_URI, "a"));
+   }
+   if (!streaming)
+    formatter.openItem(element, id);
+  }
+
+  /**
+   * Creates the start of an anchor inserted into an outline element.
+   */
+  @SuppressWarnings("unchecked")
+  protected StartElement anchor(String id)
+  {
+   XMLEventFactory eventFactory = getXMLEventFactory();
+   Set<Attribute> attrs = Collections.singleton(
+     eventFactory.createAttribute("name", id)
+   );
+   return eventFactory.createStartElement(
+     DEFAULT_NS_PREFIX,
+     NULL_NS_URI,
+     "a",
+     attrs.iterator(),
+     Collections.EMPTY_SET.iterator());
+  }
+
+  /**
+   * Records an id found in the document. If the id has been
+   * {@link IdSet#slug(CharSequence) derived} for an earlier outline
+   * element, the ids of the outline elements derived from the same
+   * text are derived again in document order, so that they are the same
+   * as if the id had been {@link Transformer#setReservedIds(Collection) reserved}
+   * in advance.
+   */
+  protected void useId(String id)
+  {
+   if (usedIds.add(id))
+    return;
+   SlugUse owner = slugs.get(id);
+   if (null == owner)
+    return;
+   List<SlugUse> uses = slugBases.get(owner.base);
+   for (SlugUse use : uses)
+   {
+    slugs.remove(use.id);
+    if (owner != use)
+     usedIds.remove(use.id);
+   }
+   for (SlugUse use : uses)
+   {
+    String replacement = usedIds.addUnique(use.base);
+    if (!replacement.equals(use.id))
+     rename(use, replacement);
+    slugs.put(replacement, use);
+   }
+  }
+
+  /**
+   * Replaces the id of an outline element in its start tag, anchor
+   * and TOC item, wherever they are held.
+   */
+  protected void rename(SlugUse use, String id)
+  {
+   if (null != use.headingMark)
+    use.headingMark.replace(id);
+   else
+    deferred.set(use.heading, replaceId((StartElement)deferred.get(use.heading), id));
+   if (null != use.anchorMark)
+    use.anchorMark.replace(id);
+   else if (0 <= use.anchor)
+    deferred.set(use.anchor, anchor(id));
+   formatter.getEntries().setId(use.entry, id);
+   use.id = id;
+  }
+
+  /**
+   * Passes along the events of an outline element held until its end
+   * while the formatter is {@link TocFormatter#isSelective() selective}.
+   * @return whether the element has been listed in the TOC
+   */
+  protected boolean resumeItem() throws XMLStreamException
+  {
+   List<XMLEvent> held = item;
+   item = null;
+   boolean listed = formatter.admit(itemText);
+   if (listed)
+    openItem((StartElement)held.get(0), itemText);
+   else
+    defer(held.get(0));
+   itemText.setLength(0);
+   for (int i = 1; held.size() > i; i++)
+   {
+    XMLEvent event = held.get(i);
+    defer(event);
+    if (listed)
+     formatter.addContent(event);
+   }
+   return listed;
+  }
+
+  /**
+   * Holds an event that follows the TOC until the TOC is complete.
+   * Once the TOC has been {@link #formatOutline(List) formatted} in
+   * advance, the event is passed along without delay.
+   */
+  protected void defer(XMLEvent event) throws XMLStreamException
+  {
+   if (streaming)
+    super.add(event);
+   else if (null != spill)
+   {
+    if (0 < memoryBudget && memoryBudget < tocCost())
+     throw budgetExceeded("The TOC exceeds the memory budget of " + memoryBudget + " bytes",
+       event.getLocation());
+    try
+    {
+     spill.write(event);
+    }
+    catch (IOException e)
+    {
+     throw new XMLStreamException("Could not write the spill file", event.getLocation(), e);
+    }
+   }
+   else
+   {
+    deferred.add(event);
+    deferredCost += costOf(event);
+    if (0 < memoryBudget && memoryBudget < deferredCost + tocCost())
+     spill(event.getLocation());
+   }
+  }
+
+  /**
+   * Moves the deferred events to a {@link Spill spill file} and
+   * sends subsequent events there, or fails if the output cannot
+   * accept a spill file.
+   */
+  protected void spill(Location location) throws XMLStreamException
+  {
+   if (null == output)
+    throw budgetExceeded("Content following the TOC exceeds the memory budget of "
+      + memoryBudget + " bytes and the result cannot accept a spill file", location);
+   try
+   {
+    Spill spill = openSpill();
+    // slugs are held in document order, mark them as their events are written
+    Iterator<SlugUse> uses = slugOrder.iterator();
+    SlugUse use = uses.hasNext() ? uses.next() : null;
+    for (int i = 0; deferred.size() > i; i++)
+    {
+     spill.write(deferred.get(i));
+     if (null == use)
+      continue;
+     if (use.heading == i)
+      use.headingMark = spill.markLast(ID_ATTR_QNAME.getLocalPart());
+     else if (use.anchor == i)
+      use.anchorMark = spill.markLast("name");
+     if (Math.max(use.heading, use.anchor) == i)
+     {
+      use.heading = use.anchor = -1;
+      use = uses.hasNext() ? uses.next() : null;
+     }
+    }
+   }
+   catch (IOException e)
+   {
+    MemoryBudgetException error = budgetExceeded("Content following the TOC exceeds the memory budget of "
+      + memoryBudget + " bytes and could not be spilled to a file", location);
+    error.initCause(e);
+    throw error;
+   }
+   deferred.clear();
+   deferred.trimToSize();
+   deferredCost = 0;
+  }
+
+  protected long tocCost()
+  {
+   return null == formatter ? 0 : formatter.getEntries().getFootprint();
+  }
+
+  protected MemoryBudgetException budgetExceeded(String message, Location location)
+  {
+   return null == location
+     ? new MemoryBudgetException(message)
+     : new MemoryBudgetException(message, location);
+  }
+
+  /**
+   * Formats the entire TOC from an outline found in advance and
+   * switches the indexer to streaming mode. In that mode, outline
+   * elements of the document are assigned ids, but the events that
+   * follow the TOC are no longer deferred.
+   * @param outline the outline elements that follow the placeholder
+   */
+  protected void formatOutline(List<OutlineEntry> outline) throws XMLStreamException
+  {
+   XMLEventFactory eventFactory = getXMLEventFactory();
+   expectedIds = new String[outline.size()];
+   int generated = 0, count = 0;
+   if (formatter.isSlugIds())
+    for (OutlineEntry entry : outline)
+     if (null != entry.getId())
+      usedIds.add(entry.getId());
+   for (OutlineEntry entry : outline)
+   {
+    XMLEvent start = eventFactory.createStartElement(DEFAULT_NS_PREFIX, NULL_NS_URI, entry.getElement());
+    if (!formatter.accept(start))
+     continue;
+    // entries left out of the TOC keep their place, but have no ids
+    if (!formatter.admit(entry.getText()))
+    {
+     count++;
+     continue;
+    }
+    String id = entry.getId();
+    if (null != id)
+     ;
+    else if (formatter.isSlugIds())
+     id = usedIds.addUnique(IdSet.slug(entry.getText()));
+    else
+     id = formatId(++generated);
+    expectedIds[count++] = id;
+    formatter.openItem(start, id);
+    if (0 < entry.getText().length())
+     formatter.addContent(eventFactory.createCharacters(entry.getText()));
+    formatter.closeItem(eventFactory.createEndElement(DEFAULT_NS_PREFIX, NULL_NS_URI, entry.getElement()));
+   }
+   if (expectedIds.length > count)
+    expectedIds = Arrays.copyOf(expectedIds, count);
+   formatter.end();
+   conveyFormatted();
+   streaming = true;
+  }
+
+  /**
+   * Tells whether an outline element has been left out of the outline
+   * {@link #formatOutline(List) formatted in advance}, and moves past
+   * it if so.
+   */
+  protected boolean skipOutlineEntry(StartElement element)
+  {
+   if (expectedIds.length <= outlineIndex)
+    throw new IllegalStateException(describeEvent(element)
+      + " was not found by the outline scanner");
+   if (null != expectedIds[outlineIndex])
+    return false;
+   outlineIndex++;
+   return true;
+  }
+
+  /**
+   * Makes sure that an outline element matches the outline
+   * {@link #formatOutline(List) formatted in advance}.
+   */
+  protected void checkOutline(StartElement element, String id)
+  {
+   if (expectedIds.length <= outlineIndex)
+    throw new IllegalStateException(describeEvent(element)
+      + " was not found by the outline scanner");
+   String expected = expectedIds[outlineIndex];
+   if (!expected.equals(id))
+    throw new IllegalStateException(describeEvent(element) + " with id \"" + id
+      + "\" does not match outline element #" + outlineIndex + " with id \"" + expected
+      + "\" found by the outline scanner");
+   outlineIndex++;
+  }
+
+  /**
+   * Sends the TOC {@link TocFormatter#detach() rendered} by the formatter
+   * down the pipeline. When the output goes to an {@link OutputChannel},
+   * the TOC is sent as a single {@link MarkupEvent} that renders the
+   * markup straight into the stream. Otherwise, the markup is parsed back
+   * into events. This method must be called once the TOC is
+   * {@link TocFormatter#end() complete}.
+   */
   protected void conveyFormatted() throws XMLStreamException
   {
-   while (formatter.hasNext())
+   TocEntries entries = formatter.getEntries();
+   int items = entries.size();
+   long footprint = entries.getFootprint();
+   MarkupEvent toc = formatter.detach();
+   if (null == toc)
+    ;
+   else if (null != output)
+    super.add(toc);
+   else
    {
-    XMLEvent inter = formatter.next();
-    super.add(inter);
+    XMLEventReader reader = inputFactory().createXMLEventReader(
+      new StringReader("<toc>" + toc.getMarkup() + "</toc>"));
+    try
+    {
+     for (int depth = 0; reader.hasNext();)
+     {
+      XMLEvent event = reader.nextEvent();
+      if (event.isStartElement() && 0 == depth++
+        || event.isEndElement() && 0 == --depth
+        || event.isStartDocument() || event.isEndDocument())
+       continue;
+      super.add(event);
+     }
+    }
+    finally
+    {
+     reader.close();
+    }
    }
+   probe.tocClosed(items, footprint, entries.isOffHeap(), null != expectedIds);
+  }
+
+  /**
+   * Adds an id to an outline element that does not have one.
+   * @param element the start of the outline element
+   * @param text the text of the element, used when ids are
+   * {@link TocFormatter#isSlugIds() derived from text}
+   */
+  protected StartElement assignIdToElement(StartElement element, CharSequence text)
+  {
+   if (null != element.getAttributeByName(ID_ATTR_QNAME))
+    return element;
+   String id;
+   if (null == formatter || !formatter.isSlugIds())
+    id = formatId(++lastId);
+   else if (streaming)
+    id = expectedIds[outlineIndex];
+   else
+    id = usedIds.addUnique(IdSet.slug(text));
+   return replaceId(element, id);
   }
 
+  /**
+   * Sets the id attribute of an element, replacing its current id if any.
+   */
   @SuppressWarnings("unchecked")
-  protected StartElement assignIdToElement(StartElement element)
+  protected StartElement replaceId(StartElement element, String id)
   {
    List<Attribute> attrs = new ArrayList<Attribute>();
-   Attribute idAttr = null;
    for (Iterator<Attribute> i = element.getAttributes(); i.hasNext();)
    {
     Attribute attr = i.next();
-    if (ID_ATTR_QNAME.equals(attr.getName()))
-     idAttr = attr;
-    attrs.add(attr);
-   }
-   if (null == idAttr)
-   {
-    String id = Integer.toString(++lastId);
-    int len = id.length();
-    if (6 < len)
-     throw new IndexOutOfBoundsException("Too many TOC entries: " + id + ", cannot allocate an id");
-    id = idBuf.replace(9 - len, 9, id).toString();
-    XMLEventFactory eventFactory = getXMLEventFactory();
-    idAttr = eventFactory.createAttribute(ID_ATTR_QNAME, id);
-    attrs.add(idAttr);
-    eventFactory.setLocation(element.getLocation());
-    element = eventFactory.createStartElement(
-     element.getName(),
-     attrs.iterator(),
-     element.getNamespaces());
-    eventFactory.setLocation(null);
+    if (!ID_ATTR_QNAME.equals(attr.getName()))
+     attrs.add(attr);
    }
+   XMLEventFactory eventFactory = getXMLEventFactory();
+   attrs.add(eventFactory.createAttribute(ID_ATTR_QNAME, id));
+   eventFactory.setLocation(element.getLocation());
+   element = eventFactory.createStartElement(
+    element.getName(),
+    attrs.iterator(),
+    element.getNamespaces());
+   eventFactory.setLocation(null);
    return element;
   }
 
+  protected String formatId(int number)
+  {
+   String id = Integer.toString(number);
+   int len = id.length();
+   if (6 < len)
+    throw new IndexOutOfBoundsException("Too many TOC entries: " + id + ", cannot allocate an id");
+   return idBuf.replace(3, 9 - len, "000000".substring(len)).replace(9 - len, 9, id).toString();
+  }
+
   // TODO: extract element context tracking into a (library) event processor class
   protected void enterContext(XMLEvent event)
   {
@@ -422,21 +1609,100 @@ public class Transformer extends XMLEventTransformer
      StartElement open = context.remove(0);
      EndElement close = event instanceof EndElement ? (EndElement)event : null;
      if (null == close || !open.getName().equals(close.getName()))
-      throw new IllegalStateException("Unclosed " + describeEvent(open) + ' '
-	      + describeLocation(open.getLocation()));
+     {
+      reportError("Unclosed " + describeEvent(open) + ' '
+	      + describeLocation(open.getLocation()), event);
+      if (null == close)
+       endContext();
+     }
     }
     else
-     throw new IllegalStateException("Unclosed " + describeEvent(origin) + ' '
-       + describeLocation(origin.getLocation()));
+    {
+     // recover by ending the context with its enclosing element
+     reportError("Unclosed " + describeEvent(origin) + ' '
+       + describeLocation(origin.getLocation()), event);
+     endContext();
+    }
     break;
    case PROCESSING_INSTRUCTION:
     if (!TocPIParser.isIgnoredPI((ProcessingInstruction)event))
-     throw new IllegalStateException("Processing instructions <?" + TocPIParser.PI_TARGET
-       + "?> are not allowed within the context of " + describeEvent(origin));
+     reportError("Processing instructions <?" + TocPIParser.PI_TARGET
+       + "?> are not allowed within the context of " + describeEvent(origin), event);
     break;
    }
   }
 
+  /**
+   * Passes an event of a document that is being
+   * {@link Transformer#check(Source) checked} through the state
+   * machine of this indexer, and validates the settings of an opening
+   * processing instruction.
+   */
+  protected void check(XMLEvent event) throws XMLStreamException
+  {
+   try
+   {
+    if (!accept(event))
+     ;
+    else if (State.ROOT == state)
+     // the root element has been accepted
+     state = State.PASSTHROUGH;
+    else if (event instanceof ProcessingInstruction && null != piData && piData.isOpening())
+     TocFormatter.forPI(piData, event.getLocation());
+   }
+   catch (IllegalArgumentException error)
+   {
+    throw new XMLStreamException(error.getLocalizedMessage(), event.getLocation(), error);
+   }
+  }
+
+  /**
+   * Skips the end tags of elements left open in a placeholder.
+   * @return whether the event should be processed
+   */
+  protected boolean dropOrphan(XMLEvent event)
+  {
+   if (event.isStartElement())
+    orphanDepth++;
+   else if (!event.isEndElement())
+    ;
+   else if (0 < orphanDepth)
+    orphanDepth--;
+   else
+   {
+    orphans--;
+    return false;
+   }
+   return true;
+  }
+
+  /**
+   * Reports an error that the indexer can recover from to the
+   * transformer's {@link Transformer#getErrorListener() error listener}.
+   * Processing continues if the listener returns normally.
+   * @param message the description of the error
+   * @param event the event that caused the error
+   * @throws IllegalStateException if the transformer has no error
+   * listener, or the listener throws an exception
+   */
+  protected void reportError(String message, XMLEvent event)
+  {
+   ErrorListener listener = getErrorListener();
+   Location location = event.getLocation();
+   if (null != listener)
+    try
+    {
+     listener.error(new TransformerException(message, null == location ? null : new EventLocator(location),
+       new XMLStreamException(message, location)));
+     return;
+    }
+    catch (TransformerException fatal)
+    {
+     throw new IllegalStateException(message, fatal);
+    }
+   throw new IllegalStateException(message);
+  }
+
   protected void endContext()
   {
    context = null;
@@ -446,11 +1712,15 @@ public class Transformer extends XMLEventTransformer
   protected TocPIData parsePIEvent(ProcessingInstruction event)
     throws XMLStreamException
   {
+   probe.piParseStarted();
    try
    {
-    return piParser().parse(event);
+    TocPIData data = piParser().parse(event);
+    probe.piParseEnded(null == event.getData() ? 0 : event.getData().length(),
+      null != data && data.isOpening(), null != data && data.isClosing());
+    return data;
    }
-   catch (JAXBException pierr)
+   catch (TocPIException pierr)
    {
     throw new XMLStreamException("Error parsing " + describeEvent(event),
       event.getLocation(), pierr);
@@ -463,20 +1733,319 @@ public class Transformer extends XMLEventTransformer
    {
     return piParser().parse(event);
    }
-   catch (JAXBException pierr)
+   catch (TocPIException pierr)
    {
     throw new IllegalArgumentException("Error parsing " + describeEvent(event), pierr);
    }
   }
 
   private State state = State.ROOT;
+  private boolean discard;
+  private int orphans, orphanDepth;
   private List<StartElement> context;
   private XMLEvent origin;
-  private List<XMLEvent> deferred = new ArrayList<XMLEvent>();
+  private ArrayList<XMLEvent> deferred = new ArrayList<XMLEvent>();
+  private long deferredCost;
   private StringBuilder idBuf = new StringBuilder("toc000000");
   private int lastId = 0;
   private TocFormatter formatter;
+  private TocFormatter cachedFormatter;
+  private String cachedPI;
   private TocPIData piData;
+  private boolean streaming;
+  private String[] expectedIds;
+  private int outlineIndex;
+  private List<XMLEvent> item;
+  private StringBuilder itemText = new StringBuilder();
+  private IdSet usedIds = new IdSet();
+  private Map<String, SlugUse> slugs = new HashMap<String, SlugUse>();
+  private Map<String, List<SlugUse>> slugBases = new HashMap<String, List<SlugUse>>();
+  private List<SlugUse> slugOrder = new ArrayList<SlugUse>();
+ }
+
+ /**
+  * Number of slots retained in the deferred event buffer between
+  * documents. Larger buffers are trimmed when an indexer is reset.
+  */
+ protected static final int RETAINED_CAPACITY = 8192;
+
+ /**
+  * Estimated memory footprint of an event, not including its
+  * character content and attributes.
+  */
+ protected static final long EVENT_COST = 64;
+
+ /**
+  * Estimated memory footprint of an attribute, not including
+  * its name and value.
+  */
+ protected static final long ATTRIBUTE_COST = 48;
+
+ /**
+  * Places where an id {@link IdSet#slug(CharSequence) derived} for
+  * an outline element is used while the content following the TOC
+  * is being deferred or spilled.
+  */
+ protected static class SlugUse
+ {
+  public SlugUse(String base, String id, int entry)
+  {
+   this.base = base;
+   this.id = id;
+   this.entry = entry;
+  }
+
+  /**
+   * The id derived from the element's text before resolving collisions.
+   */
+  protected final String base;
+  /**
+   * The id currently assigned to the element.
+   */
+  protected String id;
+  /**
+   * Positions of the element's start and its anchor in the list
+   * of deferred events, <code>-1</code> if the element has no anchor
+   * or its events have been spilled.
+   */
+  protected int heading = -1, anchor = -1;
+  /**
+   * Values of the element's id and its anchor's name in the
+   * {@link Spill spill file}, <code>null</code> until spilled.
+   */
+  protected Spill.Mark headingMark, anchorMark;
+  /**
+   * Index of the element's item in the {@link TocEntries store} of the TOC.
+   */
+  protected final int entry;
+ }
+
+ /**
+  * Reports the {@link Location} of an event as the
+  * {@link SourceLocator locator} of a {@link TransformerException}.
+  */
+ protected static class EventLocator implements SourceLocator
+ {
+  public EventLocator(Location location)
+  {
+   this.location = location;
+  }
+
+  public Location getLocation()
+  {
+   return location;
+  }
+
+  public String getPublicId()
+  {
+   return location.getPublicId();
+  }
+
+  public String getSystemId()
+  {
+   return location.getSystemId();
+  }
+
+  public int getLineNumber()
+  {
+   return location.getLineNumber();
+  }
+
+  public int getColumnNumber()
+  {
+   return location.getColumnNumber();
+  }
+
+  private final Location location;
+ }
+
+ /**
+  * Temporary file that holds serialized content following the TOC
+  * while the document is being indexed. The content is escaped for
+  * the encoding of the output as it is written to the file, as the
+  * {@link OutputChannel output channel} would escape the events.
+  * Once complete, the file is sent to the channel as a
+  * {@link MarkupEvent markup event} and copied to the output as is.
+  */
+ protected static class Spill extends MarkupEvent
+ {
+  /**
+   * @param directory the directory to create the file in or
+   * <code>null</code> to use the default temporary directory
+   * @param encoder the encoder of the output or <code>null</code>
+   * if all characters can be written as they are
+   */
+  public Spill(File directory, CharsetEncoder encoder) throws IOException
+  {
+   this.encoder = encoder;
+   file = File.createTempFile("htmltoc", ".spill", directory);
+   try
+   {
+    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), SPILL_CHARSET));
+   }
+   catch (IOException e)
+   {
+    file.delete();
+    throw e;
+   }
+  }
+
+  public void write(XMLEvent event) throws IOException
+  {
+   buffer.setLength(0);
+   Markup.appendEvent(buffer, event, encoder);
+   out.append(buffer);
+   length += buffer.length();
+  }
+
+  /**
+   * Marks the value of an attribute of the start tag {@link #write(XMLEvent)
+   * written} last, so that the value can be {@link Mark#replace(String)
+   * replaced} until the file is copied.
+   * @param attribute the name of the attribute
+   * @return the mark of the attribute's value
+   */
+  public Mark markLast(String attribute)
+  {
+   // quotes within attribute values are escaped, so the name cannot occur there
+   String prefix = ' ' + attribute + "=\"";
+   int at = buffer.indexOf(prefix);
+   if (0 > at)
+    throw new IllegalStateException("The last event written to the spill file has no attribute " + attribute);
+   int from = at + prefix.length();
+   Mark mark = new Mark(length - buffer.length() + from, buffer.indexOf("\"", from) - from);
+   marks.add(mark);
+   return mark;
+  }
+
+  /**
+   * Completes the file. Nothing can be {@link #write(XMLEvent) written}
+   * to it afterwards.
+   */
+  public void finish() throws IOException
+  {
+   out.close();
+  }
+
+  /**
+   * Closes and deletes the file.
+   */
+  public void discard()
+  {
+   try
+   {
+    out.close();
+   }
+   catch (IOException ignored)
+   {
+   }
+   file.delete();
+  }
+
+  /**
+   * Copies the file to a stream, replacing the values of
+   * {@link #markLast(String) marked} attributes. The content has been
+   * escaped when it was written to the file, so the encoder is not used.
+   */
+  @Override
+  public void writeTo(Writer target, CharsetEncoder encoder) throws IOException
+  {
+   Reader in = new InputStreamReader(new FileInputStream(file), SPILL_CHARSET);
+   try
+   {
+    char[] chunk = new char[8192];
+    long position = 0;
+    for (Mark mark : marks)
+     if (null != mark.replacement)
+     {
+      copy(in, target, chunk, mark.offset - position);
+      target.write(mark.replacement);
+      for (long n = mark.length; 0 < n;)
+      {
+       long skipped = in.skip(n);
+       if (0 >= skipped)
+        throw new EOFException("Spill file " + file + " ended before a marked attribute");
+       n -= skipped;
+      }
+      position = mark.offset + mark.length;
+     }
+    copy(in, target, chunk, Long.MAX_VALUE);
+   }
+   finally
+   {
+    in.close();
+   }
+  }
+
+  /**
+   * Reads the entire file into memory. Use
+   * {@link #writeTo(Writer, CharsetEncoder)} to copy the file instead.
+   */
+  @Override
+  public String getMarkup()
+  {
+   StringWriter data = new StringWriter();
+   try
+   {
+    writeTo(data, null);
+   }
+   catch (IOException e)
+   {
+    throw new IllegalStateException("Could not read spill file " + file, e);
+   }
+   return data.toString();
+  }
+
+  /**
+   * Value of an attribute in the file that can be replaced until the
+   * file is copied.
+   */
+  public class Mark
+  {
+   /**
+    * Replaces the value with another one, which is escaped as the
+    * content of the file is.
+    */
+   public void replace(String value)
+   {
+    StringBuilder escaped = new StringBuilder(value.length());
+    Markup.appendAttributeValue(escaped, value, encoder);
+    replacement = escaped.toString();
+   }
+
+   protected Mark(long offset, int length)
+   {
+    this.offset = offset;
+    this.length = length;
+   }
+
+   /**
+    * Position and length of the escaped value in the file, in characters.
+    */
+   protected final long offset;
+   protected final int length;
+   protected String replacement;
+  }
+
+  /**
+   * Copies up to a number of characters from a reader to a writer.
+   */
+  protected static void copy(Reader in, Writer out, char[] chunk, long count) throws IOException
+  {
+   for (int n; 0 < count && 0 < (n = in.read(chunk, 0, (int)Math.min(chunk.length, count)));)
+   {
+    out.write(chunk, 0, n);
+    count -= n;
+   }
+  }
+
+  private static final Charset SPILL_CHARSET = Charset.forName("UTF-8");
+  private final CharsetEncoder encoder;
+  private final List<Mark> marks = new ArrayList<Mark>();
+  private long length;
+  private File file;
+  private Writer out;
+  private StringBuilder buffer = new StringBuilder();
  }
 
  protected enum State
@@ -487,5 +2056,23 @@ public class Transformer extends XMLEventTransformer
   INDEXED;
  }
 
+ private static XMLInputFactory inputFactory;
+ private static XMLInputFactory sourceFactory;
+ private static XMLOutputFactory outputFactory;
+ private XMLEventProcessor function;
  private TocPIParser piParser;
+ private XMLEventFactory eventFactory;
+ private OutputChannel output;
+ private long memoryBudget;
+ private boolean offHeapToc;
+ private boolean compactOutput;
+ private File spillDirectory;
+ private Spill spill;
+ private EventRecorder recorder;
+ private XMLEventFeeder feeder;
+ private Feed feed;
+ private TransformerProbe probe;
+ private Collection<String> reservedIds;
+ private List<OutlineEntry> outline;
+ private List<PrefixListener> prefixListeners = new CopyOnWriteArrayList<PrefixListener>();
 }
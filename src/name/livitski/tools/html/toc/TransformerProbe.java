@@ -0,0 +1,198 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Receives notifications about the phases of a {@link Transformer
+ * transformer's} work, so that the time spent in each phase can be
+ * measured. Each phase is reported by a pair of calls, the second of
+ * which carries the sizes and counts the phase has dealt with. The
+ * methods of this class do nothing. A transformer obtains its probe from
+ * {@link #newProbe()}, which returns an instance of
+ * {@link #RECORDER_CLASS}, when available, to emit the phases as
+ * JDK Flight Recorder events.
+ * <p>
+ * A probe is used by one transformer and receives calls from one
+ * thread at a time. Calls that end a phase may come without the call
+ * that began it, e.g. when a transformation fails before that phase.
+ * </p>
+ */
+public class TransformerProbe
+{
+ /**
+  * Name of the probe class that emits JDK Flight Recorder events.
+  * That class is compiled only when HTMLtoc is built with Java 11
+  * or newer.
+  */
+ public static final String RECORDER_CLASS = "name.livitski.tools.html.toc.FlightRecorderProbe";
+
+ /**
+  * Creates a probe for a new transformer.
+  * @return an instance of {@link #RECORDER_CLASS}, or a probe that
+  * does nothing if that class or the Flight Recorder is not available
+  */
+ public static TransformerProbe newProbe()
+ {
+  Class<? extends TransformerProbe> type = recorderClass();
+  if (null != type)
+   try
+   {
+    return type.getDeclaredConstructor().newInstance();
+   }
+   catch (Exception e)
+   {
+    throw new IllegalStateException("Could not create an instance of " + RECORDER_CLASS, e);
+   }
+  return NONE;
+ }
+
+ /**
+  * Called when a transformer begins a document.
+  * @param systemId the system id of the document or <code>null</code>
+  * if it is unknown
+  * @param fed whether the document is {@link Transformer#openFeed(javax.xml.transform.Result)
+  * supplied in portions}
+  */
+ public void documentStarted(String systemId, boolean fed)
+ {
+ }
+
+ /**
+  * Called when a transformer is done with a document.
+  * @param complete whether the document has been transformed,
+  * <code>false</code> if the transformation failed or was aborted
+  */
+ public void documentEnded(boolean complete)
+ {
+ }
+
+ /**
+  * Called before a TOC processing instruction is parsed.
+  */
+ public void piParseStarted()
+ {
+ }
+
+ /**
+  * Called after a TOC processing instruction has been parsed.
+  * @param length the length of the instruction's data
+  * @param opening whether the instruction opens the placeholder
+  * @param closing whether the instruction closes the placeholder
+  */
+ public void piParseEnded(int length, boolean opening, boolean closing)
+ {
+ }
+
+ /**
+  * Called when the opening processing instruction of a TOC
+  * placeholder has been found.
+  */
+ public void tocOpened()
+ {
+ }
+
+ /**
+  * Called when a TOC has been formatted and added to the output.
+  * @param items the number of items in the TOC
+  * @param footprint the memory held by the items in bytes
+  * @param offHeap whether the items have been held outside of the Java heap
+  * @param streaming whether the TOC was formatted from an outline found
+  * in advance, rather than from the events that followed it
+  */
+ public void tocClosed(int items, long footprint, boolean offHeap, boolean streaming)
+ {
+ }
+
+ /**
+  * Called before the content that followed a TOC is written out.
+  */
+ public void replayStarted()
+ {
+ }
+
+ /**
+  * Called after the content that followed a TOC has been written out.
+  * @param events the number of events held in memory
+  * @param cost the estimated memory held by those events in bytes
+  * @param spilled whether the content was read back from a spill file
+  */
+ public void replayEnded(int events, long cost, boolean spilled)
+ {
+ }
+
+ /**
+  * Called before the output written so far is flushed to the result's stream.
+  */
+ public void flushStarted()
+ {
+ }
+
+ /**
+  * Called after the output has been flushed to the result's stream.
+  * @param prefix whether the output precedes the TOC placeholder,
+  * <code>false</code> if it is the end of the document
+  */
+ public void flushEnded(boolean prefix)
+ {
+ }
+
+ @SuppressWarnings("unchecked")
+ private static synchronized Class<? extends TransformerProbe> recorderClass()
+ {
+  if (!recorderLoaded)
+  {
+   recorderLoaded = true;
+   try
+   {
+    // the recorder loads on runtimes without the jdk.jfr module,
+    // but would fail once it emits an event
+    Class.forName(JFR_EVENT_CLASS);
+    recorder = (Class<? extends TransformerProbe>)Class.forName(RECORDER_CLASS);
+    recorder.getDeclaredConstructor().newInstance();
+   }
+   catch (ClassNotFoundException unsupported)
+   {
+    recorder = null;
+   }
+   catch (LinkageError unsupported)
+   {
+    recorder = null;
+   }
+   catch (InvocationTargetException e)
+   {
+    if (!(e.getCause() instanceof LinkageError))
+     throw new IllegalStateException("Could not create an instance of " + RECORDER_CLASS, e.getCause());
+    recorder = null;
+   }
+   catch (Exception e)
+   {
+    throw new IllegalStateException("Could not create an instance of " + RECORDER_CLASS, e);
+   }
+  }
+  return recorder;
+ }
+
+ private static final String JFR_EVENT_CLASS = "jdk.jfr.Event";
+ private static final TransformerProbe NONE = new TransformerProbe();
+
+ private static boolean recorderLoaded;
+ private static Class<? extends TransformerProbe> recorder;
+}
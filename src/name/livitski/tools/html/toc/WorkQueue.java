@@ -0,0 +1,394 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Queue of files to process shared by several processes on the same
+ * host through a directory. Each file added to the queue becomes an
+ * entry in the <code>pending</code> subdirectory. A process claims an
+ * entry by renaming it into the <code>claimed</code> subdirectory,
+ * which succeeds for one process only, and keeps the claim alive by
+ * {@link Claim#touch() touching} it while the file is processed.
+ * Once done, the process records the outcome in the <code>done</code>
+ * subdirectory and drops its claim. Claims that have not been touched
+ * for a while are left by processes that crashed, and can be
+ * {@link #reclaim(long) returned} to the <code>pending</code> subdirectory.
+ * <p>
+ * Entries are named after the time they were added, so that files are
+ * claimed roughly in the order they were added. The queue relies on
+ * renaming files within a file system being atomic, and does not
+ * lock any files.
+ * </p>
+ */
+public class WorkQueue
+{
+ /**
+  * Opens a queue, creating its directories if necessary.
+  * @param directory the directory shared by the processes
+  * @throws IOException if the directories cannot be created
+  */
+ public WorkQueue(File directory) throws IOException
+ {
+  this.directory = directory;
+  pending = mkdir(PENDING_DIR);
+  claimed = mkdir(CLAIMED_DIR);
+  done = mkdir(DONE_DIR);
+  owner = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^\\w.@-]", "_");
+ }
+
+ public File getDirectory()
+ {
+  return directory;
+ }
+
+ /**
+  * Returns the name that identifies this process in the claims
+  * and records it makes.
+  */
+ public String getOwner()
+ {
+  return owner;
+ }
+
+ /**
+  * Adds files to the queue.
+  * @return the names of the new entries, in the order of the files
+  */
+ public List<String> add(List<File> files) throws IOException
+ {
+  String batch = String.format("%013d.%s.", System.currentTimeMillis(), owner);
+  List<String> entries = new ArrayList<String>(files.size());
+  for (int i = 0; files.size() > i; i++)
+  {
+   String entry = batch + String.format("%06d", i);
+   File temp = new File(pending, TEMP_PREFIX + entry);
+   write(temp, files.get(i).getAbsolutePath());
+   rename(temp, new File(pending, entry));
+   entries.add(entry);
+  }
+  return entries;
+ }
+
+ /**
+  * Claims an entry added to the queue.
+  * @return the claim or <code>null</code> if there are no unclaimed
+  * entries left
+  */
+ public Claim claim() throws IOException
+ {
+  for (;;)
+  {
+   if (null == backlog || backlog.isEmpty())
+   {
+    backlog = list(pending);
+    Collections.reverse(backlog);
+    if (backlog.isEmpty())
+     return null;
+   }
+   String entry = backlog.remove(backlog.size() - 1);
+   File from = new File(pending, entry);
+   File to = new File(claimed, entry + OWNER_SEPARATOR + owner);
+   // a claim must not look stale as soon as it is made
+   if (!from.setLastModified(System.currentTimeMillis()) || !from.renameTo(to))
+    continue; // claimed by another process
+   String file;
+   try
+   {
+    file = read(to);
+   }
+   catch (IOException e)
+   {
+    to.delete();
+    throw e;
+   }
+   return new Claim(entry, new File(file), to);
+  }
+ }
+
+ /**
+  * Returns the entries claimed by processes that stopped touching
+  * their claims to the queue.
+  * @param timeout the time in milliseconds after which a claim
+  * is considered abandoned
+  * @return the number of entries returned to the queue
+  */
+ public int reclaim(long timeout)
+ {
+  int count = 0;
+  long now = System.currentTimeMillis();
+  for (String name : list(claimed))
+  {
+   File claim = new File(claimed, name);
+   long touched = claim.lastModified();
+   int split = name.indexOf(OWNER_SEPARATOR);
+   if (0 == touched || now - touched < timeout || 0 > split)
+    continue;
+   if (claim.renameTo(new File(pending, name.substring(0, split))))
+    count++;
+  }
+  return count;
+ }
+
+ /**
+  * Tells whether any entries are claimed by a process.
+  */
+ public boolean hasClaims()
+ {
+  return !list(claimed).isEmpty();
+ }
+
+ /**
+  * Reads the outcome of processing an entry.
+  * @return the outcome, or <code>null</code> if the entry has not
+  * been processed yet
+  */
+ public Result getResult(String entry) throws IOException
+ {
+  File record = new File(done, entry);
+  if (!record.isFile())
+   return null;
+  String[] fields = read(record).split("\t", 5);
+  if (5 > fields.length)
+   throw new IOException("Invalid record of queue entry " + entry + " in " + done);
+  try
+  {
+   return new Result(entry, ProcessFile.Status.valueOf(fields[0]), fields[2],
+     Long.parseLong(fields[3]), new File(fields[4]));
+  }
+  catch (IllegalArgumentException invalid)
+  {
+   throw new IOException("Invalid record of queue entry " + entry + " in " + done + ": " + invalid.getMessage());
+  }
+ }
+
+ /**
+  * An entry claimed by this process.
+  */
+ public class Claim
+ {
+  public String getEntry()
+  {
+   return entry;
+  }
+
+  /**
+   * Returns the file to process.
+   */
+  public File getFile()
+  {
+   return file;
+  }
+
+  /**
+   * Keeps the claim from being {@link WorkQueue#reclaim(long) reclaimed}.
+   * @return whether the claim is still held, which is not the case
+   * if another process has reclaimed it
+   */
+  public boolean touch()
+  {
+   return marker.setLastModified(System.currentTimeMillis());
+  }
+
+  /**
+   * Records the outcome of processing the file and drops the claim.
+   * @param status the outcome
+   * @param time the time it took to process the file in milliseconds
+   */
+  public void complete(ProcessFile.Status status, long time) throws IOException
+  {
+   File record = new File(done, entry);
+   File temp = new File(done, TEMP_PREFIX + entry + OWNER_SEPARATOR + owner);
+   write(temp, status.name() + '\t' + status.getCode() + '\t' + owner + '\t' + time + '\t' + file);
+   rename(temp, record);
+   if (!marker.delete())
+    // the claim was taken over, spare the new owner processing the file again
+    new File(pending, entry).delete();
+  }
+
+  protected Claim(String entry, File file, File marker)
+  {
+   this.entry = entry;
+   this.file = file;
+   this.marker = marker;
+  }
+
+  private final String entry;
+  private final File file;
+  private final File marker;
+ }
+
+ /**
+  * Outcome of processing an entry.
+  */
+ public static class Result
+ {
+  public String getEntry()
+  {
+   return entry;
+  }
+
+  public ProcessFile.Status getStatus()
+  {
+   return status;
+  }
+
+  /**
+   * Returns the name of the process that has processed the entry.
+   */
+  public String getOwner()
+  {
+   return owner;
+  }
+
+  /**
+   * Returns the time it took to process the entry in milliseconds.
+   */
+  public long getTime()
+  {
+   return time;
+  }
+
+  public File getFile()
+  {
+   return file;
+  }
+
+  public Result(String entry, ProcessFile.Status status, String owner, long time, File file)
+  {
+   this.entry = entry;
+   this.status = status;
+   this.owner = owner;
+   this.time = time;
+   this.file = file;
+  }
+
+  private final String entry;
+  private final ProcessFile.Status status;
+  private final String owner;
+  private final long time;
+  private final File file;
+ }
+
+ public static final String PENDING_DIR = "pending";
+ public static final String CLAIMED_DIR = "claimed";
+ public static final String DONE_DIR = "done";
+
+ /**
+  * Separates the name of an entry from the name of its owner
+  * in the name of a claim.
+  */
+ protected static final char OWNER_SEPARATOR = '~';
+
+ /**
+  * Begins the names of files that are being written, so that
+  * other processes can tell them from entries and records.
+  */
+ protected static final String TEMP_PREFIX = ".";
+
+ protected File mkdir(String name) throws IOException
+ {
+  File dir = new File(directory, name);
+  if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+   throw new IOException("Could not create directory " + dir);
+  return dir;
+ }
+
+ /**
+  * Lists the entries or claims in a directory in the order of their names.
+  */
+ protected static List<String> list(File dir)
+ {
+  String[] names = dir.list();
+  if (null == names)
+   return new ArrayList<String>();
+  List<String> list = new ArrayList<String>(names.length);
+  for (String name : names)
+   if (!name.startsWith(TEMP_PREFIX))
+    list.add(name);
+  Collections.sort(list);
+  return list;
+ }
+
+ protected static void write(File file, String line) throws IOException
+ {
+  FileOutputStream out = new FileOutputStream(file);
+  try
+  {
+   Writer writer = new OutputStreamWriter(out, ENCODING);
+   writer.write(line);
+   writer.write('\n');
+   writer.flush();
+   out.getFD().sync();
+  }
+  finally
+  {
+   out.close();
+  }
+ }
+
+ protected static String read(File file) throws IOException
+ {
+  BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+  try
+  {
+   String line = reader.readLine();
+   if (null == line)
+    throw new IOException("File " + file + " is empty");
+   return line;
+  }
+  finally
+  {
+   reader.close();
+  }
+ }
+
+ protected static void rename(File from, File to) throws IOException
+ {
+  if (from.renameTo(to))
+   return;
+  // some platforms do not rename over existing files
+  if (!to.delete() || !from.renameTo(to))
+  {
+   from.delete();
+   throw new IOException("Could not rename " + from + " to " + to);
+  }
+ }
+
+ private static final String ENCODING = "UTF-8";
+
+ private final File directory;
+ private final File pending;
+ private final File claimed;
+ private final File done;
+ private final String owner;
+ private List<String> backlog;
+}
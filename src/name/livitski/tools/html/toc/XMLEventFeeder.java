@@ -0,0 +1,75 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc;
+
+import java.nio.ByteBuffer;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Parser that accepts the bytes of a document as they become available
+ * and never blocks waiting for more. A {@link Transformer.Feed feed}
+ * passes the bytes it receives to a feeder and transforms the events
+ * that the feeder can produce from them. Implementations can be plugged
+ * in by overriding {@link Transformer#newFeeder()}. The default
+ * implementation is {@link FeedingTokenizer}.
+ * <p>
+ * Feeders are expected to produce the same sequence of events as the
+ * StAX parser of the Java runtime with entity references left unreplaced.
+ * A feeder handles one document at a time and is not thread-safe.
+ * </p>
+ */
+public interface XMLEventFeeder
+{
+ /**
+  * Passes the next portion of the document to the feeder. The feeder
+  * consumes all remaining bytes of the buffer, keeping a copy of those
+  * it cannot parse yet, so that the caller can reuse the buffer.
+  * @param input the bytes that follow those fed earlier
+  * @throws XMLStreamException if the bytes cannot be decoded
+  */
+ void feed(ByteBuffer input) throws XMLStreamException;
+
+ /**
+  * Tells the feeder that the document has no more bytes.
+  * @throws XMLStreamException if the bytes received so far
+  * end in an incomplete character
+  */
+ void endOfInput() throws XMLStreamException;
+
+ /**
+  * Parses the next event from the bytes fed so far.
+  * @return the event or <code>null</code> if the feeder needs more
+  * input, or has already returned the end of the document
+  * @throws XMLStreamException if the document is not well-formed
+  */
+ XMLEvent nextEvent() throws XMLStreamException;
+
+ /**
+  * Tells whether the feeder has returned the end of the document.
+  */
+ boolean isComplete();
+
+ /**
+  * Discards the state of the current document, preparing the feeder
+  * for the next one.
+  */
+ void reset();
+}
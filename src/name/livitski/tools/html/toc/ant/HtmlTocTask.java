@@ -0,0 +1,382 @@
+/**
+ *  This file is part of HTMLtoc.
+ *  Copyright © 2013 Konstantin Livitski
+ *
+ *  HTMLtoc is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package name.livitski.tools.html.toc.ant;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import name.livitski.tools.html.toc.ErrorHandler;
+import name.livitski.tools.html.toc.MemoryBudgetException;
+import name.livitski.tools.html.toc.ReplacementOutputStream;
+import name.livitski.tools.html.toc.Transformer;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Mapper;
+import org.apache.tools.ant.util.FileNameMapper;
+import org.apache.tools.ant.util.FileUtils;
+import org.apache.tools.ant.util.IdentityMapper;
+import org.apache.tools.ant.util.SourceFileScanner;
+
+/**
+ * Ant task that adds tables of contents to the documents selected by
+ * nested <code>&lt;fileset&gt;</code> elements. All documents are
+ * transformed within the JVM that runs Ant, on as many
+ * {@link #setThreads(int) threads} as requested, and the transformers
+ * are reused from one document to the next.
+ * <p>
+ * When the {@link #setTodir(File) target directory} is set, each
+ * document is written to the file in that directory that a nested
+ * <code>&lt;mapper&gt;</code> maps its relative path to, or to the same
+ * relative path if there is no mapper. Documents whose target files are
+ * newer than themselves are skipped unless the task is
+ * {@link #setForce(boolean) forced}. Without a target directory, the
+ * documents are rewritten in place by a {@link ReplacementOutputStream},
+ * which leaves the documents that are up to date untouched.
+ * </p>
+ * <p>
+ * The task is declared by the <code>antlib.xml</code> resource of
+ * this package:
+ * </p>
+ * <pre>
+ * &lt;taskdef resource="name/livitski/tools/html/toc/ant/antlib.xml"
+ *   classpath="html-toc.jar:staxform.jar" /&gt;
+ * &lt;htmltoc todir="build/docs" threads="4"&gt;
+ *  &lt;fileset dir="docs" includes="**&#47;*.html" /&gt;
+ * &lt;/htmltoc&gt;
+ * </pre>
+ */
+public class HtmlTocTask extends Task
+{
+ /**
+  * Sets the directory that receives the transformed documents.
+  * If not set, the documents are rewritten in place.
+  */
+ public void setTodir(File todir)
+ {
+  this.todir = todir;
+ }
+
+ /**
+  * Sets the encoding of the documents. Defaults to the
+  * {@link Transformer#defaultEncoding() default encoding} of HTMLtoc.
+  */
+ public void setEncoding(String encoding)
+ {
+  this.encoding = encoding;
+ }
+
+ /**
+  * Sets the number of documents transformed in parallel.
+  * Defaults to one.
+  */
+ public void setThreads(int threads)
+ {
+  if (0 >= threads)
+   throw new BuildException("Number of threads must be positive: " + threads, getLocation());
+  this.threads = threads;
+ }
+
+ /**
+  * Makes the task transform all documents, whether or not their target
+  * files are up to date.
+  */
+ public void setForce(boolean force)
+ {
+  this.force = force;
+ }
+
+ /**
+  * Tells whether the build fails when a document cannot be transformed.
+  * Defaults to <code>true</code>. Otherwise, the errors are logged and
+  * the remaining documents are transformed.
+  */
+ public void setFailonerror(boolean failonerror)
+ {
+  this.failonerror = failonerror;
+ }
+
+ /**
+  * Makes the task write {@link Transformer#setCompactOutput(boolean)
+  * compact output}. Defaults to the setting of the
+  * {@link Transformer#COMPACT_PROPERTY} system property.
+  */
+ public void setCompact(boolean compact)
+ {
+  this.compact = compact;
+ }
+
+ public void addFileset(FileSet set)
+ {
+  filesets.add(set);
+ }
+
+ public Mapper createMapper()
+ {
+  if (null != mapper)
+   throw new BuildException("Cannot define more than one mapper", getLocation());
+  mapper = new Mapper(getProject());
+  return mapper;
+ }
+
+ public void add(FileNameMapper implementation)
+ {
+  createMapper().add(implementation);
+ }
+
+ @Override
+ public void execute() throws BuildException
+ {
+  if (filesets.isEmpty())
+   throw new BuildException("Select the documents to transform with nested filesets", getLocation());
+  if (null != mapper && null == todir)
+   throw new BuildException("A mapper requires the todir attribute", getLocation());
+  if (null == encoding)
+   encoding = Transformer.defaultEncoding();
+  List<Job> jobs = new ArrayList<Job>();
+  int upToDate = 0;
+  FileNameMapper names = null == mapper ? new IdentityMapper() : mapper.getImplementation();
+  for (FileSet set : filesets)
+  {
+   DirectoryScanner scanner = set.getDirectoryScanner(getProject());
+   File base = scanner.getBasedir();
+   String[] included = scanner.getIncludedFiles();
+   if (null == todir)
+   {
+    for (String name : included)
+     jobs.add(new Job(new File(base, name), null));
+    continue;
+   }
+   String[] outdated = force ? included
+     : new SourceFileScanner(this).restrict(included, base, todir, names,
+       FileUtils.getFileUtils().getFileTimestampGranularity());
+   upToDate += included.length - outdated.length;
+   for (String name : outdated)
+   {
+    String[] targets = names.mapFileName(name);
+    if (null != targets)
+     for (String target : targets)
+      jobs.add(new Job(new File(base, name), new File(todir, target)));
+   }
+  }
+  if (0 < upToDate)
+   log(upToDate + " document(s) up to date", Project.MSG_VERBOSE);
+  if (jobs.isEmpty())
+   return;
+  log("Adding TOCs to " + jobs.size() + " document(s)"
+    + (null == todir ? "" : " in " + todir));
+  int failed = 0;
+  for (String error : run(jobs))
+   if (null != error)
+   {
+    log(error, Project.MSG_ERR);
+    failed++;
+   }
+  if (0 < failed && failonerror)
+   throw new BuildException(failed + " document(s) could not be transformed", getLocation());
+ }
+
+ /**
+  * Runs the jobs on the task's {@link #setThreads(int) threads}.
+  * @return the error messages of the jobs, with <code>null</code>
+  * elements for the jobs that succeeded
+  */
+ protected List<String> run(List<Job> jobs)
+ {
+  List<String> errors = new ArrayList<String>(jobs.size());
+  if (1 == threads || 1 == jobs.size())
+  {
+   for (Job job : jobs)
+    errors.add(job.call());
+   return errors;
+  }
+  ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, jobs.size()));
+  try
+  {
+   for (Future<String> result : executor.invokeAll(jobs))
+    errors.add(result.get());
+  }
+  catch (InterruptedException e)
+  {
+   throw new BuildException("Interrupted while transforming documents", e, getLocation());
+  }
+  catch (ExecutionException e)
+  {
+   throw new BuildException("Internal error transforming documents", e.getCause(), getLocation());
+  }
+  finally
+  {
+   executor.shutdownNow();
+  }
+  return errors;
+ }
+
+ protected Transformer acquireTransformer()
+ {
+  Transformer transformer = transformers.poll();
+  if (null == transformer)
+  {
+   transformer = new Transformer();
+   transformer.setErrorListener(errorHandler);
+   if (null != compact)
+    transformer.setCompactOutput(compact);
+  }
+  return transformer;
+ }
+
+ protected void releaseTransformer(Transformer transformer)
+ {
+  transformers.offer(transformer);
+ }
+
+ /**
+  * Transforms a document into its target file, or in place.
+  */
+ protected class Job implements Callable<String>
+ {
+  public Job(File source, File target)
+  {
+   this.source = source;
+   this.target = target;
+  }
+
+  /**
+   * @return the error message or <code>null</code> on success
+   */
+  public String call()
+  {
+   String error = null;
+   InputStream in = null;
+   OutputStream out = null;
+   ReplacementOutputStream replacement = null;
+   boolean done = false;
+   Transformer transformer = acquireTransformer();
+   try
+   {
+    in = new FileInputStream(source);
+    if (null == target)
+     out = replacement = new ReplacementOutputStream(source);
+    else
+    {
+     File directory = target.getParentFile();
+     if (null != directory && !directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Could not create directory " + directory);
+     out = new FileOutputStream(target);
+    }
+    Writer writer = new OutputStreamWriter(out, encoding);
+    transformer.transform(
+      new StreamSource(new InputStreamReader(new BufferedInputStream(in), encoding)),
+      new StreamResult(writer));
+    writer.close();
+    if (null != replacement && replacement.replace())
+     log("Updated " + source, Project.MSG_VERBOSE);
+    else if (null == replacement)
+     log("Transformed " + source + " to " + target, Project.MSG_VERBOSE);
+    releaseTransformer(transformer);
+    done = true;
+   }
+   catch (TransformerException e)
+   {
+    if (null != MemoryBudgetException.causeOf(e))
+     error = "Memory budget exceeded: " + MemoryBudgetException.causeOf(e).getMessage();
+    else
+     error = e.getMessageAndLocation();
+   }
+   catch (IOException e)
+   {
+    error = "Input/output error: " + e.getMessage();
+   }
+   catch (RuntimeException e)
+   {
+    if (e.getCause() instanceof TransformerException)
+     // an error the transformer reported, but was not allowed to recover from
+     error = ((TransformerException)e.getCause()).getMessageAndLocation();
+    else
+     throw e;
+   }
+   finally
+   {
+    if (null != replacement)
+     replacement.discard();
+    else if (null != out)
+    {
+     try
+     {
+      out.close();
+     }
+     catch (IOException e)
+     {
+      if (null == error)
+       error = "Input/output error: " + e.getMessage();
+      done = false;
+     }
+     if (!done)
+      target.delete();
+    }
+    if (null != in)
+     try
+     {
+      in.close();
+     }
+     catch (IOException ignored)
+     {
+     }
+   }
+   return null == error ? null : "Error processing file \"" + source + "\": " + error;
+  }
+
+  private final File source;
+  private final File target;
+ }
+
+ private File todir;
+ private String encoding;
+ private int threads = 1;
+ private boolean force;
+ private boolean failonerror = true;
+ private Boolean compact;
+ private Mapper mapper;
+ private final List<FileSet> filesets = new ArrayList<FileSet>();
+ private final Queue<Transformer> transformers = new ConcurrentLinkedQueue<Transformer>();
+ private final ErrorHandler errorHandler = new ErrorHandler();
+}